@@ -0,0 +1,499 @@
+package emspishak.nypd.fiftya;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import com.google.common.base.Ascii;
+import com.google.common.base.CharMatcher;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSortedMap;
+import com.google.common.hash.HashCode;
+import com.google.common.hash.Hashing;
+import com.google.common.io.Files;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+/**
+ * 50-a officers by tax ID, from a 50-a server-cache.json file.
+ *
+ * <p>Parsing all of server-cache.json is slow, so the first load writes an index file with each
+ * officer as compact JSON, sorted by tax ID. Later loads memory-map the index and only parse the
+ * officers that are looked up. The index stores a hash of the server-cache.json it was built from,
+ * and is rebuilt when that changes.
+ *
+ * <p>The index also has each officer's complaint and officer document URLs, resolved when it's
+ * built. Complaint document URLs are made absolute and deduplicated, and each distinct URL is
+ * stored once and referenced by ID, so looking up an officer's documents doesn't parse any JSON.
+ *
+ * <p>Some 50-a officers don't have a tax ID. Those are indexed by a blocking key of their
+ * normalized last name, first name and shield number instead, so an NYPD profile whose tax ID isn't
+ * in the 50-a data can still be matched with one lookup, rather than comparing it to every officer
+ * without a tax ID. Keys shared by more than one 50-a officer are left out, since they can't be
+ * matched reliably.
+ *
+ * <p>Index file layout, all ints big-endian:
+ *
+ * <pre>
+ *   magic, version, source SHA-256 (32 bytes), officer count, name count, URL count, document
+ *       reference count
+ *   officers: (tax ID, data offset, data length, complaint documents start, complaint documents
+ *       count, officer documents start, officer documents count) for each, sorted by tax ID,
+ *       followed by officers without a tax ID in the same order as names
+ *   names: (key offset, key length) for each officer without a tax ID, sorted by key
+ *   URLs: (data offset, data length) for each
+ *   document references: URL ID for each, with each officer's documents in a range
+ *   data: UTF-8 JSON, names and URLs
+ * </pre>
+ */
+public final class FiftyAIndex {
+
+  private static final int MAGIC = 0x35304149;
+
+  private static final int VERSION = 4;
+
+  private static final int HASH_BYTES = 32;
+
+  private static final int HEADER_BYTES = 4 + 4 + HASH_BYTES + 4 * 4;
+
+  private static final int OFFICER_ENTRY_BYTES = 7 * 4;
+
+  private static final int NAME_ENTRY_BYTES = 2 * 4;
+
+  private static final int URL_ENTRY_BYTES = 2 * 4;
+
+  private static final CharMatcher NAME_CHARS = CharMatcher.inRange('A', 'Z');
+
+  private static final CharMatcher SHIELD_CHARS = CharMatcher.inRange('0', '9');
+
+  private final ByteBuffer index;
+  private final int officerCount;
+  private final int nameCount;
+  private final int namesStart;
+  private final int urlsStart;
+  private final int documentsStart;
+
+  /** Officers without a tax ID that have been matched to a profile by name, by entry position. */
+  private final Set<Integer> nameMatches = ConcurrentHashMap.newKeySet();
+
+  private final LongAdder nameLookupNanos = new LongAdder();
+
+  private FiftyAIndex(ByteBuffer index) {
+    this.index = index;
+    int counts = 8 + HASH_BYTES;
+    officerCount = index.getInt(counts);
+    nameCount = index.getInt(counts + 4);
+    int urlCount = index.getInt(counts + 8);
+    namesStart = HEADER_BYTES + (officerCount + nameCount) * OFFICER_ENTRY_BYTES;
+    urlsStart = namesStart + nameCount * NAME_ENTRY_BYTES;
+    documentsStart = urlsStart + urlCount * URL_ENTRY_BYTES;
+  }
+
+  /**
+   * Loads the index for a server-cache.json file, building it first if it doesn't exist or was
+   * built from a different version of the file.
+   *
+   * @param indexFile where the index is kept, or null to keep it next to the source file
+   */
+  public static FiftyAIndex load(File source, File indexFile) throws IOException {
+    if (indexFile == null) {
+      indexFile = new File(source.getPath() + ".index");
+    }
+    FiftyALoadEvent event = new FiftyALoadEvent();
+    event.begin();
+    byte[] hash = Files.asByteSource(source).hash(Hashing.sha256()).asBytes();
+
+    boolean built = false;
+    if (!isCurrent(indexFile, hash)) {
+      System.out.printf("building 50-a index %s%n", indexFile);
+      build(source, hash, indexFile);
+      built = true;
+    }
+
+    FiftyAIndex fiftyA;
+    try (FileChannel channel = FileChannel.open(indexFile.toPath(), StandardOpenOption.READ)) {
+      checkArgument(channel.size() <= Integer.MAX_VALUE, "50-a index too large: %s", indexFile);
+      MappedByteBuffer index = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+      fiftyA = new FiftyAIndex(index);
+    }
+
+    if (event.shouldCommit()) {
+      event.source = source.getPath();
+      event.sourceBytes = source.length();
+      event.indexBytes = indexFile.length();
+      event.built = built;
+      event.officers = fiftyA.officerCount;
+      event.names = fiftyA.nameCount;
+      event.commit();
+    }
+    return fiftyA;
+  }
+
+  /** Whether the index file exists and was built from a source with this hash. */
+  private static boolean isCurrent(File indexFile, byte[] hash) throws IOException {
+    if (!indexFile.isFile() || indexFile.length() < HEADER_BYTES) {
+      return false;
+    }
+    try (DataInputStream in = new DataInputStream(new FileInputStream(indexFile))) {
+      if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+        return false;
+      }
+      byte[] indexHash = new byte[HASH_BYTES];
+      in.readFully(indexHash);
+      return Arrays.equals(indexHash, hash);
+    }
+  }
+
+  private static void build(File source, byte[] hash, File indexFile) throws IOException {
+    JSONObject json = new JSONObject(Files.asCharSource(source, UTF_8).read());
+    JSONObject officersJson = json.getJSONObject("officers");
+    JSONObject complaintsJson = json.getJSONObject("complaints");
+
+    Urls urls = new Urls();
+    // Complaints are shared between officers, so only resolve each one's documents once.
+    Map<String, ImmutableList<Integer>> complaintDocuments = new HashMap<>();
+    ImmutableSortedMap.Builder<Integer, IndexedOfficer> officers =
+        ImmutableSortedMap.naturalOrder();
+    Map<String, IndexedOfficer> names = new TreeMap<>();
+    Set<String> ambiguousNames = new HashSet<>();
+    for (String mos : officersJson.keySet()) {
+      JSONObject officer = officersJson.getJSONObject(mos);
+      int taxId = officer.optInt("taxid");
+      String name = null;
+      if (taxId <= 0) {
+        name = getNameKey(officer);
+        if (name == null || ambiguousNames.contains(name)) {
+          continue;
+        }
+      }
+
+      Set<Integer> complaintUrls = new LinkedHashSet<>();
+      JSONArray complaintIds = officer.optJSONArray("complaints");
+      for (int i = 0; complaintIds != null && i < complaintIds.length(); i++) {
+        String id = complaintIds.getString(i);
+        ImmutableList<Integer> documents = complaintDocuments.get(id);
+        if (documents == null) {
+          documents = getComplaintDocuments(complaintsJson.optJSONObject(id), urls);
+          complaintDocuments.put(id, documents);
+        }
+        complaintUrls.addAll(documents);
+      }
+
+      ImmutableList.Builder<Integer> officerUrls = ImmutableList.builder();
+      JSONArray documents = officer.optJSONArray("documents");
+      for (int i = 0; documents != null && i < documents.length(); i++) {
+        officerUrls.add(urls.intern(documents.getJSONObject(i).getString("url")));
+      }
+
+      IndexedOfficer indexed =
+          new IndexedOfficer(
+              taxId,
+              officer.toString().getBytes(UTF_8),
+              ImmutableList.copyOf(complaintUrls),
+              officerUrls.build());
+      if (name == null) {
+        officers.put(taxId, indexed);
+      } else if (names.put(name, indexed) != null) {
+        names.remove(name);
+        ambiguousNames.add(name);
+      }
+    }
+    System.out.printf(
+        "indexed %s 50-a officers without a tax ID by name, left out %s ambiguous names%n",
+        names.size(), ambiguousNames.size());
+    // Officers with a tax ID, by tax ID, then officers without one, by name.
+    ImmutableList<IndexedOfficer> sortedOfficers =
+        ImmutableList.<IndexedOfficer>builder()
+            .addAll(officers.build().values())
+            .addAll(names.values())
+            .build();
+
+    int documentCount = 0;
+    for (IndexedOfficer officer : sortedOfficers) {
+      documentCount += officer.complaintUrls.size() + officer.officerUrls.size();
+    }
+
+    // Write to a temporary file and move it into place, so a failed build doesn't leave a
+    // truncated index that looks current.
+    File temp =
+        File.createTempFile("50a-index", ".tmp", indexFile.getAbsoluteFile().getParentFile());
+    try (DataOutputStream out =
+        new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temp)))) {
+      out.writeInt(MAGIC);
+      out.writeInt(VERSION);
+      out.write(hash);
+      out.writeInt(sortedOfficers.size() - names.size());
+      out.writeInt(names.size());
+      out.writeInt(urls.list.size());
+      out.writeInt(documentCount);
+
+      long offset =
+          HEADER_BYTES
+              + (long) sortedOfficers.size() * OFFICER_ENTRY_BYTES
+              + (long) names.size() * NAME_ENTRY_BYTES
+              + (long) urls.list.size() * URL_ENTRY_BYTES
+              + (long) documentCount * 4;
+      int document = 0;
+      for (IndexedOfficer indexed : sortedOfficers) {
+        out.writeInt(Math.max(indexed.taxId, 0));
+        out.writeInt(Math.toIntExact(offset));
+        out.writeInt(indexed.json.length);
+        offset += indexed.json.length;
+        out.writeInt(document);
+        out.writeInt(indexed.complaintUrls.size());
+        document += indexed.complaintUrls.size();
+        out.writeInt(document);
+        out.writeInt(indexed.officerUrls.size());
+        document += indexed.officerUrls.size();
+      }
+      for (String name : names.keySet()) {
+        int length = name.getBytes(UTF_8).length;
+        out.writeInt(Math.toIntExact(offset));
+        out.writeInt(length);
+        offset += length;
+      }
+      for (String url : urls.list) {
+        int length = url.getBytes(UTF_8).length;
+        out.writeInt(Math.toIntExact(offset));
+        out.writeInt(length);
+        offset += length;
+      }
+      for (IndexedOfficer officer : sortedOfficers) {
+        for (int url : officer.complaintUrls) {
+          out.writeInt(url);
+        }
+        for (int url : officer.officerUrls) {
+          out.writeInt(url);
+        }
+      }
+
+      for (IndexedOfficer officer : sortedOfficers) {
+        out.write(officer.json);
+      }
+      for (String name : names.keySet()) {
+        out.write(name.getBytes(UTF_8));
+      }
+      for (String url : urls.list) {
+        out.write(url.getBytes(UTF_8));
+      }
+    } catch (IOException | RuntimeException e) {
+      temp.delete();
+      throw e;
+    }
+    Files.move(temp, indexFile);
+  }
+
+  /**
+   * The blocking key for matching a 50-a officer and an NYPD profile by name: last name, first
+   * name and shield number, normalized to just letters and digits so differences in case, spacing
+   * and punctuation don't matter. Returns null if any of them is missing, since matching on less
+   * than all three is too loose.
+   */
+  private static String getNameKey(JSONObject json) {
+    String lastName = NAME_CHARS.retainFrom(Ascii.toUpperCase(json.optString("last_name")));
+    String firstName = NAME_CHARS.retainFrom(Ascii.toUpperCase(json.optString("first_name")));
+    String shield = SHIELD_CHARS.retainFrom(json.optString("shield_no"));
+    shield = CharMatcher.is('0').trimLeadingFrom(shield);
+    if (lastName.isEmpty() || firstName.isEmpty() || shield.isEmpty()) {
+      return null;
+    }
+    return String.join("|", lastName, firstName, shield);
+  }
+
+  /** IDs of the document URLs for a complaint, made absolute. */
+  private static ImmutableList<Integer> getComplaintDocuments(JSONObject complaint, Urls urls) {
+    if (complaint == null || !complaint.has("resources")) {
+      return ImmutableList.of();
+    }
+    ImmutableList.Builder<Integer> documents = ImmutableList.builder();
+    JSONArray resources = complaint.getJSONObject("resources").getJSONArray("complaints");
+    for (int i = 0; i < resources.length(); i++) {
+      String url = resources.getJSONObject(i).getString("url");
+      if (url.startsWith("/")) {
+        url = String.format("https://50-a.org%s", url);
+      }
+      documents.add(urls.intern(url));
+    }
+    return documents.build();
+  }
+
+  /** SHA-256 of the server-cache.json this index was built from, in hex. */
+  public String getSourceHash() {
+    byte[] hash = new byte[HASH_BYTES];
+    index.get(8, hash);
+    return HashCode.fromBytes(hash).toString();
+  }
+
+  /**
+   * Returns the officer with an NYPD profile, matched by tax ID or else by name and shield number,
+   * so its data and documents can all be read with one lookup. Returns null if there's no match.
+   */
+  public Match match(JSONObject profile) {
+    int entry = findOfficer(profile);
+    return entry < 0 ? null : new Match(entry);
+  }
+
+  /**
+   * Prints how many 50-a officers without a tax ID have been matched to profiles by name so far,
+   * and how long those lookups took.
+   */
+  public void printNameMatchStats() {
+    System.out.printf(
+        "matched %s of %s 50-a officers without a tax ID by name, in %s ms of lookups%n",
+        nameMatches.size(), nameCount, TimeUnit.NANOSECONDS.toMillis(nameLookupNanos.sum()));
+  }
+
+  /**
+   * Returns the position of the entry for the officer with an NYPD profile, matched by tax ID or
+   * else by name and shield number, or -1 if there's no match.
+   */
+  private int findOfficer(JSONObject profile) {
+    int entry = findOfficer(profile.getInt("taxid"));
+    if (entry >= 0 || nameCount == 0) {
+      return entry;
+    }
+
+    long start = System.nanoTime();
+    String name = getNameKey(profile);
+    int low = 0;
+    int high = name == null ? -1 : nameCount - 1;
+    while (low <= high) {
+      int mid = (low + high) >>> 1;
+      int nameEntry = namesStart + mid * NAME_ENTRY_BYTES;
+      int compare =
+          getString(index.getInt(nameEntry), index.getInt(nameEntry + 4)).compareTo(name);
+      if (compare < 0) {
+        low = mid + 1;
+      } else if (compare > 0) {
+        high = mid - 1;
+      } else {
+        entry = HEADER_BYTES + (officerCount + mid) * OFFICER_ENTRY_BYTES;
+        nameMatches.add(entry);
+        break;
+      }
+    }
+    nameLookupNanos.add(System.nanoTime() - start);
+    return entry;
+  }
+
+  /** Returns the position of an officer's entry, or -1 if there's no officer with this tax ID. */
+  private int findOfficer(int taxId) {
+    int low = 0;
+    int high = officerCount - 1;
+    while (low <= high) {
+      int mid = (low + high) >>> 1;
+      int entry = HEADER_BYTES + mid * OFFICER_ENTRY_BYTES;
+      int midTaxId = index.getInt(entry);
+      if (midTaxId < taxId) {
+        low = mid + 1;
+      } else if (midTaxId > taxId) {
+        high = mid - 1;
+      } else {
+        return entry;
+      }
+    }
+    return -1;
+  }
+
+  /** Returns the URLs for the (start, count) range of document references at a position. */
+  private ImmutableList<String> getDocuments(int position) {
+    int start = index.getInt(position);
+    int count = index.getInt(position + 4);
+    ImmutableList.Builder<String> urls = ImmutableList.builder();
+    for (int i = start; i < start + count; i++) {
+      int url = urlsStart + index.getInt(documentsStart + i * 4) * URL_ENTRY_BYTES;
+      urls.add(getString(index.getInt(url), index.getInt(url + 4)));
+    }
+    return urls.build();
+  }
+
+  private String getString(int offset, int length) {
+    byte[] bytes = new byte[length];
+    index.get(offset, bytes);
+    return new String(bytes, UTF_8);
+  }
+
+  /** An officer's entry in the index, found once and then read from. */
+  public final class Match {
+
+    private final int entry;
+
+    private Match(int entry) {
+      this.entry = entry;
+    }
+
+    /** The officer's 50-a data. */
+    public JSONObject getOfficer() {
+      return new JSONObject(getString(index.getInt(entry + 4), index.getInt(entry + 8)));
+    }
+
+    /** Absolute URLs of documents for all of the officer's complaints, without duplicates. */
+    public ImmutableList<String> getComplaintDocuments() {
+      return getDocuments(entry + 12);
+    }
+
+    /** URLs of the officer's own documents. */
+    public ImmutableList<String> getOfficerDocuments() {
+      return getDocuments(entry + 20);
+    }
+  }
+
+  /** Distinct URLs, by ID. */
+  private static final class Urls {
+
+    private final Map<String, Integer> ids = new HashMap<>();
+    private final List<String> list = new ArrayList<>();
+
+    private int intern(String url) {
+      Integer id = ids.get(url);
+      if (id == null) {
+        id = list.size();
+        ids.put(url, id);
+        list.add(url);
+      }
+      return id;
+    }
+  }
+
+  /** An officer's data, before it's written to the index. */
+  private static final class IndexedOfficer {
+
+    private final int taxId;
+    private final byte[] json;
+    private final ImmutableList<Integer> complaintUrls;
+    private final ImmutableList<Integer> officerUrls;
+
+    private IndexedOfficer(
+        int taxId,
+        byte[] json,
+        ImmutableList<Integer> complaintUrls,
+        ImmutableList<Integer> officerUrls) {
+      this.taxId = taxId;
+      this.json = json;
+      this.complaintUrls = complaintUrls;
+      this.officerUrls = officerUrls;
+    }
+  }
+}
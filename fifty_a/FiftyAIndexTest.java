@@ -0,0 +1,130 @@
+package emspishak.nypd.fiftya;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertNull;
+
+import com.google.common.collect.ImmutableList;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import org.json.JSONArray;
+import org.json.JSONObject;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/** Tests matching NYPD profiles to 50-a officers by tax ID and by name and shield. */
+public final class FiftyAIndexTest {
+
+  @Rule public final TemporaryFolder tempFolder = new TemporaryFolder();
+
+  private File source;
+  private File indexFile;
+
+  @Before
+  public void setUp() throws IOException {
+    source = tempFolder.newFile("server-cache.json");
+    indexFile = new File(tempFolder.getRoot(), "50a.index");
+    writeSource(
+        new JSONObject()
+            .put(
+                "mos1",
+                getOfficer("mos1", "SMITH", "JOHN", "55")
+                    .put("taxid", 100)
+                    .put("complaints", new JSONArray().put("c1").put("c2"))
+                    .put(
+                        "documents",
+                        new JSONArray().put(new JSONObject().put("url", "https://x.org/1.pdf"))))
+            .put("mos2", getOfficer("mos2", "O'Brien", "Mary Ann", "01234"))
+            // Two officers with the same key can't be told apart, so neither is matched.
+            .put("mos3", getOfficer("mos3", "SMITH", "JOHN", "55"))
+            .put("mos4", getOfficer("mos4", "Smith", "John", "0055"))
+            .put("mos5", getOfficer("mos5", "JONES", "ANN", "")));
+  }
+
+  @Test
+  public void matchesByTaxId() throws Exception {
+    FiftyAIndex.Match match = load().match(getProfile(100, "SMITH", "JOHN", 55));
+
+    assertEquals("mos1", match.getOfficer().getString("unique_mos"));
+    // Complaint documents are made absolute and deduplicated across complaints.
+    assertEquals(
+        ImmutableList.of("https://50-a.org/docs/a.pdf", "https://other.org/b.pdf"),
+        match.getComplaintDocuments());
+    assertEquals(ImmutableList.of("https://x.org/1.pdf"), match.getOfficerDocuments());
+  }
+
+  @Test
+  public void matchesByNormalizedNameAndShieldWhenTaxIdMisses() throws Exception {
+    FiftyAIndex.Match match = load().match(getProfile(200, "OBRIEN", "MARY-ANN", 1234));
+
+    assertEquals("mos2", match.getOfficer().getString("unique_mos"));
+    assertEquals(ImmutableList.of(), match.getComplaintDocuments());
+  }
+
+  @Test
+  public void doesNotMatchOtherShieldsOrAmbiguousNames() throws Exception {
+    FiftyAIndex fiftyA = load();
+
+    assertNull(fiftyA.match(getProfile(200, "OBRIEN", "MARY ANN", 4321)));
+    assertNull(fiftyA.match(getProfile(200, "SMITH", "JOHN", 55)));
+    // Officers without a shield number aren't indexed by name at all.
+    assertNull(fiftyA.match(getProfile(200, "JONES", "ANN", 0)));
+  }
+
+  @Test
+  public void rebuildsWhenSourceChanges() throws Exception {
+    String hash = load().getSourceHash();
+    writeSource(new JSONObject().put("mos6", getOfficer("mos6", "LEE", "KIM", "7")));
+
+    FiftyAIndex fiftyA = load();
+
+    FiftyAIndex.Match match = fiftyA.match(getProfile(200, "LEE", "KIM", 7));
+    assertEquals("mos6", match.getOfficer().getString("unique_mos"));
+    assertNull(fiftyA.match(getProfile(100, "SMITH", "JOHN", 55)));
+    assertNotEquals(hash, fiftyA.getSourceHash());
+  }
+
+  private FiftyAIndex load() throws IOException {
+    return FiftyAIndex.load(source, indexFile);
+  }
+
+  private void writeSource(JSONObject officers) throws IOException {
+    JSONObject complaints =
+        new JSONObject()
+            .put("c1", getComplaint("/docs/a.pdf", "https://other.org/b.pdf"))
+            .put("c2", getComplaint("/docs/a.pdf"));
+    Files.writeString(
+        source.toPath(),
+        new JSONObject().put("officers", officers).put("complaints", complaints).toString(),
+        UTF_8);
+  }
+
+  private static JSONObject getOfficer(
+      String mos, String lastName, String firstName, String shield) {
+    return new JSONObject()
+        .put("unique_mos", mos)
+        .put("last_name", lastName)
+        .put("first_name", firstName)
+        .put("shield_no", shield);
+  }
+
+  private static JSONObject getComplaint(String... urls) {
+    JSONArray resources = new JSONArray();
+    for (String url : urls) {
+      resources.put(new JSONObject().put("url", url));
+    }
+    return new JSONObject().put("resources", new JSONObject().put("complaints", resources));
+  }
+
+  private static JSONObject getProfile(int taxId, String lastName, String firstName, int shield) {
+    return new JSONObject()
+        .put("taxid", taxId)
+        .put("last_name", lastName)
+        .put("first_name", firstName)
+        .put("shield_no", shield);
+  }
+}
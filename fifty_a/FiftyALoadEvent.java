@@ -0,0 +1,38 @@
+package emspishak.nypd.fiftya;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+/** JFR event for loading the 50-a index, including building it if needed. */
+@Name("emspishak.nypd.FiftyALoad")
+@Label("50-a Load")
+@Category({"NYPD", "50-a"})
+@Description("Loading the 50-a index, and building it first if it was missing or stale")
+final class FiftyALoadEvent extends jdk.jfr.Event {
+
+  @Label("Source")
+  String source;
+
+  @Label("Source Size")
+  @DataAmount
+  long sourceBytes;
+
+  @Label("Index Size")
+  @DataAmount
+  long indexBytes;
+
+  @Label("Built")
+  @Description("Whether the index had to be built from the source")
+  boolean built;
+
+  @Label("Officers")
+  @Description("Officers with a tax ID")
+  int officers;
+
+  @Label("Names")
+  @Description("Officers without a tax ID, indexed by name")
+  int names;
+}
@@ -0,0 +1,133 @@
+package emspishak.nypd.launcher;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.collect.ImmutableSet.toImmutableSet;
+
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
+import com.sun.management.GarbageCollectionNotificationInfo;
+import com.sun.management.GcInfo;
+import emspishak.nypd.legalaid.LegalAid;
+import emspishak.nypd.nsttraining.NstTraining;
+import emspishak.nypd.profilepayroll.ProfilePayroll;
+import emspishak.nypd.srgtraining.SrgTraining;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.lang.management.MemoryUsage;
+import java.lang.management.RuntimeMXBean;
+import java.util.Arrays;
+import java.util.Map;
+import javax.management.Notification;
+import javax.management.NotificationEmitter;
+import javax.management.NotificationListener;
+import javax.management.openmbean.CompositeData;
+
+/**
+ * Runs any of the tools from one binary, as "Launcher TOOL [tool args]", so scheduled runs only
+ * need one jar and can share one class data sharing archive (see launch.sh). Prints how long the
+ * JVM took to start, and at the end the total time, time in GC, bytes allocated and how many
+ * classes were loaded, so startup time can be tracked.
+ */
+public final class Launcher {
+
+  private static final ImmutableMap<String, Tool> TOOLS =
+      ImmutableMap.of(
+          "profile-payroll", ProfilePayroll::main,
+          "srg-training", SrgTraining::main,
+          "nst-training", NstTraining::main,
+          "legal-aid", LegalAid::main);
+
+  public static void main(String[] args) throws Exception {
+    RuntimeMXBean runtime = ManagementFactory.getRuntimeMXBean();
+    long startupMillis = runtime.getUptime();
+    checkArgument(
+        args.length > 0 && TOOLS.containsKey(args[0]),
+        "usage: Launcher TOOL [args], where TOOL is one of %s",
+        TOOLS.keySet());
+
+    boolean sharing =
+        runtime.getInputArguments().stream().anyMatch(arg -> arg.contains("SharedArchiveFile"));
+    System.out.printf(
+        "startup: %s ms to main, class data sharing archive %s%n",
+        startupMillis, sharing ? "used" : "not used");
+
+    AllocationCounter allocations = AllocationCounter.start();
+    TOOLS.get(args[0]).run(Arrays.copyOfRange(args, 1, args.length));
+
+    long gcMillis = 0;
+    for (GarbageCollectorMXBean collector : ManagementFactory.getGarbageCollectorMXBeans()) {
+      gcMillis += Math.max(collector.getCollectionTime(), 0);
+    }
+    System.out.printf(
+        "%s: %s ms total, %s ms in GC, %s bytes allocated, %s classes loaded%n",
+        args[0],
+        runtime.getUptime(),
+        gcMillis,
+        allocations.getAllocatedBytes(),
+        ManagementFactory.getClassLoadingMXBean().getTotalLoadedClassCount());
+  }
+
+  private interface Tool {
+    void run(String[] args) throws Exception;
+  }
+
+  /**
+   * Counts bytes allocated on the heap from how much the heap grew between GCs. JDK 17's
+   * ThreadMXBean only counts threads that are still alive, which would miss the tools' worker
+   * threads. GC notifications are delivered asynchronously, so this is approximate.
+   */
+  private static final class AllocationCounter implements NotificationListener {
+
+    private final ImmutableSet<String> heapPools;
+    private long allocatedBytes;
+    private long usedAfterLastGc;
+
+    private AllocationCounter(ImmutableSet<String> heapPools) {
+      this.heapPools = heapPools;
+    }
+
+    static AllocationCounter start() {
+      AllocationCounter counter =
+          new AllocationCounter(
+              ManagementFactory.getMemoryPoolMXBeans().stream()
+                  .filter(pool -> pool.getType() == MemoryType.HEAP)
+                  .map(MemoryPoolMXBean::getName)
+                  .collect(toImmutableSet()));
+      for (GarbageCollectorMXBean collector : ManagementFactory.getGarbageCollectorMXBeans()) {
+        ((NotificationEmitter) collector).addNotificationListener(counter, null, null);
+      }
+      return counter;
+    }
+
+    @Override
+    public synchronized void handleNotification(Notification notification, Object handback) {
+      if (!notification
+          .getType()
+          .equals(GarbageCollectionNotificationInfo.GARBAGE_COLLECTION_NOTIFICATION)) {
+        return;
+      }
+      GcInfo info =
+          GarbageCollectionNotificationInfo.from((CompositeData) notification.getUserData())
+              .getGcInfo();
+      allocatedBytes += Math.max(getHeapUsed(info.getMemoryUsageBeforeGc()) - usedAfterLastGc, 0);
+      usedAfterLastGc = getHeapUsed(info.getMemoryUsageAfterGc());
+    }
+
+    synchronized long getAllocatedBytes() {
+      long used = ManagementFactory.getMemoryMXBean().getHeapMemoryUsage().getUsed();
+      return allocatedBytes + Math.max(used - usedAfterLastGc, 0);
+    }
+
+    private long getHeapUsed(Map<String, MemoryUsage> usage) {
+      long used = 0;
+      for (Map.Entry<String, MemoryUsage> pool : usage.entrySet()) {
+        if (heapPools.contains(pool.getKey())) {
+          used += pool.getValue().getUsed();
+        }
+      }
+      return used;
+    }
+  }
+}
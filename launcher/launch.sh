@@ -0,0 +1,34 @@
+#!/bin/bash
+#
+# Runs a tool through the launcher's deploy jar with an application class data sharing (AppCDS)
+# archive, skipping both `bazel run` and most JVM class loading. The first run after the jar
+# changes dumps the classes it loaded into the archive on exit; later runs map the archive instead
+# of loading and verifying those classes again. Needs JDK 13 or later.
+#
+# Build the jar first (from the project root):
+#   bazel build //launcher:Launcher_deploy.jar
+#
+# Usage: launcher/launch.sh TOOL [tool args]
+# Set LAUNCHER_JAR or LAUNCHER_ARCHIVE to use a different jar or archive, and JAVA_OPTS to pass
+# other JVM flags.
+
+set -euo pipefail
+
+jar="${LAUNCHER_JAR:-$(dirname "$0")/../bazel-bin/launcher/Launcher_deploy.jar}"
+archive="${LAUNCHER_ARCHIVE:-${jar%.jar}.jsa}"
+
+if [[ ! -f "$jar" ]]; then
+  echo "no launcher jar at $jar; run: bazel build //launcher:Launcher_deploy.jar" >&2
+  exit 1
+fi
+
+# An archive only works with the exact jar it was made from, so remake it when the jar changes.
+if [[ -f "$archive" && "$archive" -nt "$jar" ]]; then
+  cds_flag="-XX:SharedArchiveFile=$archive"
+else
+  echo "creating class data sharing archive $archive" >&2
+  rm -f "$archive"
+  cds_flag="-XX:ArchiveClassesAtExit=$archive"
+fi
+
+exec java ${JAVA_OPTS:-} "$cds_flag" -Xshare:auto -jar "$jar" "$@"
@@ -0,0 +1,221 @@
+package emspishak.nypd.legalaid;
+
+import com.google.api.client.http.GenericUrl;
+import com.google.api.client.http.HttpRequest;
+import com.google.api.client.http.HttpResponse;
+import com.google.api.client.http.HttpTransport;
+import com.google.common.base.Stopwatch;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Fetches URLs with timeouts and retries with jittered exponential backoff. The number of requests
+ * in flight at once adapts to the server: it grows slowly while requests are fast and succeed, and
+ * halves on slow requests, 429s and 5xxs. Latency and throughput are recorded for printStats().
+ */
+final class HttpFetcher {
+
+  private static final int TIMEOUT_MILLIS = 60_000;
+
+  private static final long BASE_BACKOFF_MILLIS = 500;
+
+  private static final long MAX_BACKOFF_MILLIS = 60_000;
+
+  /** Requests slower than this count as a sign the server is overloaded. */
+  private static final long SLOW_MILLIS = 10_000;
+
+  /** Latency histogram buckets are powers of two, up to 2^(BUCKETS - 1) milliseconds. */
+  private static final int BUCKETS = 20;
+
+  private final HttpTransport transport;
+  private final int maxConcurrency;
+  private final int maxRetries;
+  private final long baseBackoffMillis;
+  private final long slowMillis;
+  private final Sleeper sleeper;
+
+  /** Number of requests allowed in flight at once. Fractional so it can grow additively. */
+  private double limit = 1;
+
+  private int inFlight = 0;
+
+  private final Stopwatch runTime = Stopwatch.createStarted();
+  private final LongAdder requests = new LongAdder();
+  private final LongAdder retries = new LongAdder();
+  private final LongAdder failures = new LongAdder();
+  private final AtomicLongArray latencies = new AtomicLongArray(BUCKETS);
+
+  HttpFetcher(HttpTransport transport, int maxConcurrency, int maxRetries) {
+    this(
+        transport,
+        maxConcurrency,
+        maxRetries,
+        BASE_BACKOFF_MILLIS,
+        SLOW_MILLIS,
+        HttpFetcher::sleep);
+  }
+
+  /** For tests, which need short backoffs and to see how long retries waited. */
+  HttpFetcher(
+      HttpTransport transport,
+      int maxConcurrency,
+      int maxRetries,
+      long baseBackoffMillis,
+      long slowMillis,
+      Sleeper sleeper) {
+    this.transport = transport;
+    this.maxConcurrency = maxConcurrency;
+    this.maxRetries = maxRetries;
+    this.baseBackoffMillis = baseBackoffMillis;
+    this.slowMillis = slowMillis;
+    this.sleeper = sleeper;
+  }
+
+  /** Fetches a URL, retrying failures, and passes a successful response to the handler. */
+  <T> T get(String url, ResponseHandler<T> handler) throws IOException {
+    for (int attempt = 0; ; attempt++) {
+      acquire();
+      Stopwatch stopwatch = Stopwatch.createStarted();
+      boolean overloaded = true;
+      boolean retryable = true;
+      long retryAfterMillis = 0;
+      IOException failure;
+      try {
+        HttpRequest request =
+            transport.createRequestFactory().buildGetRequest(new GenericUrl(url));
+        request.setConnectTimeout(TIMEOUT_MILLIS);
+        request.setReadTimeout(TIMEOUT_MILLIS);
+        request.setThrowExceptionOnExecuteError(false);
+        HttpResponse response = request.execute();
+        try {
+          int status = response.getStatusCode();
+          if (response.isSuccessStatusCode()) {
+            T result = handler.handle(response);
+            overloaded = stopwatch.elapsed().toMillis() > slowMillis;
+            return result;
+          }
+          failure = new IOException(String.format("%s fetching %s", status, url));
+          retryAfterMillis = parseRetryAfter(response.getHeaders().getRetryAfter());
+          // Other errors won't go away by retrying, and don't mean the server is overloaded.
+          retryable = status == 429 || status >= 500;
+          overloaded = retryable;
+        } finally {
+          response.disconnect();
+        }
+      } catch (IOException e) {
+        // Timeouts, resets and the like.
+        failure = e;
+      } finally {
+        long millis = stopwatch.elapsed().toMillis();
+        requests.increment();
+        latencies.incrementAndGet(getBucket(millis));
+        release(overloaded);
+      }
+
+      if (!retryable || attempt >= maxRetries) {
+        failures.increment();
+        throw failure;
+      }
+      retries.increment();
+      sleeper.sleep(Math.max(retryAfterMillis, getBackoff(attempt)));
+    }
+  }
+
+  private synchronized void acquire() throws InterruptedIOException {
+    while (inFlight >= (int) limit) {
+      try {
+        wait();
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new InterruptedIOException();
+      }
+    }
+    inFlight++;
+  }
+
+  private synchronized void release(boolean overloaded) {
+    inFlight--;
+    if (overloaded) {
+      limit = Math.max(1, limit / 2);
+    } else {
+      limit = Math.min(maxConcurrency, limit + 1 / limit);
+    }
+    notifyAll();
+  }
+
+  /** Exponential backoff with jitter, so retries from different threads don't all line up. */
+  private long getBackoff(int attempt) {
+    long backoff = Math.min(MAX_BACKOFF_MILLIS, baseBackoffMillis << Math.min(attempt, 20));
+    return backoff / 2 + ThreadLocalRandom.current().nextLong(backoff / 2 + 1);
+  }
+
+  /** Only handles Retry-After in seconds, not as a date. */
+  private static long parseRetryAfter(String retryAfter) {
+    if (retryAfter == null) {
+      return 0;
+    }
+    try {
+      return Long.parseLong(retryAfter.trim()) * 1000;
+    } catch (NumberFormatException e) {
+      return 0;
+    }
+  }
+
+  private static void sleep(long millis) throws InterruptedIOException {
+    try {
+      Thread.sleep(millis);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new InterruptedIOException();
+    }
+  }
+
+  private static int getBucket(long millis) {
+    int bucket = 64 - Long.numberOfLeadingZeros(Math.max(0, millis));
+    return Math.min(bucket, BUCKETS - 1);
+  }
+
+  long getRequests() {
+    return requests.sum();
+  }
+
+  long getRetries() {
+    return retries.sum();
+  }
+
+  long getFailures() {
+    return failures.sum();
+  }
+
+  synchronized double getLimit() {
+    return limit;
+  }
+
+  /** Prints request counts, throughput and a latency histogram. */
+  synchronized void printStats() {
+    double seconds = runTime.elapsed().toMillis() / 1000.0;
+    System.out.printf(
+        "http: %s requests (%s retries, %s failures) in %.1fs, %.2f requests/s, concurrency"
+            + " limit %.1f%n",
+        requests.sum(), retries.sum(), failures.sum(), seconds, requests.sum() / seconds, limit);
+    for (int bucket = 0; bucket < BUCKETS; bucket++) {
+      long count = latencies.get(bucket);
+      if (count > 0) {
+        String upTo = bucket == BUCKETS - 1 ? "more" : Long.toString(1L << bucket);
+        System.out.printf("  <%5s ms: %s%n", upTo, count);
+      }
+    }
+  }
+
+  interface ResponseHandler<T> {
+    T handle(HttpResponse response) throws IOException;
+  }
+
+  /** Waits between retries. */
+  interface Sleeper {
+    void sleep(long millis) throws InterruptedIOException;
+  }
+}
@@ -0,0 +1,217 @@
+package emspishak.nypd.legalaid;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertThrows;
+import static org.junit.Assert.assertTrue;
+
+import com.google.api.client.http.javanet.NetHttpTransport;
+import com.google.common.collect.ImmutableList;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Tests HttpFetcher against a local server that injects faults: 429s and 503s with Retry-After,
+ * 404s and slow responses. Backoffs are recorded instead of slept, so the tests are fast.
+ */
+public final class HttpFetcherTest {
+
+  private static final long BASE_BACKOFF_MILLIS = 100;
+
+  private static final long SLOW_MILLIS = 200;
+
+  private HttpServer server;
+
+  /** Responses still to give for each path, after which it answers 200. */
+  private final Map<String, Deque<Fault>> faults = new HashMap<>();
+
+  private final AtomicInteger inFlight = new AtomicInteger();
+  private final AtomicInteger maxInFlight = new AtomicInteger();
+
+  /** How long each retry waited, in milliseconds. */
+  private final List<Long> sleeps = Collections.synchronizedList(new ArrayList<>());
+
+  @Before
+  public void setUp() throws IOException {
+    server = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+    server.createContext("/", this::handle);
+    server.setExecutor(Executors.newCachedThreadPool());
+    server.start();
+  }
+
+  @After
+  public void tearDown() {
+    server.stop(0);
+  }
+
+  @Test
+  public void retries429And503HonoringRetryAfter() throws Exception {
+    addFaults("/flaky", new Fault(429, "3", 0), new Fault(503, null, 0));
+    HttpFetcher fetcher = createFetcher(5, 5);
+
+    assertEquals("ok /flaky", get(fetcher, "/flaky"));
+
+    assertEquals(3, fetcher.getRequests());
+    assertEquals(2, fetcher.getRetries());
+    assertEquals(0, fetcher.getFailures());
+    assertEquals(3000L, (long) sleeps.get(0));
+    // The second retry's backoff is jittered between half and all of twice the base.
+    assertTrue(sleeps.toString(), sleeps.get(1) >= BASE_BACKOFF_MILLIS);
+    assertTrue(sleeps.toString(), sleeps.get(1) <= 2 * BASE_BACKOFF_MILLIS);
+  }
+
+  @Test
+  public void doesNotRetry404() throws Exception {
+    addFaults("/missing", new Fault(404, null, 0));
+    HttpFetcher fetcher = createFetcher(5, 5);
+
+    IOException e = assertThrows(IOException.class, () -> get(fetcher, "/missing"));
+
+    assertTrue(e.getMessage(), e.getMessage().startsWith("404"));
+    assertEquals(1, fetcher.getRequests());
+    assertEquals(0, fetcher.getRetries());
+    assertEquals(1, fetcher.getFailures());
+    // A 404 isn't a sign of overload, so it counts toward growing the limit.
+    assertEquals(2.0, fetcher.getLimit(), 0);
+  }
+
+  @Test
+  public void givesUpAfterMaxRetries() throws Exception {
+    addFaults(
+        "/down", new Fault(503, null, 0), new Fault(503, null, 0), new Fault(503, null, 0));
+    HttpFetcher fetcher = createFetcher(5, 2);
+
+    IOException e = assertThrows(IOException.class, () -> get(fetcher, "/down"));
+
+    assertTrue(e.getMessage(), e.getMessage().startsWith("503"));
+    assertEquals(3, fetcher.getRequests());
+    assertEquals(2, fetcher.getRetries());
+    assertEquals(1, fetcher.getFailures());
+  }
+
+  @Test
+  public void limitGrowsOnSuccessAndHalvesWhenOverloaded() throws Exception {
+    HttpFetcher fetcher = createFetcher(8, 0);
+    double expected = 1;
+    for (int i = 0; i < 10; i++) {
+      get(fetcher, "/ok");
+      expected = Math.min(8, expected + 1 / expected);
+    }
+    assertEquals(expected, fetcher.getLimit(), 1e-9);
+
+    addFaults("/busy", new Fault(503, null, 0));
+    assertThrows(IOException.class, () -> get(fetcher, "/busy"));
+    assertEquals(expected / 2, fetcher.getLimit(), 1e-9);
+
+    // Slow responses succeed but also halve the limit.
+    addFaults("/slow", new Fault(200, null, 2 * SLOW_MILLIS));
+    assertEquals("ok /slow", get(fetcher, "/slow"));
+    assertEquals(expected / 4, fetcher.getLimit(), 1e-9);
+  }
+
+  @Test
+  public void limitsRequestsInFlight() throws Exception {
+    HttpFetcher fetcher = createFetcher(8, 0);
+    // Each slow request halves the limit, so it stays at 1 and requests go one at a time.
+    for (int i = 0; i < 4; i++) {
+      addFaults("/slow" + i, new Fault(200, null, 2 * SLOW_MILLIS));
+    }
+    ExecutorService executor = Executors.newFixedThreadPool(4);
+    try {
+      List<Future<String>> results = new ArrayList<>();
+      for (int i = 0; i < 4; i++) {
+        String path = "/slow" + i;
+        results.add(executor.submit(() -> get(fetcher, path)));
+      }
+      for (Future<String> result : results) {
+        result.get();
+      }
+    } finally {
+      executor.shutdown();
+    }
+
+    assertEquals(1, maxInFlight.get());
+    assertEquals(1.0, fetcher.getLimit(), 0);
+  }
+
+  private HttpFetcher createFetcher(int maxConcurrency, int maxRetries) {
+    return new HttpFetcher(
+        new NetHttpTransport(),
+        maxConcurrency,
+        maxRetries,
+        BASE_BACKOFF_MILLIS,
+        SLOW_MILLIS,
+        sleeps::add);
+  }
+
+  private String get(HttpFetcher fetcher, String path) throws IOException {
+    return fetcher.get(
+        String.format("http://localhost:%s%s", server.getAddress().getPort(), path),
+        response -> response.parseAsString());
+  }
+
+  private synchronized void addFaults(String path, Fault... pathFaults) {
+    faults.computeIfAbsent(path, p -> new ArrayDeque<>()).addAll(ImmutableList.copyOf(pathFaults));
+  }
+
+  private synchronized Fault nextFault(String path) {
+    Deque<Fault> pathFaults = faults.get(path);
+    return pathFaults == null || pathFaults.isEmpty() ? null : pathFaults.poll();
+  }
+
+  private void handle(HttpExchange exchange) throws IOException {
+    maxInFlight.accumulateAndGet(inFlight.incrementAndGet(), Math::max);
+    try {
+      String path = exchange.getRequestURI().getPath();
+      Fault fault = nextFault(path);
+      int status = 200;
+      if (fault != null) {
+        Thread.sleep(fault.delayMillis);
+        status = fault.status;
+        if (fault.retryAfter != null) {
+          exchange.getResponseHeaders().set("Retry-After", fault.retryAfter);
+        }
+      }
+      byte[] body = (status == 200 ? "ok " + path : "error").getBytes(UTF_8);
+      exchange.sendResponseHeaders(status, body.length);
+      try (OutputStream out = exchange.getResponseBody()) {
+        out.write(body);
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    } finally {
+      inFlight.decrementAndGet();
+    }
+  }
+
+  /** A response to give instead of a quick 200. */
+  private static final class Fault {
+
+    private final int status;
+    private final String retryAfter;
+    private final long delayMillis;
+
+    private Fault(int status, String retryAfter, long delayMillis) {
+      this.status = status;
+      this.retryAfter = retryAfter;
+      this.delayMillis = delayMillis;
+    }
+  }
+}
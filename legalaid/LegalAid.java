@@ -1,17 +1,23 @@
 package emspishak.nypd.legalaid;
 
-import com.google.api.client.http.GenericUrl;
-import com.google.api.client.http.HttpRequest;
-import com.google.api.client.http.HttpResponse;
+import static com.google.common.base.Preconditions.checkArgument;
+import static java.nio.charset.StandardCharsets.UTF_8;
+
 import com.google.api.client.http.HttpTransport;
 import com.google.api.client.http.javanet.NetHttpTransport;
 import com.google.common.collect.ImmutableBiMap;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 import java.io.File;
 import java.io.IOException;
 import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
 import java.util.LinkedHashMap;
 import java.util.Map;
 import java.util.Scanner;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 import org.json.JSONArray;
@@ -29,48 +35,165 @@ public final class LegalAid {
   @Option(name = "-resources", usage = "JSON file containing existing Closing Report links.")
   private File resources;
 
-  public static void main(String[] args) throws CmdLineException, IOException {
+  @Option(name = "-search-url", usage = "DocumentCloud search API URL to start from.")
+  private String searchUrl =
+      "https://api.www.documentcloud.org/api/documents/search/?organization=2723&q=%20%22ccrb%20investigative%20recommendation%22%20%22case%20summary%22&version=2.0&format=json";
+
+  @Option(
+      name = "-text-fetch-threads",
+      usage = "Number of documents to fetch text for at once, to find IDs missing from titles.")
+  private int textFetchThreads = 8;
+
+  @Option(
+      name = "-max-concurrency",
+      usage = "Most requests to DocumentCloud at once. Fewer are made while it's slow or erroring.")
+  private int maxConcurrency = 8;
+
+  @Option(name = "-max-retries", usage = "Times to retry a request that fails or times out.")
+  private int maxRetries = 5;
+
+  @Option(
+      name = "-checkpoint",
+      usage = "File to save crawl progress to, defaults to the -resources file plus .checkpoint.")
+  private File checkpointFile;
+
+  @Option(name = "-checkpoint-pages", usage = "Pages of search results between checkpoints.")
+  private int checkpointPages = 10;
+
+  @Option(name = "-resume", usage = "Continue the crawl from the last checkpoint.")
+  private boolean resume;
+
+  public static void main(String[] args)
+      throws CmdLineException, InterruptedException, IOException {
     new LegalAid().doMain(args);
   }
 
-  private void doMain(String[] args) throws CmdLineException, IOException {
+  private void doMain(String[] args) throws CmdLineException, InterruptedException, IOException {
     CmdLineParser parser = new CmdLineParser(this);
     parser.parseArgument(args);
 
-    Mode mode = LinkMode.create(resources);
+    HttpFetcher fetcher = new HttpFetcher(HTTP_TRANSPORT, maxConcurrency, maxRetries);
+    Mode mode = LinkMode.create(resources, fetcher, textFetchThreads);
+    if (checkpointFile == null) {
+      checkpointFile = new File(resources.getPath() + ".checkpoint");
+    }
 
-    String url =
-        "https://api.www.documentcloud.org/api/documents/search/?organization=2723&q=%20%22ccrb%20investigative%20recommendation%22%20%22case%20summary%22&version=2.0&format=json";
-    while (url != null) {
-      JSONObject json = fetchJson(url);
-      JSONArray docs = json.getJSONArray("results");
-      for (int i = 0; i < docs.length(); i++) {
-        JSONObject doc = docs.getJSONObject(i);
-        mode.process(doc);
-      }
+    String url = searchUrl;
+    int page = 1;
+    if (resume) {
+      JSONObject checkpoint = new JSONObject(Files.readString(checkpointFile.toPath()));
+      checkArgument(
+          checkpoint.getString("search_url").equals(searchUrl),
+          "%s is a checkpoint for a different -search-url",
+          checkpointFile);
+      url = checkpoint.isNull("next") ? null : checkpoint.getString("next");
+      page = checkpoint.getInt("page");
+      mode.resume(checkpoint);
+      System.out.printf("resuming from page %s of search results%n", page);
+    }
+
+    // Stop background text fetches however the crawl ends, so a failed page doesn't leave the JVM
+    // running.
+    try {
+      int pagesSinceCheckpoint = 0;
+      while (url != null) {
+        JSONObject json = fetchJson(fetcher, url, page++);
+        JSONArray docs = json.getJSONArray("results");
+        for (int i = 0; i < docs.length(); i++) {
+          JSONObject doc = docs.getJSONObject(i);
+          mode.process(doc);
+        }
 
-      if (json.isNull("next")) {
-        url = null;
-      } else {
-        url = json.getString("next");
+        if (json.isNull("next")) {
+          url = null;
+        } else {
+          url = json.getString("next");
+        }
+
+        // Also save once the crawl is done, so only finishing is left if entering IDs is cut short.
+        if (++pagesSinceCheckpoint >= checkpointPages || url == null) {
+          writeCheckpoint(mode.checkpoint(), url, page);
+          pagesSinceCheckpoint = 0;
+        }
       }
+
+      mode.finish();
+    } finally {
+      mode.close();
     }
+    Files.deleteIfExists(checkpointFile.toPath());
+    fetcher.printStats();
+  }
 
-    mode.finish();
+  /**
+   * Saves the next page of search results to fetch and the mode's progress. It's written to a
+   * temporary file first so a crash while writing doesn't lose the previous checkpoint.
+   */
+  private void writeCheckpoint(JSONObject checkpoint, String nextUrl, int nextPage)
+      throws IOException {
+    checkpoint
+        .put("search_url", searchUrl)
+        .put("next", nextUrl == null ? JSONObject.NULL : nextUrl)
+        .put("page", nextPage);
+    File temp =
+        File.createTempFile("checkpoint", ".tmp", checkpointFile.getAbsoluteFile().getParentFile());
+    Files.writeString(temp.toPath(), checkpoint.toString(), UTF_8);
+    Files.move(
+        temp.toPath(),
+        checkpointFile.toPath(),
+        StandardCopyOption.REPLACE_EXISTING,
+        StandardCopyOption.ATOMIC_MOVE);
   }
 
-  private static JSONObject fetchJson(String url) throws IOException {
-    GenericUrl gurl = new GenericUrl(url);
-    HttpRequest request = HTTP_TRANSPORT.createRequestFactory().buildGetRequest(gurl);
-    HttpResponse response = request.execute();
+  /** Fetches a page of search results, recorded as a JFR event. */
+  private static JSONObject fetchJson(HttpFetcher fetcher, String url, int page)
+      throws IOException {
+    SearchPageEvent event = new SearchPageEvent();
+    event.begin();
+    String body = fetcher.get(url, response -> response.parseAsString());
+    JSONObject json = new JSONObject(body);
+    if (event.shouldCommit()) {
+      event.url = url;
+      event.page = page;
+      JSONArray results = json.optJSONArray("results");
+      event.results = results == null ? 0 : results.length();
+      event.bytes = body.getBytes(UTF_8).length;
+      event.commit();
+    }
+    return json;
+  }
 
-    return new JSONObject(response.parseAsString());
+  /** URL of the text of the first page of a DocumentCloud document. */
+  private static String getFirstPageTextUrl(JSONObject doc) {
+    return String.format(
+        "%sdocuments/%s/pages/%s-p1.txt",
+        doc.getString("asset_url"), doc.get("id"), doc.getString("slug"));
+  }
+
+  /** Finds a CCRB ID in text, streaming it rather than reading it all first. */
+  private static Integer findIdInText(HttpFetcher fetcher, String url) throws IOException {
+    return fetcher.get(
+        url,
+        response -> {
+          try (Scanner text = new Scanner(response.getContent(), UTF_8)) {
+            String id = text.findWithinHorizon(CCRB_ID, 0);
+            return id == null ? null : Integer.parseInt(id);
+          }
+        });
   }
 
   private static interface Mode {
     void process(JSONObject responseJson);
 
-    void finish();
+    void finish() throws InterruptedException;
+
+    /** Progress so far, to resume from with resume(). */
+    JSONObject checkpoint();
+
+    void resume(JSONObject checkpoint);
+
+    /** Stops any background work, whether or not the crawl finished. */
+    void close();
   }
 
   private static final class LinkMode implements Mode {
@@ -79,15 +202,35 @@ public final class LegalAid {
     private final Scanner in;
     private final ImmutableBiMap<Integer, String> idToUrl;
     private final ImmutableBiMap<String, Integer> urlToId;
+    private final HttpFetcher fetcher;
+
+    /** Fetches text of documents without an ID in their title, in the background. */
+    private final ExecutorService textFetcher;
 
-    private LinkMode(ImmutableBiMap<Integer, String> idToUrl) {
+    /** Map from URL of documents without an ID in their title, to the ID found in their text. */
+    private final Map<String, Future<Integer>> pending;
+
+    /** Map from URL of documents in pending, to the URL of their text, for checkpoints. */
+    private final Map<String, String> pendingTextUrls;
+
+    private LinkMode(
+        ImmutableBiMap<Integer, String> idToUrl, HttpFetcher fetcher, int textFetchThreads) {
       urls = new LinkedHashMap<>();
       in = new Scanner(System.in);
       this.idToUrl = idToUrl;
       urlToId = idToUrl.inverse();
+      this.fetcher = fetcher;
+      // Daemon threads, so a fetch that's stuck doesn't keep the JVM running after a failure.
+      textFetcher =
+          Executors.newFixedThreadPool(
+              textFetchThreads,
+              new ThreadFactoryBuilder().setNameFormat("text-fetch-%d").setDaemon(true).build());
+      pending = new LinkedHashMap<>();
+      pendingTextUrls = new LinkedHashMap<>();
     }
 
-    private static LinkMode create(File resources) throws IOException {
+    private static LinkMode create(File resources, HttpFetcher fetcher, int textFetchThreads)
+        throws IOException {
       JSONArray complaints =
           new JSONObject(Files.readString(resources.toPath())).getJSONArray("complaints");
       ImmutableBiMap.Builder<Integer, String> idToUrl = ImmutableBiMap.builder();
@@ -100,7 +243,7 @@ public final class LegalAid {
         }
       }
 
-      return new LinkMode(idToUrl.build());
+      return new LinkMode(idToUrl.build(), fetcher, textFetchThreads);
     }
 
     @Override
@@ -112,17 +255,20 @@ public final class LegalAid {
       }
 
       Matcher m = CCRB_ID.matcher(doc.getString("title"));
-      int id;
       if (m.find()) {
-        id = Integer.parseInt(m.group(1));
-      } else {
-        System.out.printf("Enter ID for %s : ", docUrl);
-        id = in.nextInt();
-        if (id == 0) {
-          return;
-        }
+        addId(Integer.parseInt(m.group(1)), docUrl);
+      } else if (!pending.containsKey(docUrl)) {
+        // Most Closing Reports have the ID on the first page, so look there before asking.
+        searchText(docUrl, getFirstPageTextUrl(doc));
       }
+    }
 
+    private void searchText(String docUrl, String textUrl) {
+      pending.put(docUrl, textFetcher.submit(() -> findIdInText(fetcher, textUrl)));
+      pendingTextUrls.put(docUrl, textUrl);
+    }
+
+    private void addId(int id, String docUrl) {
       if (idToUrl.containsKey(id)) {
         System.out.println("already have " + id);
         return;
@@ -137,7 +283,30 @@ public final class LegalAid {
     }
 
     @Override
-    public void finish() {
+    public void finish() throws InterruptedException {
+      // Nothing else is submitted, and asking for IDs can fail on EOF, so shut down first. Fetches
+      // already submitted still finish.
+      textFetcher.shutdown();
+      for (Map.Entry<String, Future<Integer>> doc : pending.entrySet()) {
+        String docUrl = doc.getKey();
+        Integer id;
+        try {
+          id = doc.getValue().get();
+        } catch (ExecutionException e) {
+          System.out.printf("couldn't fetch text for %s: %s%n", docUrl, e.getCause());
+          id = null;
+        }
+
+        if (id == null) {
+          System.out.printf("Enter ID for %s : ", docUrl);
+          id = in.nextInt();
+          if (id == 0) {
+            continue;
+          }
+        }
+        addId(id, docUrl);
+      }
+
       for (Map.Entry<Integer, String> doc : urls.entrySet()) {
         System.out.println("    {");
         System.out.printf("      url: '%s',%n", doc.getValue());
@@ -146,5 +315,42 @@ public final class LegalAid {
         System.out.println("    },");
       }
     }
+
+    /**
+     * Saves the links found so far, and documents whose text is still being searched for an ID.
+     * Both are arrays of pairs so they keep their order.
+     */
+    @Override
+    public JSONObject checkpoint() {
+      JSONArray savedUrls = new JSONArray();
+      for (Map.Entry<Integer, String> doc : urls.entrySet()) {
+        savedUrls.put(new JSONArray().put(doc.getKey()).put(doc.getValue()));
+      }
+      JSONArray savedPending = new JSONArray();
+      for (Map.Entry<String, String> doc : pendingTextUrls.entrySet()) {
+        savedPending.put(new JSONArray().put(doc.getKey()).put(doc.getValue()));
+      }
+      return new JSONObject().put("urls", savedUrls).put("pending", savedPending);
+    }
+
+    /** Restores saved links, and starts searching pending documents' text again. */
+    @Override
+    public void resume(JSONObject checkpoint) {
+      JSONArray savedUrls = checkpoint.getJSONArray("urls");
+      for (int i = 0; i < savedUrls.length(); i++) {
+        JSONArray doc = savedUrls.getJSONArray(i);
+        urls.put(doc.getInt(0), doc.getString(1));
+      }
+      JSONArray savedPending = checkpoint.getJSONArray("pending");
+      for (int i = 0; i < savedPending.length(); i++) {
+        JSONArray doc = savedPending.getJSONArray(i);
+        searchText(doc.getString(0), doc.getString(1));
+      }
+    }
+
+    @Override
+    public void close() {
+      textFetcher.shutdownNow();
+    }
   }
 }
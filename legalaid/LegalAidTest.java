@@ -0,0 +1,188 @@
+package emspishak.nypd.legalaid;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertThrows;
+import static org.junit.Assert.assertTrue;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.nio.file.Files;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import org.json.JSONArray;
+import org.json.JSONObject;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Runs LegalAid against a local DocumentCloud with one document for each place an ID can be found:
+ * the title, the first page's text, and neither, where it's entered at the prompt.
+ */
+public final class LegalAidTest {
+
+  private static final String ID_IN_TITLE = "https://example.com/documents/1-title";
+  private static final String ID_IN_TEXT = "https://example.com/documents/2-text";
+  private static final String ID_IN_NEITHER = "https://example.com/documents/3-neither";
+
+  /** Text of each document's first page, by the path it's served at. */
+  private static final ImmutableMap<String, String> FIRST_PAGES =
+      ImmutableMap.of(
+          "/assets/documents/1/pages/title-p1.txt", "Case Summary",
+          "/assets/documents/2/pages/text-p1.txt", "CCRB Case # 202100002\nCase Summary",
+          "/assets/documents/3/pages/neither-p1.txt", "Case Summary");
+
+  @Rule public final TemporaryFolder tempFolder = new TemporaryFolder();
+
+  private HttpServer server;
+
+  /** URL of the page of search results after the first, if any. */
+  private String nextPage;
+  private InputStream originalIn;
+  private PrintStream originalOut;
+
+  @Before
+  public void setUp() throws IOException {
+    server = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+    server.createContext("/", this::handle);
+    server.start();
+    originalIn = System.in;
+    originalOut = System.out;
+  }
+
+  @After
+  public void tearDown() {
+    System.setIn(originalIn);
+    System.setOut(originalOut);
+    server.stop(0);
+  }
+
+  @Test
+  public void findsIdsInTitleThenTextThenPrompt() throws Exception {
+    String output = runLegalAid("202100003\n");
+
+    assertTrue(output, output.contains("Enter ID for " + ID_IN_NEITHER));
+    assertEquals(
+        ImmutableList.of(
+            "202100001 " + ID_IN_TITLE, "202100002 " + ID_IN_TEXT, "202100003 " + ID_IN_NEITHER),
+        getLinks(output));
+  }
+
+  @Test
+  public void skipsDocumentWhenPromptIsAnsweredWithZero() throws Exception {
+    String output = runLegalAid("0\n");
+
+    assertEquals(
+        ImmutableList.of("202100001 " + ID_IN_TITLE, "202100002 " + ID_IN_TEXT), getLinks(output));
+  }
+
+  @Test
+  public void stopsTextFetchesWhenSearchPageFails() throws Exception {
+    int deadPort;
+    try (ServerSocket socket = new ServerSocket(0)) {
+      deadPort = socket.getLocalPort();
+    }
+    nextPage = String.format("http://localhost:%s/search", deadPort);
+
+    assertThrows(IOException.class, () -> runLegalAid(""));
+
+    // The JVM would otherwise never exit, since the pool is only shut down by finishing.
+    long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+    while (hasTextFetchThreads() && System.nanoTime() < deadline) {
+      Thread.sleep(50);
+    }
+    assertFalse("text fetch threads still running", hasTextFetchThreads());
+  }
+
+  private static boolean hasTextFetchThreads() {
+    return Thread.getAllStackTraces().keySet().stream()
+        .anyMatch(thread -> thread.getName().startsWith("text-fetch-") && thread.isAlive());
+  }
+
+  /** Runs LegalAid with the given answers to its prompts, and returns what it printed. */
+  private String runLegalAid(String input) throws Exception {
+    File resources = tempFolder.newFile("resources.json");
+    Files.writeString(
+        resources.toPath(), new JSONObject().put("complaints", new JSONArray()).toString(), UTF_8);
+    ByteArrayOutputStream output = new ByteArrayOutputStream();
+    System.setIn(new ByteArrayInputStream(input.getBytes(UTF_8)));
+    System.setOut(new PrintStream(output, true, UTF_8));
+
+    LegalAid.main(
+        new String[] {
+          "-resources", resources.getPath(), "-search-url", getUrl("/search"), "-max-retries", "0"
+        });
+
+    System.setOut(originalOut);
+    return output.toString(UTF_8);
+  }
+
+  /** The "ID URL" of each link LegalAid printed, in order. */
+  private static ImmutableList<String> getLinks(String output) {
+    Matcher m =
+        Pattern.compile("url: '([^']*)',\\R.*\\R\\s*complaint: '(\\d+)'").matcher(output);
+    ImmutableList.Builder<String> links = ImmutableList.builder();
+    while (m.find()) {
+      links.add(m.group(2) + " " + m.group(1));
+    }
+    return links.build();
+  }
+
+  private void handle(HttpExchange exchange) throws IOException {
+    String path = exchange.getRequestURI().getPath();
+    String body;
+    if (path.equals("/search")) {
+      body =
+          new JSONObject()
+              .put(
+                  "results",
+                  new JSONArray()
+                      .put(getDocument(1, "title", "Closing Report 202100001", ID_IN_TITLE))
+                      .put(getDocument(2, "text", "Closing Report", ID_IN_TEXT))
+                      .put(getDocument(3, "neither", "Closing Report", ID_IN_NEITHER)))
+              .put("next", nextPage == null ? JSONObject.NULL : nextPage)
+              .toString();
+    } else if (FIRST_PAGES.containsKey(path)) {
+      body = FIRST_PAGES.get(path);
+    } else {
+      exchange.sendResponseHeaders(404, -1);
+      exchange.close();
+      return;
+    }
+
+    byte[] bytes = body.getBytes(UTF_8);
+    exchange.sendResponseHeaders(200, bytes.length);
+    try (OutputStream out = exchange.getResponseBody()) {
+      out.write(bytes);
+    }
+  }
+
+  private JSONObject getDocument(int id, String slug, String title, String canonicalUrl) {
+    return new JSONObject()
+        .put("id", id)
+        .put("slug", slug)
+        .put("title", title)
+        .put("canonical_url", canonicalUrl)
+        .put("asset_url", getUrl("/assets/"));
+  }
+
+  private String getUrl(String path) {
+    return String.format("http://localhost:%s%s", server.getAddress().getPort(), path);
+  }
+}
@@ -0,0 +1,28 @@
+package emspishak.nypd.legalaid;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+/** JFR event for fetching and parsing one page of DocumentCloud search results. */
+@Name("emspishak.nypd.SearchPage")
+@Label("Search Page")
+@Category({"NYPD", "LegalAid"})
+@Description("Fetching and parsing one page of DocumentCloud search results")
+final class SearchPageEvent extends jdk.jfr.Event {
+
+  @Label("URL")
+  String url;
+
+  @Label("Page")
+  int page;
+
+  @Label("Results")
+  int results;
+
+  @Label("Response Size")
+  @DataAmount
+  long bytes;
+}
@@ -0,0 +1,288 @@
+package emspishak.nypd.lettercache;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static java.nio.file.StandardWatchEventKinds.ENTRY_CREATE;
+import static java.nio.file.StandardWatchEventKinds.ENTRY_MODIFY;
+
+import com.google.common.base.Stopwatch;
+import com.google.common.base.Throwables;
+import com.google.common.collect.ImmutableList;
+import com.google.common.hash.Hashing;
+import com.google.common.io.Files;
+import com.google.common.util.concurrent.MoreExecutors;
+import com.opencsv.CSVWriter;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.nio.file.FileSystems;
+import java.nio.file.Path;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Pattern;
+import org.json.JSONArray;
+
+/**
+ * Runs a tool over the 26 nypd-profiles-X.json letter files, caching the CSV rows each letter file
+ * produces. Updates to the profile data usually only change a few letter files, so only letter
+ * files whose contents changed since the last run are parsed again; rows for the rest are copied
+ * from the cache. Outputs are then put back together from each letter's rows, in letter order.
+ *
+ * <p>Each tool caches in its own subdirectory, which has a directory per letter with a file of rows
+ * per output, and a key file with the hash of the letter file and the tool's own key (e.g. a hash
+ * of other inputs), written last.
+ */
+public final class LetterCache {
+
+  private static final Pattern LETTER_FILE = Pattern.compile("nypd-profiles-[A-Z]\\.json");
+
+  private static final Pattern TOOL = Pattern.compile("[a-z0-9-]+");
+
+  /** How long to wait for more changes after one, since updates rewrite several files at once. */
+  private static final long SETTLE_MILLIS = 2000;
+
+  private final File profileDir;
+  private final File toolDir;
+  private final boolean temporary;
+  private final String tool;
+  private final String toolKey;
+  private final int threads;
+  private final ImmutableList<Output> outputs;
+  private final LetterProcessor processor;
+
+  /**
+   * @param cacheDir directory to cache rows in, or null to use a temporary directory for this run
+   * @param tool name of the tool, so tools sharing cacheDir don't use each other's rows
+   * @param toolKey anything besides the letter file that rows depend on, including a version of the
+   *     tool's rows, so they're recomputed when it changes
+   * @param threads letter files to process at once, which the processor has to be safe for
+   */
+  public LetterCache(
+      File profileDir,
+      File cacheDir,
+      String tool,
+      String toolKey,
+      int threads,
+      ImmutableList<Output> outputs,
+      LetterProcessor processor)
+      throws IOException {
+    this.profileDir = profileDir;
+    checkArgument(TOOL.matcher(tool).matches(), "invalid tool name: %s", tool);
+    toolDir = new File(cacheDir == null ? createTempDir() : cacheDir, tool);
+    temporary = cacheDir == null;
+    deleteOnExitIfTemporary(toolDir);
+    this.tool = tool;
+    this.toolKey = toolKey;
+    checkArgument(threads > 0, "threads must be positive: %s", threads);
+    this.threads = threads;
+    this.outputs = outputs;
+    this.processor = processor;
+  }
+
+  private static File createTempDir() throws IOException {
+    File dir = java.nio.file.Files.createTempDirectory("letter-cache").toFile();
+    dir.deleteOnExit();
+    return dir;
+  }
+
+  /**
+   * Processes letter files that changed since they were cached, then writes all outputs. Up to
+   * threads letter files are processed at once.
+   */
+  public void update() throws IOException {
+    Stopwatch stopwatch = Stopwatch.createStarted();
+    List<Callable<Void>> changed = new ArrayList<>();
+    for (char c = 'A'; c <= 'Z'; c++) {
+      char letter = c;
+      File keyFile = new File(getLetterDir(letter), "key");
+      String key =
+          String.join(
+              " ",
+              Files.asByteSource(getLetterFile(letter)).hash(Hashing.sha256()).toString(),
+              tool,
+              toolKey);
+      if (!keyFile.isFile() || !Files.asCharSource(keyFile, UTF_8).read().equals(key)) {
+        changed.add(
+            () -> {
+              process(letter, key);
+              return null;
+            });
+      }
+    }
+    runAll(changed);
+
+    for (int i = 0; i < outputs.size(); i++) {
+      writeOutput(i);
+    }
+    System.out.printf("processed %s of 26 letter files in %s%n", changed.size(), stopwatch);
+  }
+
+  /** Runs tasks threads at a time, or one after the other in this thread with one thread. */
+  private void runAll(List<Callable<Void>> tasks) throws IOException {
+    ExecutorService executor =
+        threads == 1
+            ? MoreExecutors.newDirectExecutorService()
+            : Executors.newFixedThreadPool(threads);
+    try {
+      for (Future<Void> future : executor.invokeAll(tasks)) {
+        future.get();
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new InterruptedIOException("interrupted while processing letter files");
+    } catch (ExecutionException e) {
+      Throwables.throwIfInstanceOf(e.getCause(), IOException.class);
+      Throwables.throwIfUnchecked(e.getCause());
+      throw new IOException(e.getCause());
+    } finally {
+      executor.shutdownNow();
+    }
+  }
+
+  /** Processes one letter file, caching its rows under key. */
+  private void process(char letter, String key) throws IOException {
+    File jsonFile = getLetterFile(letter);
+    File letterDir = getLetterDir(letter);
+    File keyFile = new File(letterDir, "key");
+    LetterFileEvent event = new LetterFileEvent();
+    event.begin();
+    // Delete the key first, so rows that are only partly written are never used.
+    keyFile.delete();
+    letterDir.mkdirs();
+    deleteOnExitIfTemporary(letterDir);
+    ImmutableList.Builder<CSVWriter> writers = ImmutableList.builder();
+    for (int i = 0; i < outputs.size(); i++) {
+      File rows = getRowsFile(letterDir, i);
+      deleteOnExitIfTemporary(rows);
+      writers.add(new CSVWriter(new FileWriter(rows)));
+    }
+    ImmutableList<CSVWriter> letterWriters = writers.build();
+    int profileCount;
+    try {
+      JSONArray profiles = new JSONArray(Files.asCharSource(jsonFile, UTF_8).read());
+      profileCount = profiles.length();
+      processor.process(profiles, letterWriters);
+    } finally {
+      for (CSVWriter writer : letterWriters) {
+        writer.close();
+      }
+    }
+    Files.asCharSink(keyFile, UTF_8).write(key);
+    deleteOnExitIfTemporary(keyFile);
+
+    if (event.shouldCommit()) {
+      event.letter = Character.toString(letter);
+      event.bytes = jsonFile.length();
+      event.profiles = profileCount;
+      for (int i = 0; i < outputs.size(); i++) {
+        event.rowBytes += getRowsFile(letterDir, i).length();
+      }
+      event.commit();
+    }
+  }
+
+  private File getLetterFile(char letter) {
+    return new File(profileDir, String.format("nypd-profiles-%s.json", letter));
+  }
+
+  private File getLetterDir(char letter) {
+    return new File(toolDir, Character.toString(letter));
+  }
+
+  /**
+   * Calls update(), then again every time a letter file in the profile directory changes. This
+   * doesn't return unless interrupted.
+   */
+  public void watch() throws IOException, InterruptedException {
+    update();
+    try (WatchService watcher = FileSystems.getDefault().newWatchService()) {
+      profileDir.toPath().register(watcher, ENTRY_CREATE, ENTRY_MODIFY);
+      System.out.printf("watching %s for changes%n", profileDir);
+      while (true) {
+        WatchKey key = watcher.take();
+        boolean changed = false;
+        // Keep collecting changes until they settle down.
+        while (key != null) {
+          changed |= hasLetterFileEvent(key);
+          key.reset();
+          key = watcher.poll(SETTLE_MILLIS, TimeUnit.MILLISECONDS);
+        }
+        if (!changed) {
+          continue;
+        }
+
+        try {
+          update();
+        } catch (IOException | RuntimeException e) {
+          // A letter file may be mid-write; try again on the next change.
+          System.out.printf("couldn't update outputs: %s%n", e);
+        }
+      }
+    }
+  }
+
+  private static boolean hasLetterFileEvent(WatchKey key) {
+    boolean changed = false;
+    for (WatchEvent<?> event : key.pollEvents()) {
+      if (event.context() instanceof Path
+          && LETTER_FILE.matcher(((Path) event.context()).getFileName().toString()).matches()) {
+        changed = true;
+      }
+    }
+    return changed;
+  }
+
+  /** Writes an output's headers followed by the cached rows for every letter, in order. */
+  private void writeOutput(int index) throws IOException {
+    Output output = outputs.get(index);
+    try (OutputStream out = new BufferedOutputStream(new FileOutputStream(output.file))) {
+      CSVWriter headerWriter = new CSVWriter(new OutputStreamWriter(out));
+      headerWriter.writeNext(output.headers);
+      headerWriter.flush();
+      for (char c = 'A'; c <= 'Z'; c++) {
+        Files.copy(getRowsFile(getLetterDir(c), index), out);
+      }
+    }
+  }
+
+  private static File getRowsFile(File letterDir, int index) {
+    return new File(letterDir, String.format("rows-%s.csv", index));
+  }
+
+  private void deleteOnExitIfTemporary(File file) {
+    if (temporary) {
+      file.deleteOnExit();
+    }
+  }
+
+  /** Writes the rows for the profiles in one letter file, to one writer per output. */
+  public interface LetterProcessor {
+    void process(JSONArray profiles, ImmutableList<CSVWriter> writers) throws IOException;
+  }
+
+  /** A CSV output file, made of the rows for every letter file. */
+  public static final class Output {
+
+    private final File file;
+    private final String[] headers;
+
+    public Output(File file, String[] headers) {
+      this.file = file;
+      this.headers = headers;
+    }
+  }
+}
@@ -0,0 +1,30 @@
+package emspishak.nypd.lettercache;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+/** JFR event for parsing and processing one profile letter file. */
+@Name("emspishak.nypd.LetterFile")
+@Label("Letter File")
+@Category({"NYPD", "Letter Cache"})
+@Description("Parsing one nypd-profiles-X.json file and writing its rows")
+final class LetterFileEvent extends jdk.jfr.Event {
+
+  @Label("Letter")
+  String letter;
+
+  @Label("File Size")
+  @DataAmount
+  long bytes;
+
+  @Label("Profiles")
+  int profiles;
+
+  @Label("Rows Size")
+  @Description("Size of the CSV rows written for all outputs")
+  @DataAmount
+  long rowBytes;
+}
@@ -0,0 +1,216 @@
+package emspishak.nypd.loadtest;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import com.google.common.base.Splitter;
+import com.google.common.base.Stopwatch;
+import com.google.common.collect.ImmutableList;
+import com.google.common.io.Files;
+import com.opencsv.CSVWriter;
+import emspishak.nypd.syntheticcorpus.DocumentCloudServer;
+import emspishak.nypd.syntheticcorpus.SyntheticCorpus;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import org.kohsuke.args4j.CmdLineException;
+import org.kohsuke.args4j.CmdLineParser;
+import org.kohsuke.args4j.Option;
+
+/**
+ * Runs ProfilePayroll, SrgTraining, NstTraining and LegalAid end to end on synthetic corpora at
+ * several scales, and records each run's wall time, peak RSS and GC time.
+ *
+ * <p>Each tool runs in its own JVM through the launcher, so one tool's heap and GC don't affect
+ * the next. Peak RSS is the child's high water mark from /proc (so it's only recorded on Linux),
+ * and GC time is what the launcher reports when the tool finishes. LegalAid crawls a local
+ * DocumentCloudServer instead of DocumentCloud.
+ */
+public final class LoadTest {
+
+  private static final String[] OUTPUT_HEADERS = {
+    "scale", "tool", "exit_code", "wall_ms", "peak_rss_mb", "gc_ms",
+  };
+
+  /** The launcher's last line, with the tool's GC time. */
+  private static final Pattern GC_TIME = Pattern.compile("(\\d+) ms in GC");
+
+  private static final Pattern PEAK_RSS = Pattern.compile("VmHWM:\\s+(\\d+) kB");
+
+  /** How often to check a child's peak RSS. It's a high water mark, so this can be infrequent. */
+  private static final long RSS_POLL_MILLIS = 100;
+
+  @Option(name = "-work-dir", usage = "Directory for generated corpora, tool outputs and logs.")
+  private File workDir;
+
+  @Option(name = "-scales", usage = "Comma separated multiples of NYC's size to test at.")
+  private String scales = "1,10,100";
+
+  @Option(name = "-seed", usage = "Seed for the generated corpora.")
+  private long seed = 1;
+
+  @Option(name = "-years", usage = "Fiscal years of payroll data to generate.")
+  private int years = 5;
+
+  @Option(
+      name = "-documents",
+      usage = "DocumentCloud documents for LegalAid to crawl at scale 1, multiplied by the scale.")
+  private int documents = 2000;
+
+  @Option(name = "-jvm-args", usage = "Space separated JVM flags for each tool, e.g. -Xmx16g.")
+  private String jvmArgs = "";
+
+  @Option(name = "-output", usage = "File for CSV output of each run's measurements.")
+  private File outputFile;
+
+  public static void main(String[] args)
+      throws CmdLineException, InterruptedException, IOException {
+    new LoadTest().doMain(args);
+  }
+
+  private void doMain(String[] args) throws CmdLineException, InterruptedException, IOException {
+    CmdLineParser parser = new CmdLineParser(this);
+    parser.parseArgument(args);
+
+    CSVWriter writer = new CSVWriter(new FileWriter(outputFile));
+    writer.writeNext(OUTPUT_HEADERS);
+    for (String scaleString : Splitter.on(',').trimResults().split(scales)) {
+      int scale = Integer.parseInt(scaleString);
+      File corpus = new File(workDir, "scale-" + scale);
+      generate(corpus, scale);
+
+      File output = new File(corpus, "output");
+      output.mkdirs();
+      writer.writeNext(
+          run(
+              scale,
+              "profile-payroll",
+              "-profile",
+              new File(corpus, "officers.csv").getPath(),
+              "-payroll",
+              new File(corpus, "payroll.csv").getPath(),
+              "-output-dir",
+              new File(output, "payroll").getPath()));
+      writer.writeNext(
+          run(
+              scale,
+              "srg-training",
+              "-profile-dir",
+              new File(corpus, "profiles").getPath(),
+              "-50a-data",
+              new File(corpus, "server-cache.json").getPath(),
+              "-output-dir",
+              new File(output, "srg").getPath()));
+      writer.writeNext(
+          run(
+              scale,
+              "nst-training",
+              "-profile-dir",
+              new File(corpus, "profiles").getPath(),
+              "-50a-data",
+              new File(corpus, "server-cache.json").getPath(),
+              "-output",
+              new File(output, "nst.csv").getPath()));
+
+      DocumentCloudServer server = DocumentCloudServer.create(documents * scale, 25, seed);
+      server.start();
+      try {
+        File resources = new File(corpus, "legal-aid-resources.json");
+        server.writeResources(resources);
+        writer.writeNext(
+            run(
+                scale,
+                "legal-aid",
+                "-resources",
+                resources.getPath(),
+                "-search-url",
+                server.getSearchUrl()));
+      } finally {
+        server.stop();
+      }
+      writer.flush();
+    }
+    writer.close();
+  }
+
+  /** Generates a corpus, unless one was already generated there with the same settings. */
+  private void generate(File corpus, int scale) throws IOException {
+    File done = new File(corpus, "generated");
+    String settings = String.format("scale %s, seed %s, years %s", scale, seed, years);
+    if (done.isFile() && Files.asCharSource(done, UTF_8).read().equals(settings)) {
+      return;
+    }
+    corpus.mkdirs();
+    SyntheticCorpus.write(corpus, scale, seed, years, 2023);
+    Files.asCharSink(done, UTF_8).write(settings);
+  }
+
+  /** Runs a tool through the launcher in a new JVM and returns its row of measurements. */
+  private String[] run(int scale, String tool, String... toolArgs)
+      throws InterruptedException, IOException {
+    List<String> command = new ArrayList<>();
+    command.add(Paths.get(System.getProperty("java.home"), "bin", "java").toString());
+    for (String arg : Splitter.on(' ').omitEmptyStrings().split(jvmArgs)) {
+      command.add(arg);
+    }
+    command.add("-cp");
+    command.add(System.getProperty("java.class.path"));
+    command.add("emspishak.nypd.launcher.Launcher");
+    command.add(tool);
+    command.addAll(ImmutableList.copyOf(toolArgs));
+
+    File log = new File(workDir, String.format("scale-%s-%s.log", scale, tool));
+    System.out.printf("scale %s: running %s, logging to %s%n", scale, tool, log);
+    Stopwatch stopwatch = Stopwatch.createStarted();
+    Process process =
+        new ProcessBuilder(command)
+            .redirectErrorStream(true)
+            .redirectOutput(log)
+            // LegalAid asks for IDs it can't find on stdin; generated documents never need that.
+            .redirectInput(ProcessBuilder.Redirect.from(new File("/dev/null")))
+            .start();
+
+    long peakRssKb = -1;
+    Path status = Paths.get("/proc", Long.toString(process.pid()), "status");
+    while (!process.waitFor(RSS_POLL_MILLIS, TimeUnit.MILLISECONDS)) {
+      peakRssKb = Math.max(peakRssKb, readPeakRssKb(status));
+    }
+    long wallMillis = stopwatch.elapsed(TimeUnit.MILLISECONDS);
+
+    String gcMillis = "";
+    for (String line : Files.asCharSource(log, UTF_8).readLines()) {
+      Matcher m = GC_TIME.matcher(line);
+      if (m.find()) {
+        gcMillis = m.group(1);
+      }
+    }
+
+    System.out.printf(
+        "scale %s: %s exited with %s after %s ms%n", scale, tool, process.exitValue(), wallMillis);
+    return new String[] {
+      Integer.toString(scale),
+      tool,
+      Integer.toString(process.exitValue()),
+      Long.toString(wallMillis),
+      peakRssKb < 0 ? "" : Long.toString(peakRssKb / 1024),
+      gcMillis,
+    };
+  }
+
+  /** Returns a process's peak RSS so far, or -1 if it isn't available. */
+  private static long readPeakRssKb(Path status) {
+    try {
+      Matcher m = PEAK_RSS.matcher(java.nio.file.Files.readString(status));
+      return m.find() ? Long.parseLong(m.group(1)) : -1;
+    } catch (IOException e) {
+      // The process exited, or this isn't Linux.
+      return -1;
+    }
+  }
+}
@@ -1,18 +1,23 @@
 package emspishak.nypd.nsttraining;
 
 import com.google.common.base.Joiner;
+import com.google.common.base.Stopwatch;
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableMap;
-import com.google.common.collect.ImmutableSet;
 import com.opencsv.CSVWriter;
+import emspishak.nypd.fiftya.FiftyAIndex;
+import emspishak.nypd.lettercache.LetterCache;
+import emspishak.nypd.profileindex.ProfileIndex;
+import emspishak.nypd.trainingdata.Courses;
+import emspishak.nypd.trainingdata.OfficerColumns;
 import java.io.File;
 import java.io.FileWriter;
 import java.io.IOException;
-import java.nio.file.Files;
 import java.time.LocalDate;
 import java.time.format.DateTimeFormatter;
-import java.util.HashSet;
-import java.util.Set;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
 import org.json.JSONArray;
 import org.json.JSONObject;
 import org.kohsuke.args4j.CmdLineException;
@@ -21,9 +26,14 @@ import org.kohsuke.args4j.Option;
 
 public final class NstTraining {
 
-  private static final ImmutableSet<String> NST_COURSE_NAMES = ImmutableSet.of(
-    "NEIGHBORHOOD SAFETY TEAM TRAINING, 7-DAY COURSE",
-    "DASHBOARD CAMERA FOR NEIGHBORHOOD SAFETY TEAMS");
+  /** Version of the rows this writes, to bump when they change so cached rows aren't reused. */
+  private static final int ROWS_VERSION = 1;
+
+  /** Map from each NST course name to its bit in a mask of NST courses taken. */
+  private static final ImmutableMap<String, Integer> NST_COURSE_BITS = getCourseBits();
+
+  /** Mask with a bit set for every NST course. */
+  private static final long ALL_NST_COURSES = (1L << Courses.NST_COURSE_NAMES.size()) - 1;
 
   private static final String[] OUTPUT_HEADERS = {
     "last_name",
@@ -51,135 +61,141 @@ public final class NstTraining {
   @Option(name = "-50a-data", usage = "50-a server-cache.json file.")
   private File fiftyAData;
 
+  @Option(
+      name = "-50a-index",
+      usage = "Index of the 50-a data, built if missing or stale. Defaults to next to -50a-data.")
+  private File fiftyAIndex;
+
   @Option(name = "-output", usage = "File for CSV output of officers with NST training.")
   private File outputFile;
 
-  public static void main(String[] args) throws CmdLineException, IOException {
+  @Option(
+      name = "-cache-dir",
+      usage = "Directory to cache each letter file's rows in, so unchanged files are skipped.")
+  private File cacheDir;
+
+  @Option(
+      name = "-letter-threads",
+      usage = "Letter files to process at once. Each one being processed is held in memory.")
+  private int letterThreads = 1;
+
+  @Option(name = "-watch", usage = "Keep running and update the output when letter files change.")
+  private boolean watch = false;
+
+  @Option(
+      name = "-tax-ids",
+      usage =
+          "File listing tax IDs, one per line. Only these officers' profiles are read, using"
+              + " -profile-index, and the letter file cache isn't used.")
+  private File taxIdFile;
+
+  @Option(
+      name = "-profile-index",
+      usage = "Index of profiles by tax ID for -tax-ids. Defaults to in -profile-dir.")
+  private File profileIndexFile;
+
+  public static void main(String[] args)
+      throws CmdLineException, InterruptedException, IOException {
     new NstTraining().doMain(args);
   }
 
-  private void doMain(String[] args) throws CmdLineException, IOException {
+  private void doMain(String[] args) throws CmdLineException, InterruptedException, IOException {
     CmdLineParser parser = new CmdLineParser(this);
     parser.parseArgument(args);
 
-    JSONObject json = new JSONObject(Files.readString(fiftyAData.toPath()));
-    ImmutableMap<Integer, JSONObject> taxIds = get50AData(json);
-    ImmutableMap<String, JSONObject> complaints = get50AComplaints(json);
+    FiftyAIndex fiftyA = FiftyAIndex.load(fiftyAData, fiftyAIndex);
+
+    if (taxIdFile != null) {
+      writeTaxIds(fiftyA);
+      return;
+    }
 
+    LetterCache letters =
+        new LetterCache(
+            profileDir,
+            cacheDir,
+            "nst-training",
+            "v" + ROWS_VERSION + " " + fiftyA.getSourceHash(),
+            letterThreads,
+            ImmutableList.of(new LetterCache.Output(outputFile, OUTPUT_HEADERS)),
+            (profiles, writers) -> processLetter(profiles, fiftyA, writers.get(0)));
+    if (watch) {
+      letters.watch();
+    } else {
+      letters.update();
+      fiftyA.printNameMatchStats();
+    }
+  }
+
+  /** Writes the output for just the officers in -tax-ids, reading only their profiles. */
+  private void writeTaxIds(FiftyAIndex fiftyA) throws IOException {
+    Stopwatch stopwatch = Stopwatch.createStarted();
+    ImmutableList<Integer> taxIds = ProfileIndex.readTaxIds(taxIdFile);
+    JSONArray profiles = ProfileIndex.load(profileDir, profileIndexFile).getProfiles(taxIds);
     CSVWriter writer = new CSVWriter(new FileWriter(outputFile));
     writer.writeNext(OUTPUT_HEADERS);
+    processLetter(profiles, fiftyA, writer);
+    writer.close();
+    System.out.printf(
+        "found %s of %s tax IDs in %s%n", profiles.length(), taxIds.size(), stopwatch);
+    fiftyA.printNameMatchStats();
+  }
 
-    for (char c = 'A'; c <= 'Z'; c++) {
-      File jsonFile = new File(profileDir, String.format("nypd-profiles-%s.json", c));
-      String contents = Files.readString(jsonFile.toPath());
-      JSONArray profiles = new JSONArray(contents);
-
-      for (int i = 0; i < profiles.length(); i++) {
-        JSONObject profile = profiles.getJSONObject(i);
-        JSONArray training;
-        try {
-          training = profile.getJSONObject("reports").getJSONArray("training");
-        } catch (Exception e) {
-          System.out.println("no training data found for " + profile.getString("full_name"));
-          continue;
-        }
-        int taxId = profile.getInt("taxid");
-
-        if (isNst(training)) {
-          String[] row;
-          JSONObject matchedData = taxIds.get(taxId);
-          row =
-              new String[] {
-                profile.getString("last_name"),
-                profile.getString("first_name"),
-                Integer.toString(taxId),
-                profile.getString("shield_no"),
-                profile.getString("rank"),
-                profile.getString("command"),
-                matchedData == null
-                    ? "0"
-                    : Integer.toString(matchedData.getInt("substantiated_count")),
-                matchedData == null
-                    ? "0"
-                    : Integer.toString(matchedData.getInt("allegation_count")),
-                matchedData == null
-                    ? ""
-                    : String.format(
-                        "https://www.50-a.org/officer/%s", matchedData.getString("unique_mos")),
-                String.format("https://oip.nypdonline.org/view/1/@TAXID=%s", taxId),
-                getLawsuitsCount(matchedData),
-                NEW_LINE.join(getComplaintDocuments(matchedData, complaints)),
-                NEW_LINE.join(getOfficerDocuments(matchedData))
-              };
-          writer.writeNext(row);
-        }
+  /** Writes rows for the NST officers in one letter file. */
+  private void processLetter(JSONArray profiles, FiftyAIndex fiftyA, CSVWriter writer) {
+    for (int i = 0; i < profiles.length(); i++) {
+      JSONObject profile = profiles.getJSONObject(i);
+      JSONArray training;
+      try {
+        training = profile.getJSONObject("reports").getJSONArray("training");
+      } catch (Exception e) {
+        System.out.println("no training data found for " + profile.getString("full_name"));
+        continue;
+      }
+      int taxId = profile.getInt("taxid");
+
+      if (isNst(training)) {
+        // Look the officer up once, since matching by name is slow for officers without a tax ID.
+        FiftyAIndex.Match match = fiftyA.match(profile);
+        JSONObject matchedData = match == null ? null : match.getOfficer();
+        List<String> row =
+            new ArrayList<>(
+                ImmutableList.of(
+                    profile.getString("last_name"),
+                    profile.getString("first_name"),
+                    Integer.toString(taxId),
+                    profile.getString("shield_no"),
+                    profile.getString("rank"),
+                    profile.getString("command")));
+        row.addAll(Arrays.asList(OfficerColumns.get50AColumns(matchedData)));
+        row.add(OfficerColumns.getProfileLink(profile));
+        row.add(getLawsuitsCount(matchedData));
+        row.add(match == null ? "" : NEW_LINE.join(match.getComplaintDocuments()));
+        row.add(match == null ? "" : NEW_LINE.join(match.getOfficerDocuments()));
+        writer.writeNext(row.toArray(new String[0]));
       }
     }
-
-    writer.close();
   }
 
   private static boolean isNst(JSONArray training) {
-    Set<String> courseNames = new HashSet<>();
+    long taken = 0;
     for (int j = 0; j < training.length(); j++) {
       JSONObject course = training.getJSONObject(j);
-      courseNames.add(course.getString("name"));
-    }
-    return courseNames.containsAll(NST_COURSE_NAMES);
-  }
-
-  /** Maps from tax ID to 50a data blob. */
-  private ImmutableMap<Integer, JSONObject> get50AData(JSONObject json) throws IOException {
-    JSONObject officers = json.getJSONObject("officers");
-
-    ImmutableMap.Builder<Integer, JSONObject> data = ImmutableMap.builder();
-    for (String mos : officers.keySet()) {
-      JSONObject profile = officers.getJSONObject(mos);
-      int taxId = profile.optInt("taxid");
-      if (taxId > 0) {
-        data.put(taxId, profile);
+      Integer bit = NST_COURSE_BITS.get(course.getString("name"));
+      if (bit != null) {
+        taken |= 1L << bit;
       }
     }
-
-    return data.build();
+    return taken == ALL_NST_COURSES;
   }
 
-  private ImmutableMap<String, JSONObject> get50AComplaints(JSONObject json) throws IOException {
-    JSONObject complaints = json.getJSONObject("complaints");
-
-    ImmutableMap.Builder<String, JSONObject> data = ImmutableMap.builder();
-    for (String id : complaints.keySet()) {
-      JSONObject complaint = complaints.getJSONObject(id);
-      data.put(id, complaint);
+  private static ImmutableMap<String, Integer> getCourseBits() {
+    ImmutableMap.Builder<String, Integer> bits = ImmutableMap.builder();
+    int bit = 0;
+    for (String name : Courses.NST_COURSE_NAMES) {
+      bits.put(name, bit++);
     }
-
-    return data.build();
-  }
-
-  private ImmutableList<String> getComplaintDocuments(
-      JSONObject officer, ImmutableMap<String, JSONObject> allComplaints) {
-    if (officer == null) {
-      return ImmutableList.of();
-    }
-
-    ImmutableList.Builder<String> docs = ImmutableList.builder();
-
-    for (Object id : officer.getJSONArray("complaints")) {
-      JSONObject complaint = allComplaints.get((String) id);
-      if (complaint.has("resources")) {
-        JSONArray complaints = complaint.getJSONObject("resources").getJSONArray("complaints");
-        for (Object detailsObj : complaints) {
-          JSONObject details = (JSONObject) detailsObj;
-          String url = details.getString("url");
-          if (url.startsWith("/")) {
-            url = String.format("https://50-a.org%s", url);
-          }
-          docs.add(url);
-        }
-      }
-    }
-
-    return docs.build();
+    return bits.build();
   }
 
   private String getLawsuitsCount(JSONObject officer) {
@@ -192,19 +208,4 @@ public final class NstTraining {
     }
     return "";
   }
-
-  private ImmutableList<String> getOfficerDocuments(JSONObject officer) {
-    if (officer == null) {
-      return ImmutableList.of();
-    }
-
-    ImmutableList.Builder<String> docs = ImmutableList.builder();
-    if (officer.has("documents")) {
-      JSONArray jsonDocuments = officer.getJSONArray("documents");
-      for (int i = 0; i < jsonDocuments.length(); i++) {
-        docs.add(jsonDocuments.getJSONObject(i).getString("url"));
-      }
-    }
-    return docs.build();
-  }
 }
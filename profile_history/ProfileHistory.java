@@ -0,0 +1,311 @@
+package emspishak.nypd.profilehistory;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import com.google.common.base.Stopwatch;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSortedSet;
+import com.google.common.collect.ListMultimap;
+import com.google.common.collect.MultimapBuilder;
+import com.google.common.collect.Sets;
+import com.google.common.hash.HashCode;
+import com.google.common.hash.HashFunction;
+import com.google.common.hash.Hashing;
+import com.opencsv.CSVWriter;
+import emspishak.nypd.trainingdata.Courses;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.time.LocalDate;
+import java.time.format.DateTimeFormatter;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.IntPredicate;
+import org.json.JSONArray;
+import org.json.JSONObject;
+import org.kohsuke.args4j.CmdLineException;
+import org.kohsuke.args4j.CmdLineParser;
+import org.kohsuke.args4j.Option;
+
+/**
+ * Follows officers across many snapshots of the NYPD profile data (e.g. historical checkouts of
+ * nypd-officer-profiles) and writes a timeline of changes for each officer: command changes, new
+ * SRG trainings and becoming NST trained.
+ *
+ * <p>Most officers don't change between snapshots, so records are content addressed: each letter
+ * file and each officer record in it is hashed, and only records that haven't been seen in an
+ * earlier snapshot are parsed. Letter files that haven't changed at all aren't even split into
+ * records.
+ */
+public final class ProfileHistory {
+
+  private static final String[] OUTPUT_HEADERS = {
+    "tax_id", "last_name", "first_name", "snapshot", "change", "from", "to", "date",
+  };
+
+  private static final DateTimeFormatter INPUT_DATE_FORMAT = DateTimeFormatter.ofPattern("M/d/u");
+
+  private static final HashFunction HASH = Hashing.sha256();
+
+  @Option(
+      name = "-snapshots",
+      usage = "File listing snapshot directories of NYPD profile JSON, one per line, oldest first.")
+  private File snapshotList;
+
+  @Option(name = "-output", usage = "File for CSV output of each officer's changes.")
+  private File outputFile;
+
+  /** Summary of every distinct officer record seen so far, by hash of the record's JSON. */
+  private final Map<HashCode, Officer> records = new HashMap<>();
+
+  /** Hashes of the records in every distinct letter file seen so far, by hash of the file. */
+  private final Map<HashCode, ImmutableList<HashCode>> letterFiles = new HashMap<>();
+
+  private final Courses courses = new Courses();
+  private final IntPredicate srgCourses = courses.matching(Courses.SRG_COURSE);
+
+  private int parsedRecords = 0;
+
+  public static void main(String[] args) throws CmdLineException, IOException {
+    new ProfileHistory().doMain(args);
+  }
+
+  private void doMain(String[] args) throws CmdLineException, IOException {
+    CmdLineParser parser = new CmdLineParser(this);
+    parser.parseArgument(args);
+
+    // Changes by tax ID, so each officer's timeline is written together.
+    ListMultimap<Integer, String[]> changes = MultimapBuilder.treeKeys().arrayListValues().build();
+    Map<Integer, Officer> previous = ImmutableMap.of();
+    boolean first = true;
+    for (String line : Files.readAllLines(snapshotList.toPath())) {
+      if (line.isBlank()) {
+        continue;
+      }
+      File snapshotDir = new File(line.trim());
+      Stopwatch stopwatch = Stopwatch.createStarted();
+      int parsedBefore = parsedRecords;
+
+      Map<Integer, Officer> current = readSnapshot(snapshotDir);
+      String snapshot = snapshotDir.getName();
+      for (Map.Entry<Integer, Officer> officer : current.entrySet()) {
+        Officer before = previous.get(officer.getKey());
+        // Unchanged records are the same Officer, since they have the same hash.
+        if (before != officer.getValue() && !first) {
+          writeChanges(changes, snapshot, before, officer.getValue());
+        }
+      }
+      if (!first) {
+        for (Map.Entry<Integer, Officer> officer : previous.entrySet()) {
+          if (!current.containsKey(officer.getKey())) {
+            changes.put(
+                officer.getKey(), getRow(officer.getValue(), snapshot, "removed", "", "", ""));
+          }
+        }
+      }
+
+      System.out.printf(
+          "%s: %s officers, parsed %s new or changed records in %s%n",
+          snapshot, current.size(), parsedRecords - parsedBefore, stopwatch);
+      previous = current;
+      first = false;
+    }
+
+    CSVWriter writer = new CSVWriter(new FileWriter(outputFile));
+    writer.writeNext(OUTPUT_HEADERS);
+    for (String[] row : changes.values()) {
+      writer.writeNext(row);
+    }
+    writer.close();
+    System.out.printf("%s distinct records across all snapshots%n", records.size());
+  }
+
+  /** Reads every officer in a snapshot, by tax ID. */
+  private Map<Integer, Officer> readSnapshot(File snapshotDir) throws IOException {
+    Map<Integer, Officer> officers = new HashMap<>();
+    for (char c = 'A'; c <= 'Z'; c++) {
+      File jsonFile = new File(snapshotDir, String.format("nypd-profiles-%s.json", c));
+      byte[] bytes = Files.readAllBytes(jsonFile.toPath());
+      HashCode fileHash = HASH.hashBytes(bytes);
+
+      ImmutableList<HashCode> recordHashes = letterFiles.get(fileHash);
+      if (recordHashes == null) {
+        recordHashes = readLetterFile(new String(bytes, UTF_8));
+        letterFiles.put(fileHash, recordHashes);
+      }
+
+      for (HashCode recordHash : recordHashes) {
+        Officer officer = records.get(recordHash);
+        if (officer != null) {
+          officers.put(officer.taxId, officer);
+        }
+      }
+    }
+    return officers;
+  }
+
+  /** Splits a letter file into records, parsing only records that haven't been seen before. */
+  private ImmutableList<HashCode> readLetterFile(String contents) {
+    ImmutableList.Builder<HashCode> recordHashes = ImmutableList.builder();
+    int depth = 0;
+    int start = -1;
+    boolean inString = false;
+    for (int i = 0; i < contents.length(); i++) {
+      char c = contents.charAt(i);
+      if (inString) {
+        if (c == '\\') {
+          i++;
+        } else if (c == '"') {
+          inString = false;
+        }
+      } else if (c == '"') {
+        inString = true;
+      } else if (c == '{' || c == '[') {
+        if (c == '{' && depth == 1) {
+          start = i;
+        }
+        depth++;
+      } else if (c == '}' || c == ']') {
+        depth--;
+        if (c == '}' && depth == 1) {
+          String record = contents.substring(start, i + 1);
+          HashCode recordHash = HASH.hashString(record, UTF_8);
+          if (!records.containsKey(recordHash)) {
+            records.put(recordHash, parseOfficer(new JSONObject(record)));
+            parsedRecords++;
+          }
+          recordHashes.add(recordHash);
+        }
+      }
+    }
+    return recordHashes.build();
+  }
+
+  private Officer parseOfficer(JSONObject profile) {
+    JSONObject reports = profile.optJSONObject("reports");
+    JSONObject summary = reports == null ? null : reports.optJSONObject("summary");
+    JSONArray training = reports == null ? null : reports.optJSONArray("training");
+
+    ImmutableSortedSet.Builder<String> srgTrainings = ImmutableSortedSet.naturalOrder();
+    Set<String> nstCourses = new HashSet<>();
+    if (training != null) {
+      for (int i = 0; i < training.length(); i++) {
+        JSONObject course = training.getJSONObject(i);
+        String name = course.getString("name");
+        if (srgCourses.test(courses.intern(name))) {
+          srgTrainings.add(String.format("%s / %s", formatDate(course.optString("date")), name));
+        }
+        if (Courses.NST_COURSE_NAMES.contains(name)) {
+          nstCourses.add(name);
+        }
+      }
+    }
+
+    return new Officer(
+        profile.getInt("taxid"),
+        profile.getString("last_name"),
+        profile.getString("first_name"),
+        profile.getString("command"),
+        summary == null ? "" : formatDate(summary.optString("assignment_date")),
+        srgTrainings.build(),
+        nstCourses.size() == Courses.NST_COURSE_NAMES.size());
+  }
+
+  /** Converts a date in the profile data to yyyy-mm-dd, like the other tools' outputs. */
+  private static String formatDate(String date) {
+    return date.isEmpty()
+        ? ""
+        : DateTimeFormatter.ISO_LOCAL_DATE.format(LocalDate.parse(date, INPUT_DATE_FORMAT));
+  }
+
+  /** Writes a row for each way an officer changed since the previous snapshot. */
+  private static void writeChanges(
+      ListMultimap<Integer, String[]> changes, String snapshot, Officer before, Officer after) {
+    if (before == null) {
+      changes.put(
+          after.taxId, getRow(after, snapshot, "added", "", after.command, after.assignmentDate));
+      for (String training : after.srgTrainings) {
+        writeTraining(changes, snapshot, after, training);
+      }
+      if (after.nst) {
+        changes.put(after.taxId, getRow(after, snapshot, "nst_trained", "", "", ""));
+      }
+      return;
+    }
+
+    if (!before.command.equals(after.command)) {
+      changes.put(
+          after.taxId,
+          getRow(after, snapshot, "command", before.command, after.command, after.assignmentDate));
+    }
+    for (String training : Sets.difference(after.srgTrainings, before.srgTrainings)) {
+      writeTraining(changes, snapshot, after, training);
+    }
+    if (after.nst && !before.nst) {
+      changes.put(after.taxId, getRow(after, snapshot, "nst_trained", "", "", ""));
+    }
+  }
+
+  /** Trainings are "date / name", so the date goes in its own column. */
+  private static void writeTraining(
+      ListMultimap<Integer, String[]> changes, String snapshot, Officer officer, String training) {
+    int separator = training.indexOf(" / ");
+    changes.put(
+        officer.taxId,
+        getRow(
+            officer,
+            snapshot,
+            "srg_training",
+            "",
+            training.substring(separator + 3),
+            training.substring(0, separator)));
+  }
+
+  private static String[] getRow(
+      Officer officer, String snapshot, String change, String from, String to, String date) {
+    return new String[] {
+      Integer.toString(officer.taxId),
+      officer.lastName,
+      officer.firstName,
+      snapshot,
+      change,
+      from,
+      to,
+      date,
+    };
+  }
+
+  /** The parts of an officer's record that changes are tracked for. */
+  private static final class Officer {
+
+    private final int taxId;
+    private final String lastName;
+    private final String firstName;
+    private final String command;
+    private final String assignmentDate;
+    private final ImmutableSortedSet<String> srgTrainings;
+    private final boolean nst;
+
+    private Officer(
+        int taxId,
+        String lastName,
+        String firstName,
+        String command,
+        String assignmentDate,
+        ImmutableSortedSet<String> srgTrainings,
+        boolean nst) {
+      this.taxId = taxId;
+      this.lastName = lastName;
+      this.firstName = firstName;
+      this.command = command;
+      this.assignmentDate = assignmentDate;
+      this.srgTrainings = srgTrainings;
+      this.nst = nst;
+    }
+
+  }
+}
@@ -0,0 +1,298 @@
+package emspishak.nypd.profileindex;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import com.google.common.base.Stopwatch;
+import com.google.common.collect.ImmutableList;
+import com.google.common.io.Files;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.Map;
+import java.util.TreeMap;
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+/**
+ * NYPD profiles by tax ID, from the nypd-profiles-X.json letter files, without parsing whole letter
+ * files.
+ *
+ * <p>The first load scans the raw bytes of every letter file for the start and end of each profile
+ * and its tax ID, and writes an index of where each profile is. Later loads memory-map the index
+ * and the letter files, and only parse the profiles that are looked up. The index stores the size
+ * and modification time of each letter file it was built from, and is rebuilt when they change.
+ *
+ * <p>Index file layout, big-endian:
+ *
+ * <pre>
+ *   magic (int), version (int), (size, modification time) for each letter file (longs),
+ *       profile count (int)
+ *   profiles: (tax ID, letter, offset, length) ints for each, sorted by tax ID
+ * </pre>
+ */
+public final class ProfileIndex {
+
+  private static final int MAGIC = 0x4e505049;
+
+  private static final int VERSION = 1;
+
+  private static final int LETTERS = 26;
+
+  private static final int HEADER_BYTES = 4 + 4 + LETTERS * 2 * 8 + 4;
+
+  private static final int ENTRY_BYTES = 4 * 4;
+
+  private static final byte[] TAX_ID_KEY = "\"taxid\"".getBytes(UTF_8);
+
+  private final File profileDir;
+  private final ByteBuffer index;
+  private final int count;
+  private final MappedByteBuffer[] letterFiles = new MappedByteBuffer[LETTERS];
+
+  private ProfileIndex(File profileDir, ByteBuffer index) {
+    this.profileDir = profileDir;
+    this.index = index;
+    count = index.getInt(HEADER_BYTES - 4);
+  }
+
+  /**
+   * Loads the index for a directory of letter files, building it first if it doesn't exist or any
+   * letter file changed since it was built.
+   *
+   * @param indexFile where the index is kept, or null to keep it in the profile directory
+   */
+  public static ProfileIndex load(File profileDir, File indexFile) throws IOException {
+    if (indexFile == null) {
+      indexFile = new File(profileDir, "nypd-profiles.index");
+    }
+    long[] stamps = getStamps(profileDir);
+
+    if (!isCurrent(indexFile, stamps)) {
+      System.out.printf("building profile index %s%n", indexFile);
+      Stopwatch stopwatch = Stopwatch.createStarted();
+      int profiles = build(profileDir, stamps, indexFile);
+      System.out.printf("indexed %s profiles in %s%n", profiles, stopwatch);
+    }
+
+    try (FileChannel channel = FileChannel.open(indexFile.toPath(), StandardOpenOption.READ)) {
+      checkArgument(channel.size() <= Integer.MAX_VALUE, "profile index too large: %s", indexFile);
+      return new ProfileIndex(
+          profileDir, channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()));
+    }
+  }
+
+  /** Reads a file of tax IDs, one per line. */
+  public static ImmutableList<Integer> readTaxIds(File file) throws IOException {
+    ImmutableList.Builder<Integer> taxIds = ImmutableList.builder();
+    for (String line : Files.asCharSource(file, UTF_8).readLines()) {
+      if (!line.isBlank()) {
+        taxIds.add(Integer.parseInt(line.trim()));
+      }
+    }
+    return taxIds.build();
+  }
+
+  private static File getLetterFile(File profileDir, int letter) {
+    return new File(profileDir, String.format("nypd-profiles-%s.json", (char) ('A' + letter)));
+  }
+
+  /** Size and modification time of each letter file. */
+  private static long[] getStamps(File profileDir) {
+    long[] stamps = new long[LETTERS * 2];
+    for (int letter = 0; letter < LETTERS; letter++) {
+      File letterFile = getLetterFile(profileDir, letter);
+      stamps[letter * 2] = letterFile.length();
+      stamps[letter * 2 + 1] = letterFile.lastModified();
+    }
+    return stamps;
+  }
+
+  /** Whether the index file exists and was built from letter files with these stamps. */
+  private static boolean isCurrent(File indexFile, long[] stamps) throws IOException {
+    if (!indexFile.isFile() || indexFile.length() < HEADER_BYTES) {
+      return false;
+    }
+    try (DataInputStream in = new DataInputStream(new FileInputStream(indexFile))) {
+      if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+        return false;
+      }
+      for (long stamp : stamps) {
+        if (in.readLong() != stamp) {
+          return false;
+        }
+      }
+      return true;
+    }
+  }
+
+  /** Builds the index and returns how many profiles are in it. */
+  private static int build(File profileDir, long[] stamps, File indexFile) throws IOException {
+    // Entries by tax ID, as (letter, offset, length). If a tax ID is in more than one profile, the
+    // first is used, like a scan through the letter files would.
+    Map<Integer, int[]> entries = new TreeMap<>();
+    for (int letter = 0; letter < LETTERS; letter++) {
+      scan(map(getLetterFile(profileDir, letter)), letter, entries);
+    }
+
+    // Write to a temporary file and move it into place, so a failed build doesn't leave a
+    // truncated index that looks current.
+    File temp =
+        File.createTempFile("profile-index", ".tmp", indexFile.getAbsoluteFile().getParentFile());
+    try (DataOutputStream out =
+        new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temp)))) {
+      out.writeInt(MAGIC);
+      out.writeInt(VERSION);
+      for (long stamp : stamps) {
+        out.writeLong(stamp);
+      }
+      out.writeInt(entries.size());
+      for (Map.Entry<Integer, int[]> entry : entries.entrySet()) {
+        out.writeInt(entry.getKey());
+        for (int value : entry.getValue()) {
+          out.writeInt(value);
+        }
+      }
+    } catch (IOException | RuntimeException e) {
+      temp.delete();
+      throw e;
+    }
+    Files.move(temp, indexFile);
+    return entries.size();
+  }
+
+  /**
+   * Finds each profile in a letter file and its tax ID, without parsing it. Letter files are an
+   * array of profile objects, and the tax ID is the "taxid" key of the profile object itself.
+   * Multi-byte UTF-8 characters never contain quote, backslash or bracket bytes, so scanning bytes
+   * is safe.
+   */
+  private static void scan(ByteBuffer json, int letter, Map<Integer, int[]> entries) {
+    int depth = 0;
+    int start = -1;
+    int taxId = 0;
+    boolean inString = false;
+    for (int i = 0; i < json.limit(); i++) {
+      byte b = json.get(i);
+      if (inString) {
+        if (b == '\\') {
+          i++;
+        } else if (b == '"') {
+          inString = false;
+        }
+      } else if (b == '"') {
+        if (depth == 2 && matches(json, i, TAX_ID_KEY)) {
+          int value = parseTaxId(json, i + TAX_ID_KEY.length);
+          if (value != 0) {
+            taxId = value;
+          }
+        }
+        inString = true;
+      } else if (b == '{' || b == '[') {
+        if (b == '{' && depth == 1) {
+          start = i;
+          taxId = 0;
+        }
+        depth++;
+      } else if (b == '}' || b == ']') {
+        depth--;
+        if (b == '}' && depth == 1 && taxId > 0) {
+          entries.putIfAbsent(taxId, new int[] {letter, start, i + 1 - start});
+        }
+      }
+    }
+  }
+
+  private static boolean matches(ByteBuffer json, int position, byte[] expected) {
+    if (position + expected.length > json.limit()) {
+      return false;
+    }
+    for (int i = 0; i < expected.length; i++) {
+      if (json.get(position + i) != expected[i]) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * Parses the value after a "taxid" key, or returns 0 if this isn't a key (e.g. it's a string
+   * value that happens to be "taxid") or the value isn't a number.
+   */
+  private static int parseTaxId(ByteBuffer json, int position) {
+    position = skipWhitespace(json, position);
+    if (position >= json.limit() || json.get(position) != ':') {
+      return 0;
+    }
+    position = skipWhitespace(json, position + 1);
+    int value = 0;
+    while (position < json.limit() && json.get(position) >= '0' && json.get(position) <= '9') {
+      value = value * 10 + (json.get(position) - '0');
+      position++;
+    }
+    return value;
+  }
+
+  private static int skipWhitespace(ByteBuffer json, int position) {
+    while (position < json.limit() && Character.isWhitespace(json.get(position))) {
+      position++;
+    }
+    return position;
+  }
+
+  private static MappedByteBuffer map(File file) throws IOException {
+    try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+      checkArgument(channel.size() <= Integer.MAX_VALUE, "letter file too large: %s", file);
+      return channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+    }
+  }
+
+  /** Returns the profile with this tax ID, or null if there's no such profile. */
+  public JSONObject getProfile(int taxId) throws IOException {
+    int low = 0;
+    int high = count - 1;
+    while (low <= high) {
+      int mid = (low + high) >>> 1;
+      int entry = HEADER_BYTES + mid * ENTRY_BYTES;
+      int midTaxId = index.getInt(entry);
+      if (midTaxId < taxId) {
+        low = mid + 1;
+      } else if (midTaxId > taxId) {
+        high = mid - 1;
+      } else {
+        ByteBuffer letterFile = getMappedLetterFile(index.getInt(entry + 4));
+        byte[] bytes = new byte[index.getInt(entry + 12)];
+        letterFile.get(index.getInt(entry + 8), bytes);
+        return new JSONObject(new String(bytes, UTF_8));
+      }
+    }
+    return null;
+  }
+
+  /** Returns the profiles with these tax IDs, in the same order, skipping any that don't exist. */
+  public JSONArray getProfiles(Iterable<Integer> taxIds) throws IOException {
+    JSONArray profiles = new JSONArray();
+    for (int taxId : taxIds) {
+      JSONObject profile = getProfile(taxId);
+      if (profile != null) {
+        profiles.put(profile);
+      }
+    }
+    return profiles;
+  }
+
+  private synchronized ByteBuffer getMappedLetterFile(int letter) throws IOException {
+    if (letterFiles[letter] == null) {
+      letterFiles[letter] = map(getLetterFile(profileDir, letter));
+    }
+    return letterFiles[letter];
+  }
+}
@@ -0,0 +1,100 @@
+package emspishak.nypd.profileindex;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import com.google.common.collect.ImmutableList;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import org.json.JSONArray;
+import org.json.JSONObject;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/** Tests scanning letter files for profiles and their tax IDs without parsing them. */
+public final class ProfileIndexTest {
+
+  @Rule public final TemporaryFolder tempFolder = new TemporaryFolder();
+
+  private File profileDir;
+
+  @Before
+  public void setUp() throws IOException {
+    profileDir = tempFolder.newFolder("profiles");
+    for (char letter = 'A'; letter <= 'Z'; letter++) {
+      writeLetterFile(letter, "[]");
+    }
+  }
+
+  @Test
+  public void findsTopLevelTaxIdsOnly() throws Exception {
+    writeLetterFile(
+        'A',
+        "[\n"
+            + "  {\"reports\": {\"taxid\": 1, \"training\": [{\"taxid\": 2}]},"
+            + " \"name\": \"taxid\", \"taxid\": 100},\n"
+            + "  {\"taxid\" : 200, \"note\": \"a \\\"quoted\\\" } and { and \\\\\"}\n"
+            + "]");
+
+    ProfileIndex index = ProfileIndex.load(profileDir, null);
+
+    assertEquals(100, index.getProfile(100).getInt("taxid"));
+    assertEquals("taxid", index.getProfile(100).getString("name"));
+    assertEquals("a \"quoted\" } and { and \\", index.getProfile(200).getString("note"));
+    assertNull(index.getProfile(1));
+    assertNull(index.getProfile(2));
+  }
+
+  @Test
+  public void skipsProfilesWithoutTaxIdsAndKeepsFirstDuplicate() throws Exception {
+    writeLetterFile('B', "[{\"name\": \"first\", \"taxid\": 300}, {\"name\": \"none\"}]");
+    writeLetterFile('C', "[{\"name\": \"second\", \"taxid\": 300}, {\"taxid\": 400}]");
+
+    ProfileIndex index = ProfileIndex.load(profileDir, null);
+
+    assertEquals("first", index.getProfile(300).getString("name"));
+    assertEquals(400, index.getProfile(400).getInt("taxid"));
+  }
+
+  @Test
+  public void getsProfilesInOrderSkippingMissing() throws Exception {
+    writeLetterFile('D', "[{\"taxid\": 5}, {\"taxid\": 3}, {\"taxid\": 9}]");
+
+    JSONArray profiles =
+        ProfileIndex.load(profileDir, null).getProfiles(ImmutableList.of(9, 4, 5, 3));
+
+    assertEquals(3, profiles.length());
+    assertEquals(9, profiles.getJSONObject(0).getInt("taxid"));
+    assertEquals(5, profiles.getJSONObject(1).getInt("taxid"));
+    assertEquals(3, profiles.getJSONObject(2).getInt("taxid"));
+  }
+
+  @Test
+  public void rebuildsWhenLetterFileChanges() throws Exception {
+    File indexFile = new File(tempFolder.getRoot(), "profiles.index");
+    writeLetterFile('E', "[{\"taxid\": 10}]");
+    assertNull(ProfileIndex.load(profileDir, indexFile).getProfile(11));
+
+    writeLetterFile('E', "[{\"taxid\": 10}, {\"taxid\": 11, \"name\": \"new\"}]");
+
+    JSONObject profile = ProfileIndex.load(profileDir, indexFile).getProfile(11);
+    assertEquals("new", profile.getString("name"));
+  }
+
+  @Test
+  public void readsTaxIdsSkippingBlankLines() throws Exception {
+    File taxIds = tempFolder.newFile("tax-ids.txt");
+    Files.writeString(taxIds.toPath(), "12\n\n 34 \n", UTF_8);
+
+    assertEquals(ImmutableList.of(12, 34), ProfileIndex.readTaxIds(taxIds));
+  }
+
+  private void writeLetterFile(char letter, String json) throws IOException {
+    File letterFile = new File(profileDir, String.format("nypd-profiles-%s.json", letter));
+    Files.writeString(letterFile.toPath(), json, UTF_8);
+  }
+}
@@ -0,0 +1,121 @@
+package emspishak.nypd.profilepayroll;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import com.google.common.collect.AbstractIterator;
+import com.google.common.collect.Iterators;
+import com.google.common.collect.PeekingIterator;
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.PriorityQueue;
+
+/**
+ * Sorts more lines than fit in memory by writing sorted runs to temporary files and merging them.
+ * Lines are sorted with String ordering, so keys should come first in each line, separated by a
+ * character that sorts before any character in the keys (like a tab).
+ */
+final class ExternalSorter {
+
+  private final File tempDir;
+  private final int maxLinesInMemory;
+  private final List<String> buffer = new ArrayList<>();
+  private final List<File> runs = new ArrayList<>();
+
+  ExternalSorter(File tempDir, int maxLinesInMemory) {
+    this.tempDir = tempDir;
+    this.maxLinesInMemory = maxLinesInMemory;
+  }
+
+  void add(String line) throws IOException {
+    buffer.add(line);
+    if (buffer.size() >= maxLinesInMemory) {
+      spill();
+    }
+  }
+
+  private void spill() throws IOException {
+    Collections.sort(buffer);
+    File run = File.createTempFile("sort-run", ".txt", tempDir);
+    run.deleteOnExit();
+    try (BufferedWriter writer = Files.newBufferedWriter(run.toPath(), UTF_8)) {
+      for (String line : buffer) {
+        writer.write(line);
+        writer.newLine();
+      }
+    }
+    runs.add(run);
+    buffer.clear();
+  }
+
+  /** Merges all lines added so far in sorted order. This can be called more than once. */
+  Iterator<String> sorted() throws IOException {
+    if (!buffer.isEmpty()) {
+      spill();
+    }
+
+    PriorityQueue<PeekingIterator<String>> queue =
+        new PriorityQueue<>(Math.max(1, runs.size()), Comparator.comparing(PeekingIterator::peek));
+    for (File run : runs) {
+      PeekingIterator<String> lines =
+          Iterators.peekingIterator(new RunIterator(Files.newBufferedReader(run.toPath(), UTF_8)));
+      if (lines.hasNext()) {
+        queue.add(lines);
+      }
+    }
+
+    return new AbstractIterator<String>() {
+      @Override
+      protected String computeNext() {
+        PeekingIterator<String> lines = queue.poll();
+        if (lines == null) {
+          return endOfData();
+        }
+        String line = lines.next();
+        if (lines.hasNext()) {
+          queue.add(lines);
+        }
+        return line;
+      }
+    };
+  }
+
+  /** Deletes all run files. */
+  void delete() {
+    for (File run : runs) {
+      run.delete();
+    }
+    runs.clear();
+  }
+
+  private static final class RunIterator extends AbstractIterator<String> {
+
+    private final BufferedReader reader;
+
+    private RunIterator(BufferedReader reader) {
+      this.reader = reader;
+    }
+
+    @Override
+    protected String computeNext() {
+      try {
+        String line = reader.readLine();
+        if (line == null) {
+          reader.close();
+          return endOfData();
+        }
+        return line;
+      } catch (IOException e) {
+        throw new UncheckedIOException(e);
+      }
+    }
+  }
+}
@@ -0,0 +1,125 @@
+package emspishak.nypd.profilepayroll;
+
+import com.google.common.collect.ArrayListMultimap;
+import com.google.common.collect.ImmutableList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Finds names within a small edit distance of a given name, for typos, transposed letters and
+ * similar. Names are indexed by their bigrams, and only names that share enough bigrams to possibly
+ * be within the distance are compared, so this doesn't compare every pair of names.
+ */
+final class FuzzyNameIndex {
+
+  /** Length of the grams names are indexed by. */
+  private static final int Q = 2;
+
+  /** Names must be at least this many characters per allowed edit, so short names don't match. */
+  private static final int CHARS_PER_EDIT = 4;
+
+  private final int maxDistance;
+  private final ImmutableList<String> names;
+  private final ArrayListMultimap<String, Integer> postings = ArrayListMultimap.create();
+
+  FuzzyNameIndex(Collection<String> names, int maxDistance) {
+    this.maxDistance = maxDistance;
+    this.names = ImmutableList.copyOf(names);
+    for (int id = 0; id < this.names.size(); id++) {
+      for (String gram : getGrams(this.names.get(id))) {
+        postings.put(gram, id);
+      }
+    }
+  }
+
+  /** Returns the indexed names within the allowed edit distance of the given name. */
+  ImmutableList<String> find(String name) {
+    int distance = getAllowedDistance(name);
+    if (distance == 0) {
+      return ImmutableList.of();
+    }
+
+    Map<Integer, Integer> sharedGrams = new HashMap<>();
+    for (String gram : getGrams(name)) {
+      for (int id : postings.get(gram)) {
+        sharedGrams.merge(id, 1, Integer::sum);
+      }
+    }
+
+    ImmutableList.Builder<String> matches = ImmutableList.builder();
+    for (Map.Entry<Integer, Integer> candidate : sharedGrams.entrySet()) {
+      String candidateName = names.get(candidate.getKey());
+      int candidateDistance = Math.min(distance, getAllowedDistance(candidateName));
+      if (Math.abs(name.length() - candidateName.length()) > candidateDistance) {
+        continue;
+      }
+      // Each edit changes at most Q + 1 grams (for a transposition), so names within the distance
+      // share at least this many.
+      int minSharedGrams =
+          Math.max(name.length(), candidateName.length()) + Q - 1 - (Q + 1) * candidateDistance;
+      if (candidate.getValue() >= minSharedGrams
+          && getDistance(name, candidateName, candidateDistance) <= candidateDistance) {
+        matches.add(candidateName);
+      }
+    }
+    return matches.build();
+  }
+
+  private int getAllowedDistance(String name) {
+    return Math.min(maxDistance, name.length() / CHARS_PER_EDIT);
+  }
+
+  /** Grams of the name padded at both ends, so the first and last letters count as much. */
+  private static List<String> getGrams(String name) {
+    String padded = "^" + name + "$";
+    ImmutableList.Builder<String> grams = ImmutableList.builder();
+    for (int i = 0; i + Q <= padded.length(); i++) {
+      grams.add(padded.substring(i, i + Q));
+    }
+    return grams.build();
+  }
+
+  /**
+   * Edit distance where a transposition of adjacent letters counts as one edit. Stops early and
+   * returns something larger than max once the distance is known to be larger than max.
+   */
+  private static int getDistance(String a, String b, int max) {
+    int[] previousPrevious = new int[b.length() + 1];
+    int[] previous = new int[b.length() + 1];
+    int[] current = new int[b.length() + 1];
+    for (int j = 0; j <= b.length(); j++) {
+      previous[j] = j;
+    }
+    int previousRowMin = 0;
+
+    for (int i = 1; i <= a.length(); i++) {
+      current[0] = i;
+      int rowMin = current[0];
+      for (int j = 1; j <= b.length(); j++) {
+        int cost = a.charAt(i - 1) == b.charAt(j - 1) ? 0 : 1;
+        current[j] =
+            Math.min(Math.min(previous[j] + 1, current[j - 1] + 1), previous[j - 1] + cost);
+        if (i > 1
+            && j > 1
+            && a.charAt(i - 1) == b.charAt(j - 2)
+            && a.charAt(i - 2) == b.charAt(j - 1)) {
+          current[j] = Math.min(current[j], previousPrevious[j - 2] + 1);
+        }
+        rowMin = Math.min(rowMin, current[j]);
+      }
+      // Later rows only depend on the last two, so once both are over max the result will be too.
+      if (rowMin > max && previousRowMin > max) {
+        return max + 1;
+      }
+      previousRowMin = rowMin;
+
+      int[] reuse = previousPrevious;
+      previousPrevious = previous;
+      previous = current;
+      current = reuse;
+    }
+    return previous[b.length()];
+  }
+}
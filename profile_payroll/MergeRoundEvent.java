@@ -0,0 +1,31 @@
+package emspishak.nypd.profilepayroll;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+/** JFR event for one round of matching profiles to one fiscal year's payroll. */
+@Name("emspishak.nypd.MergeRound")
+@Label("Merge Round")
+@Category({"NYPD", "ProfilePayroll"})
+@Description("One round of matching profiles to payroll")
+final class MergeRoundEvent extends jdk.jfr.Event {
+
+  @Label("Fiscal Year")
+  String year;
+
+  @Label("Round")
+  String round;
+
+  @Label("Profiles")
+  @Description("Unmatched profiles before the round")
+  int profiles;
+
+  @Label("Payroll Rows")
+  @Description("Unmatched payroll rows before the round")
+  int payrolls;
+
+  @Label("Matches")
+  int matches;
+}
@@ -1,33 +1,54 @@
 package emspishak.nypd.profilepayroll;
 
+import static com.google.common.base.Preconditions.checkArgument;
 import static com.google.common.base.Preconditions.checkState;
-import static java.util.stream.Collectors.toCollection;
+import static com.google.common.collect.ImmutableList.toImmutableList;
+import static java.nio.charset.StandardCharsets.UTF_8;
 
 import com.google.common.base.CharMatcher;
 import com.google.common.base.MoreObjects;
+import com.google.common.base.Splitter;
+import com.google.common.base.Stopwatch;
+import com.google.common.base.Strings;
 import com.google.common.collect.ArrayListMultimap;
 import com.google.common.collect.ImmutableList;
-import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.ImmutableTable;
+import com.google.common.collect.Iterators;
 import com.google.common.collect.ObjectArrays;
-import com.opencsv.CSVReader;
+import com.google.common.collect.PeekingIterator;
+import com.google.common.io.Resources;
 import com.opencsv.CSVWriter;
-import com.opencsv.exceptions.CsvException;
+import java.io.BufferedOutputStream;
 import java.io.File;
-import java.io.FileReader;
+import java.io.FileOutputStream;
 import java.io.FileWriter;
 import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.lang.management.ManagementFactory;
 import java.math.BigDecimal;
+import java.nio.file.Files;
+import java.nio.file.Paths;
 import java.time.LocalDate;
 import java.time.format.DateTimeFormatter;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.HashMap;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import java.util.SortedMap;
+import java.util.SortedSet;
 import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.function.BiFunction;
+import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 import org.kohsuke.args4j.CmdLineException;
 import org.kohsuke.args4j.CmdLineParser;
@@ -36,266 +57,27 @@ import org.kohsuke.args4j.Option;
 /** Merges NYPD profile data with NYC payroll data. */
 public final class ProfilePayroll {
 
-  /**
-   * "Police Department" job titles that won't ever match anyone in NYPD profile data becuase
-   * they're civilian positions. This is not an exhaustive list, but just includes the most frequent
-   * titles.
-   */
-  private static final ImmutableSet<String> TITLES_TO_REMOVE =
-      ImmutableSet.of(
-          "*ADM SCHOOL SECURITY MANAGER-U",
-          "*AGENCY ATTORNEY",
-          "*ASSISTANT ADVOCATE-PD",
-          "*ATTORNEY AT LAW",
-          "*CERTIFIED LOCAL AREA NETWORK ADMINISTRATOR",
-          "*CUSTODIAL ASSISTANT",
-          "ACCOUNTANT",
-          "ADM MANAGER-NON-MGRL",
-          "ADMIN COMMUNITY RELATIONS SPECIALIST",
-          "ADMIN CONSTRUCTION PROJECT MANAGER",
-          "ADMIN CONTRACT SPECIALIST",
-          "ADMIN TESTS & MEAS SPEC",
-          "ADMIN TRAFFIC ENF AGNT-UNION",
-          "ADMIN TRAFFIC ENFRCMNT AGENT",
-          "ADMINISTRATIVE ACCOUNTANT",
-          "ADMINISTRATIVE ARCHITECT",
-          "ADMINISTRATIVE CITY PLANNER",
-          "ADMINISTRATIVE COMMUNITY RELATIONS SPECIALIST",
-          "ADMINISTRATIVE CONTRACT SPECIALIST",
-          "ADMINISTRATIVE ENGINEER",
-          "ADMINISTRATIVE GRAPHIC ARTIST",
-          "ADMINISTRATIVE INVESTIGATOR",
-          "ADMINISTRATIVE LABOR RELATIONS ANALYST",
-          "ADMINISTRATIVE MANAGEMENT AUDITOR",
-          "ADMINISTRATIVE MANAGER",
-          "ADMINISTRATIVE PRINTING SERVICES MANAGER",
-          "ADMINISTRATIVE PROCUREMENT ANALYST-NON-MGRL",
-          "ADMINISTRATIVE PROJECT MANAGER",
-          "ADMINISTRATIVE PSYCHOLOGIST",
-          "ADMINISTRATIVE PUBLIC HEALTH SANITARIAN",
-          "ADMINISTRATIVE PUBLIC INFORMATION SPECIALIST NM FORMER M1/M2",
-          "ADMINISTRATIVE PUBLIC INFORMATION SPECIALIST",
-          "ADMINISTRATIVE QUALITY ASSURANCE SPECIALIST",
-          "ADMINISTRATIVE STAFF ANALYST",
-          "ADMINISTRATIVE SUPERVISOR OF BUILDING MAINTENANCE",
-          "ADMINISTRATIVE TRANSPORTATION COORDINATOR",
-          "AGENCY ATTORNEY INTERNE",
-          "AGENCY ATTORNEY",
-          "AGENCY CHIEF CONTRACTING OFFICER",
-          "ARCHITECT",
-          "ASSISTANT ARCHITECT",
-          "ASSISTANT COMMISSIONER",
-          "ASSISTANT COUNSEL-PD",
-          "ASSISTANT DEPUTY COMMISSIONER",
-          "ASSISTANT MECHANICAL ENGINEER",
-          "ASSISTANT PRINTING PRESS OPERATOR",
-          "ASSISTANT SUPERVISING CHIEF SURGEON",
-          "ASSISTANT TO POLICE COMMISSIONOR",
-          "ASSOC SPVR OF SCHOOL SECURITY",
-          "ASSOC SUPVR OF SCHL SEC",
-          "ASSOCIATE FINGERPRINT TECHNICIAN",
-          "ASSOCIATE INVESTIGATOR",
-          "ASSOCIATE LABOR RELATIONS ANALYST",
-          "ASSOCIATE PARKING CONTROL SPECIALIST",
-          "ASSOCIATE PROJECT MANAGER",
-          "ASSOCIATE PUBLIC RECORDS OFFICER",
-          "ASSOCIATE STAFF ANALYST",
-          "ASSOCIATE TRAFFIC ENFORCEMENT AGENT",
-          "AUTO BODY WORKER",
-          "AUTO MECHANIC",
-          "AUTOMOTIVE SERVICE WORKER",
-          "BOOKBINDER",
-          "BOOKKEEPER",
-          "CARPENTER",
-          "CASE MANAGEMENT NURSE",
-          "CASHIER",
-          "CEMENT MASON",
-          "CERTIFIED IT ADMINISTRATOR",
-          "CERTIFIED IT DEVELOPER",
-          "CHAPLAIN",
-          "CHIEF OF STRATEGIC INITIATIVES",
-          "CITY ATTENDANT",
-          "CITY CUSTODIAL ASSISTANT",
-          "CITY DENTIST",
-          "CITY DEPUTY MEDICAL DIRECTOR",
-          "CITY LABORER",
-          "CITY RESEARCH SCIENTIST",
-          "CIVILIANIZATION MANAGER-PD",
-          "CLERICAL AIDE",
-          "CLERICAL ASSOCIATE",
-          "COLLEGE AIDE",
-          "COMMISSIONER",
-          "COMMUNITY ASSISTANT",
-          "COMMUNITY ASSOCIATE",
-          "COMMUNITY COORDINATOR",
-          "COMPOSITOR",
-          "COMPUTER ASSOCIATE",
-          "COMPUTER OPERATIONS MANAGER",
-          "COMPUTER PROGRAMMER ANALYST",
-          "COMPUTER SPECIALIST",
-          "COMPUTER SYSTEMS MANAGER",
-          "CONSTRUCTION PROJECT MANAGER",
-          "COUNSEL TO THE POLICE COMMISSIONER",
-          "CRIME ANALYST",
-          "CRIMINALIST ASSISTANT DIRECTOR OF LABORATORY",
-          "CRIMINALIST DEPUTY DIRECTOR OF LABATORY",
-          "CRIMINALIST DIRECTOR OF LABORATORY",
-          "CRIMINALIST",
-          "CUSTODIAN",
-          "DEPUTY CHIEF SURGEON",
-          "DIRECTOR EMPLOYEE MANAGEMENT DIVISION",
-          "DIRECTOR MANAGEMENT INFORMATION SYSTEMS",
-          "DIRECTOR OF COMMUNICATIONS",
-          "DIRECTOR OF DEPARTMENT ADVOCATES OFFICE",
-          "DIRECTOR OF INTERNAL AFFAIRS - PD",
-          "DIRECTOR OF MOTOR TRANSPORT",
-          "DIRECTOR OF ORGANIZED CRIME CONTROL-PD",
-          "DIRECTOR OF PHOTOGRAPHIC SERVICES-PD",
-          "DIRECTOR OF PSYCHOLOGICAL SERVICES",
-          "DIRECTOR OF SUPPORT SERVICES-PD",
-          "DIRECTOR OF TECHNOLOGY DEVELOPMENT-PD",
-          "DIRECTOR OF TRAINING",
-          "DIRECTOR",
-          "ECONOMIST",
-          "ELECTRICAL ENGINEER",
-          "ELECTRICIAN",
-          "ELECTRICIANS HELPER",
-          "ELEVATOR MECHANIC",
-          "EMPLOYEE ASSISTANCE PROGRAM SPECIALIST",
-          "EVIDENCE AND PROPERTY CONTROL SPECIALIST",
-          "EXECUTIVE AGENCY COUNSEL",
-          "FINGERPRINT TECHNICIAN TRAINEE",
-          "FIRST DEPUTY COMMISSIONER",
-          "FITNESS INSTRUCTOR",
-          "GLAZIER",
-          "GRAPHIC ARTIST",
-          "HEALTH SERVICES MANAGER NON MANAGERIAL LEVEL I",
-          "HORSESHOER",
-          "HOSTLER",
-          "INTELLIGENCE RESEARCH MANAGER-PD",
-          "INTELLIGENCE RESEARCH SPECIALIST-PD",
-          "INVESTIGATOR TRAINEE",
-          "INVESTIGATOR",
-          "IT AUTOMATION AND MONITORING ENGINEER",
-          "IT PROJECT SPECIALIST",
-          "IT SECURITY SPECIALIST",
-          "IT SERVICE MANAGEMENT SPECIALIST",
-          "LOCKSMITH",
-          "MAINTENANCE WORKER",
-          "MANAGEMENT AUDITOR TRAINEE",
-          "MANAGEMENT AUDITOR",
-          "MANAGER OF RADIO REPAIR OPERATIONS",
-          "MARINE MAINTENANCE MECHANIC",
-          "MEDIA SERVICES TECHNICIAN",
-          "MOTOR VEHICLE OPERATOR",
-          "MOTOR VEHICLE SUPERVISOR",
-          "OFFICE MACHINE AIDE",
-          "OILER",
-          "OPERATIONS COMMUNICATIONS SPECIALIST",
-          "PAINTER",
-          "PARALEGAL AIDE",
-          "PARKING CONTROL SPECIALIST",
-          "PHOTOGRAPHER",
-          "PHYSICIAN'S ASSISTANT",
-          "PLUMBER",
-          "PLUMBER'S HELPER",
-          "POLICE ADMINISTRATIVE AIDE",
-          "POLICE ATTENDANT",
-          "POLICE CADET",
-          "POLICE COMMUNICATIONS TECHNICIAN",
-          "POLICE SURGEON",
-          "PRECINCT COMMUNITY RELATIONS AIDE",
-          "PRECINCT RECEPTIONIST",
-          "PRINCIPAL ADMINISTRATIVE ASSOCIATE -  NON SUPVR",
-          "PRINCIPAL FINGERPRINT TECHNICIAN",
-          "PRINCIPAL POLICE COMMUNICATION TECHNICIAN",
-          "PRINTING PRESS OPERATOR",
-          "PROCUREMENT ANALYST",
-          "PROGRAM PRODUCER",
-          "PROJECT MANAGER",
-          "PROPERTY CLERK",
-          "PSYCHOLOGIST",
-          "PUBLIC HEALTH ASSISTANT",
-          "PUBLIC RECORDS OFFICER",
-          "QUALITY ASSURANCE SPECIALIST",
-          "RADIO REPAIR MECHANIC",
-          "RESEARCH ASSISTANT",
-          "ROOFER",
-          "SCHOOL CROSSING GUARD",
-          "SCHOOL SAFETY AGENT",
-          "SECRETARY OF THE DEPARTMENT",
-          "SECRETARY TO THE COMMISSIONER",
-          "SECRETARY TO THE FIRST DEPUTY COMMISSIONER-PD",
-          "SECRETARY",
-          "SENIOR IT ARCHITECT",
-          "SENIOR OFFICE APPLIANCE MAINTAINER",
-          "SENIOR PHOTOGRAPHER",
-          "SENIOR POLICE ADMINISTRATIVE AIDE",
-          "SENIOR STATIONARY ENGINEER",
-          "SHEET METAL WORKER",
-          "SPECIAL OFFICER",
-          "STAFF ANALYST TRAINEE",
-          "STAFF ANALYST",
-          "STATIONARY ENGINEER",
-          "STEAM FITTER",
-          "STEAM FITTER'S HELPER",
-          "STENOGRAPHER TO EACH DEPUTY COMMISSIONER",
-          "STENOGRAPHIC SPECIALIST",
-          "STOCK WORKER",
-          "SUMMER COLLEGE INTERN",
-          "SUMMER GRADUATE INTERN",
-          "SUPERVISING CHIEF SURGEON",
-          "SUPERVISING POLICE COMMUNICATIONS TECHNICIAN",
-          "SUPERVISOR CARPENTER",
-          "SUPERVISOR ELECTRICIAN",
-          "SUPERVISOR ELEVATOR MECHANIC",
-          "SUPERVISOR GLAZIER",
-          "SUPERVISOR LOCKSMITH",
-          "SUPERVISOR OF MECHANICAL INSTALLATIONS & MAINTENANCE",
-          "SUPERVISOR OF MECHANICS",
-          "SUPERVISOR OF OFFICE MACHINE OPERATIONS",
-          "SUPERVISOR OF RADIO REPAIR OPERATIONS",
-          "SUPERVISOR OF SCHOOL SECURITY",
-          "SUPERVISOR OF STOCK WORKERS",
-          "SUPERVISOR PAINTER",
-          "SUPERVISOR PLUMBER",
-          "SUPERVISOR ROOFER",
-          "SUPERVISOR SHEET METAL WORKER",
-          "SUPERVISOR STEAMFITTER",
-          "SUPERVISOR THERMOSTAT REPAIR",
-          "SUPERVISOR",
-          "TELECOMMUNICATIONS ASSOCIATE",
-          "TELEPHONE SERVICE TECHNICIAN",
-          "TESTS AND MEASUREMENT SPECIALIST",
-          "THERMOSTAT REPAIRER",
-          "TRAFFIC ENFORCEMENT AGENT",
-          "WELDER");
-
   /* The date format of dates in both the profile and payroll data. */
   private static final DateTimeFormatter DATE_FORMAT = DateTimeFormatter.ofPattern("M/d/yyyy");
 
-  /**
-   * A map from tax id in the profile data, to borough in the payroll data. Used when officers have
-   * the exact same name and start date.
-   */
-  private static final ImmutableMap<String, String> MANUAL_MATCHES =
-      ImmutableMap.<String, String>builder()
-          .put("939647", "MANHATTAN")
-          .put("939646", "BRONX")
-          .put("953293", "BRONX")
-          // This actually matches two officers, but they're almost exactly the same so this will
-          // just choose the first one.
-          .put("964716", "BROOKLYN")
-          .put("970111", "QUEENS")
-          .put("968062", "BROOKLYN")
-          .put("968061", "MANHATTAN")
-          .put("965460", "MANHATTAN")
-          .put("949549", "QUEENS")
-          .build();
+  /** Lines in config files starting with this are comments. */
+  private static final String CONFIG_COMMENT = "#";
+
+  /** Lines in the titles to remove config starting with this are regular expressions. */
+  private static final String REGEX_PREFIX = "regex:";
+
+  /** Manual matches with this fiscal year apply to all years. */
+  private static final String ALL_YEARS = "";
 
   /** Suffixes to strip from names in payroll data because profile data doesn't include this. */
   private static final Pattern SUFFIXES = Pattern.compile(" ((JR(\\.)?)|II|III|IV)$");
 
+  /** Output files, one per fiscal year. */
+  private static final Pattern OUTPUT_FILE = Pattern.compile("payroll_(\\d+)\\.csv");
+
+  /** In each shard directory, the original row number of each of the shard's profiles. */
+  private static final String PROFILE_ROWS_FILE = "profile_rows.txt";
+
   /** Column headers for the payroll data, since they're not included in the data file. */
   private static final String[] PAYROLL_HEADERS = {
     "Fiscal Year",
@@ -317,6 +99,10 @@ public final class ProfilePayroll {
     "Total Other Pay"
   };
 
+  /** Pay columns included for each year in the timeline output. */
+  private static final ImmutableList<String> TIMELINE_PAY_HEADERS =
+      ImmutableList.of("Base Salary", "Regular Gross Paid", "Total OT Paid", "Total Other Pay");
+
   @Option(name = "-profile", usage = "NYPD CSV profile data.")
   private File profileFile;
 
@@ -326,28 +112,191 @@ public final class ProfilePayroll {
   @Option(name = "-output-dir", usage = "Directory to output the merged data as CSV.")
   private File outputDir;
 
-  public static void main(String[] args) throws CmdLineException, CsvException, IOException {
+  @Option(
+      name = "-cross-year",
+      usage =
+          "Match years newest first, seeding each year with the payroll identities matched in"
+              + " later years, and output a per-officer pay timeline.")
+  private boolean crossYear;
+
+  @Option(
+      name = "-titles-to-remove",
+      usage = "Config of payroll titles to remove, defaults to titles_to_remove.txt.")
+  private File titlesToRemoveFile;
+
+  @Option(
+      name = "-manual-matches",
+      usage = "Config of manual tax id to borough matches, defaults to manual_matches.csv.")
+  private File manualMatchesFile;
+
+  @Option(
+      name = "-external-sort",
+      usage =
+          "Sort inputs on disk and match one last name at a time, for payroll data that doesn't fit"
+              + " in memory. This skips matching by last name prefix.")
+  private boolean externalSort;
+
+  @Option(
+      name = "-sort-buffer-rows",
+      usage = "Rows to sort in memory at a time with -external-sort.")
+  private int sortBufferRows = 1_000_000;
+
+  @Option(name = "-temp-dir", usage = "Directory for temporary files, defaults to the system's.")
+  private File tempDir;
+
+  @Option(
+      name = "-fuzzy",
+      usage =
+          "After the regular rounds, match leftover profiles to payroll with a last name within a"
+              + " small edit distance.")
+  private boolean fuzzy;
+
+  @Option(name = "-fuzzy-max-distance", usage = "Maximum last name edit distance with -fuzzy.")
+  private int fuzzyMaxDistance = 2;
+
+  @Option(
+      name = "-shards",
+      usage = "Split matching by last name across this many worker processes.")
+  private int shards;
+
+  @Option(name = "-shard-dir", usage = "Directory for shard inputs and outputs, shared by workers.")
+  private File shardDir;
+
+  @Option(
+      name = "-shard-step",
+      usage =
+          "With -shards, run everything (all) or just one step (split, work or merge) so workers"
+              + " can run on other machines with the same -shard-dir.")
+  private ShardStep shardStep = ShardStep.ALL;
+
+  @Option(name = "-shard", usage = "The shard to match with -shard-step work.")
+  private int shard;
+
+  @Option(name = "-parse-threads", usage = "Threads to parse payroll data with, defaults to cores.")
+  private int parseThreads;
+
+  @Option(
+      name = "-checkpoint-dir",
+      usage = "Directory to save each finished fiscal year's matches in, defaults to the output's.")
+  private File checkpointDir;
+
+  @Option(
+      name = "-resume",
+      usage = "Reuse the matches for fiscal years a previous run with the same inputs finished.")
+  private boolean resume;
+
+  /**
+   * Whether to skip rounds that compare different last names, which shard workers leave for the
+   * merge step.
+   */
+  private boolean exactLastNamesOnly;
+
+  private TitleFilter titleFilter;
+
+  /** The titles to remove and manual matches config, so checkpoints are only for the same ones. */
+  private ImmutableList<String> configLines;
+
+  /** A table from tax id in the profile data and fiscal year, to borough in the payroll data. */
+  private ImmutableTable<String, String, String> manualMatches;
+
+  public static void main(String[] args)
+      throws CmdLineException, InterruptedException, IOException {
     new ProfilePayroll().doMain(args);
   }
 
-  private void doMain(String[] args) throws CmdLineException, CsvException, IOException {
+  private void doMain(String[] args) throws CmdLineException, InterruptedException, IOException {
     CmdLineParser parser = new CmdLineParser(this);
     parser.parseArgument(args);
 
-    List<Profile> profiles = readProfiles(profileFile);
-    String[] profileHeaders = profiles.remove(0).getRaw();
+    ImmutableList<String> titlesToRemove = readConfig(titlesToRemoveFile, "titles_to_remove.txt");
+    ImmutableList<String> manualMatchLines = readConfig(manualMatchesFile, "manual_matches.csv");
+    titleFilter = TitleFilter.create(titlesToRemove);
+    manualMatches = readManualMatches(manualMatchLines);
+    configLines =
+        ImmutableList.<String>builder().addAll(titlesToRemove).addAll(manualMatchLines).build();
+
+    checkArgument(
+        !resume || (!externalSort && shards == 0),
+        "-resume can't be used with %s",
+        externalSort ? "-external-sort" : "-shards");
+    if (externalSort) {
+      checkArgument(!crossYear, "-cross-year can't be used with -external-sort");
+      // Only exact last names are compared, and payroll is read sequentially to sort it.
+      checkArgument(!fuzzy, "-fuzzy can't be used with -external-sort");
+      checkArgument(parseThreads == 0, "-parse-threads can't be used with -external-sort");
+      mergeExternally(RawCsv.map(profileFile), RawCsv.map(payrollFile));
+      return;
+    }
+    if (shards > 0) {
+      checkArgument(!crossYear, "-cross-year can't be used with -shards");
+      runShards();
+      return;
+    }
+
+    mergeInMemory();
+  }
+
+  /** Everything that affects matches, so checkpoints are only resumed from for the same run. */
+  private String getCheckpointSettings() throws IOException {
+    List<String> settings = new ArrayList<>();
+    for (File file : ImmutableList.of(profileFile, payrollFile)) {
+      settings.add(
+          String.format(
+              "%s %s %s",
+              file.getAbsolutePath(), file.length(), Files.getLastModifiedTime(file.toPath())));
+    }
+    settings.addAll(configLines);
+    settings.add(
+        String.format(
+            "cross year %s, fuzzy %s, fuzzy max distance %s, exact last names only %s",
+            crossYear, fuzzy, fuzzyMaxDistance, exactLastNamesOnly));
+    return String.join("\n", settings);
+  }
+
+  private void mergeInMemory() throws IOException {
+    YearCheckpoints checkpoints =
+        YearCheckpoints.create(
+            checkpointDir == null ? new File(outputDir, "checkpoint") : checkpointDir,
+            getCheckpointSettings(),
+            resume);
+
+    RawCsv profileCsv = RawCsv.map(profileFile);
+    List<Profile> profiles = readProfiles(profileCsv);
+    String[] profileHeaders = profileCsv.parse(profiles.remove(0).getRaw());
     ImmutableList<Profile> allProfiles = ImmutableList.copyOf(profiles);
 
-    SortedMap<String, ArrayListMultimap<String, Payroll>> payrolls = readPayroll(payrollFile);
+    RawCsv payrollCsv = RawCsv.map(payrollFile);
+    SortedMap<String, ArrayListMultimap<String, Payroll>> payrolls = readPayroll(payrollCsv);
 
     int totalProfiles = profiles.size();
 
     Map<String, List<Merged>> merged = new HashMap<>();
     Map<String, List<Profile>> leftoverProfiles = new HashMap<>();
-    for (String year : payrolls.keySet()) {
+    // Map from tax id to the identity of the payroll entry most recently matched to it.
+    Map<String, String> identities = new HashMap<>();
+    List<String> years = new ArrayList<>(payrolls.keySet());
+    if (crossYear) {
+      // Newer payroll data is the most reliable (and is what manual matches are set up for), so
+      // start there and work backwards.
+      Collections.reverse(years);
+    }
+    for (String year : years) {
       List<Profile> profilesCopy = new ArrayList<>(allProfiles);
 
-      List<Merged> mergedYear = merge(profilesCopy, payrolls.get(year));
+      List<Merged> mergedYear = new ArrayList<>();
+      List<long[]> checkpoint = checkpoints.read(year);
+      if (checkpoint != null) {
+        mergedYear.addAll(restore(checkpoint, profilesCopy, payrolls.get(year)));
+        System.out.printf("%s: restored %s matches from checkpoint%n", year, mergedYear.size());
+      } else {
+        if (crossYear) {
+          List<Merged> seeded = seed(profilesCopy, payrolls.get(year), identities);
+          System.out.printf("%s: seeded %s profiles from other years%n", year, seeded.size());
+          mergedYear.addAll(seeded);
+        }
+        mergedYear.addAll(merge(profilesCopy, payrolls.get(year)));
+        checkpoints.write(year, toCheckpoint(mergedYear));
+      }
       merged.put(year, mergedYear);
       leftoverProfiles.put(year, profilesCopy);
 
@@ -358,42 +307,592 @@ public final class ProfilePayroll {
           totalProfiles,
           totalProfiles - mergedYear.size(),
           payrolls.get(year).size());
+
+      if (crossYear) {
+        for (Merged m : mergedYear) {
+          identities.put(m.getProfile().getTaxId(), m.getPayroll().getIdentity());
+        }
+      }
     }
 
-    output(merged, leftoverProfiles, payrolls, profileHeaders);
+    output(merged, leftoverProfiles, payrolls, profileHeaders, profileCsv, payrollCsv);
+    if (crossYear) {
+      outputTimeline(merged, payrolls.keySet(), payrollCsv);
+    }
+    checkpoints.delete();
   }
 
-  private List<Profile> readProfiles(File profileFile) throws CsvException, IOException {
-    CSVReader reader = new CSVReader(new FileReader(profileFile));
-    return reader.readAll().stream().map(Profile::new).collect(toCollection(ArrayList::new));
+  private static List<long[]> toCheckpoint(List<Merged> merged) {
+    List<long[]> checkpoint = new ArrayList<>();
+    for (Merged m : merged) {
+      checkpoint.add(
+          new long[] {m.getProfile().getRaw().getOffset(), m.getPayroll().getRaw().getOffset()});
+    }
+    return checkpoint;
   }
 
-  private SortedMap<String, ArrayListMultimap<String, Payroll>> readPayroll(File payrollFile)
-      throws CsvException, IOException {
-    CSVReader reader = new CSVReader(new FileReader(payrollFile));
-    List<String[]> unfiltered = reader.readAll();
-    SortedMap<String, ArrayListMultimap<String, Payroll>> years = new TreeMap<>();
+  /**
+   * Redoes a year's matches from its checkpoint, removing the matched profiles and payroll like
+   * the matching rounds do, so the leftovers come out in the same order.
+   */
+  private static List<Merged> restore(
+      List<long[]> checkpoint, List<Profile> profiles, ArrayListMultimap<String, Payroll> payroll) {
+    Map<Long, Profile> profilesByOffset = new HashMap<>();
+    for (Profile profile : profiles) {
+      profilesByOffset.put(profile.getRaw().getOffset(), profile);
+    }
+    Map<Long, Payroll> payrollByOffset = new HashMap<>();
+    for (Payroll p : payroll.values()) {
+      payrollByOffset.put(p.getRaw().getOffset(), p);
+    }
 
-    for (String[] row : unfiltered) {
-      Payroll payroll = new Payroll(row);
-      if (TITLES_TO_REMOVE.contains(payroll.getTitle())) {
-        continue;
+    List<Merged> merged = new ArrayList<>();
+    for (long[] match : checkpoint) {
+      Profile profile = profilesByOffset.remove(match[0]);
+      Payroll p = payrollByOffset.remove(match[1]);
+      checkState(profile != null && p != null, "checkpoint doesn't match the inputs");
+      checkState(payroll.remove(p.getLastName(), p), p);
+      merged.add(new Merged(profile, p));
+    }
+    // Keep the unmatched profiles, in their original order.
+    profiles.removeIf(profile -> !profilesByOffset.containsKey(profile.getRaw().getOffset()));
+    return merged;
+  }
+
+  /**
+   * Reads the non-comment lines of a config file, falling back to the default config bundled with
+   * the binary if no file is given.
+   */
+  private static ImmutableList<String> readConfig(File file, String defaultResource)
+      throws IOException {
+    List<String> lines =
+        file == null
+            ? Resources.readLines(
+                Resources.getResource("profile_payroll/" + defaultResource), UTF_8)
+            : Files.readAllLines(file.toPath());
+    return lines.stream()
+        .map(String::trim)
+        .filter(line -> !line.isEmpty() && !line.startsWith(CONFIG_COMMENT))
+        .collect(toImmutableList());
+  }
+
+  private static ImmutableTable<String, String, String> readManualMatches(List<String> lines) {
+    ImmutableTable.Builder<String, String, String> matches = ImmutableTable.builder();
+    for (String line : lines) {
+      List<String> columns = Splitter.on(',').trimResults().splitToList(line);
+      checkState(columns.size() == 3, "invalid manual match: %s", line);
+      matches.put(columns.get(0), columns.get(2), columns.get(1));
+    }
+    return matches.build();
+  }
+
+  private List<Profile> readProfiles(RawCsv profileCsv) throws IOException {
+    List<Profile> profiles = new ArrayList<>();
+    profileCsv.forEachRow((row, columns) -> profiles.add(new Profile(row, columns)));
+    return profiles;
+  }
+
+  private SortedMap<String, ArrayListMultimap<String, Payroll>> readPayroll(RawCsv payrollCsv)
+      throws IOException {
+    Stopwatch stopwatch = Stopwatch.createStarted();
+    int threads = parseThreads > 0 ? parseThreads : Runtime.getRuntime().availableProcessors();
+    ImmutableList<PayrollChunk> chunks =
+        payrollCsv.forEachRowInParallel(threads, PayrollChunk::new);
+
+    // Chunks are in file order, so rows for each last name end up in the same order as they would
+    // reading the file sequentially.
+    SortedMap<String, ArrayListMultimap<String, Payroll>> years = new TreeMap<>();
+    for (PayrollChunk chunk : chunks) {
+      for (Map.Entry<String, ArrayListMultimap<String, Payroll>> year : chunk.years.entrySet()) {
+        if (!years.containsKey(year.getKey())) {
+          years.put(year.getKey(), ArrayListMultimap.create());
+        }
+        years.get(year.getKey()).putAll(year.getValue());
       }
-      // Payroll data has a bunch of entries with no names which we can't do anything with.
-      if (payroll.getFirstName().isEmpty() && payroll.getLastName().isEmpty()) {
-        continue;
+    }
+    System.out.printf("read payroll with %s threads in %s%n", threads, stopwatch);
+
+    return years;
+  }
+
+  /** Payroll rows from one chunk of the payroll file, by fiscal year and last name. */
+  private final class PayrollChunk implements RawCsv.RowVisitor {
+
+    private final Map<String, ArrayListMultimap<String, Payroll>> years = new HashMap<>();
+
+    @Override
+    public void visit(RawCsv.Row row, String[] columns) {
+      Payroll payroll = readPayrollRow(row, columns);
+      if (payroll == null) {
+        return;
       }
       if (!years.containsKey(payroll.getYear())) {
         years.put(payroll.getYear(), ArrayListMultimap.create());
       }
       years.get(payroll.getYear()).put(payroll.getLastName(), payroll);
     }
+  }
 
-    return years;
+  /** Returns null for payroll rows that can't be matched to anyone. */
+  private Payroll readPayrollRow(RawCsv.Row row, String[] columns) {
+    if (titleFilter.shouldRemove(Payroll.getTitle(columns))) {
+      return null;
+    }
+    Payroll payroll = new Payroll(row, columns);
+    // Payroll data has a bunch of entries with no names which we can't do anything with.
+    if (payroll.getFirstName().isEmpty() && payroll.getLastName().isEmpty()) {
+      return null;
+    }
+    return payroll;
+  }
+
+  /**
+   * Matches without holding all payroll data in memory. Profiles are sorted on disk by last name
+   * and payroll by fiscal year and last name, then they're merge-joined so only one last name's
+   * rows are in memory at a time. Since rows are only compared within a last name, the last name
+   * prefix round is skipped.
+   */
+  private void mergeExternally(RawCsv profileCsv, RawCsv payrollCsv) throws IOException {
+    if (!outputDir.exists()) {
+      outputDir.mkdir();
+    }
+    String[] profileHeaders = profileCsv.parseHeader();
+
+    ExternalSorter profileSorter = new ExternalSorter(tempDir, sortBufferRows);
+    profileCsv.forEachRow(
+        (row, columns) -> {
+          if (!RawCsv.isFirst(row)) {
+            profileSorter.add(toSortLine(row, new Profile(row, columns).getLastName()));
+          }
+        });
+    ExternalSorter payrollSorter = new ExternalSorter(tempDir, sortBufferRows);
+    payrollCsv.forEachRow(
+        (row, columns) -> {
+          Payroll payroll = readPayrollRow(row, columns);
+          if (payroll != null) {
+            payrollSorter.add(toSortLine(row, payroll.getYear(), payroll.getLastName()));
+          }
+        });
+
+    PeekingIterator<SortLine> payrollLines =
+        Iterators.peekingIterator(Iterators.transform(payrollSorter.sorted(), SortLine::parse));
+    while (payrollLines.hasNext()) {
+      String year = payrollLines.peek().getKey(0);
+      YearOutput output =
+          YearOutput.create(outputDir, tempDir, year, profileHeaders, profileCsv, payrollCsv);
+      PeekingIterator<SortLine> profileLines =
+          Iterators.peekingIterator(Iterators.transform(profileSorter.sorted(), SortLine::parse));
+      int totalProfiles = 0;
+      int merged = 0;
+      int leftoverPayrolls = 0;
+
+      while (payrollLines.hasNext() && year.equals(payrollLines.peek().getKey(0))) {
+        String lastName = payrollLines.peek().getKey(1);
+        ArrayListMultimap<String, Payroll> payroll = ArrayListMultimap.create();
+        while (payrollLines.hasNext()
+            && year.equals(payrollLines.peek().getKey(0))
+            && lastName.equals(payrollLines.peek().getKey(1))) {
+          RawCsv.Row row = payrollLines.next().getRow();
+          payroll.put(lastName, new Payroll(row, payrollCsv.parse(row)));
+        }
+
+        // Profiles sorted before this last name don't have any payroll with their last name.
+        while (profileLines.hasNext()
+            && profileLines.peek().getKey(0).compareTo(lastName) < 0) {
+          output.writeLeftoverProfile(profileLines.next().getRow());
+          totalProfiles++;
+        }
+        List<Profile> profiles = new ArrayList<>();
+        while (profileLines.hasNext() && profileLines.peek().getKey(0).equals(lastName)) {
+          RawCsv.Row row = profileLines.next().getRow();
+          profiles.add(new Profile(row, profileCsv.parse(row)));
+        }
+        totalProfiles += profiles.size();
+
+        for (Merged m : mergeLastNames(profiles, payroll)) {
+          output.writeMerged(m);
+          merged++;
+        }
+        for (Profile profile : profiles) {
+          output.writeLeftoverProfile(profile.getRaw());
+        }
+        for (Payroll p : payroll.values()) {
+          output.writeLeftoverPayroll(p.getRaw());
+          leftoverPayrolls++;
+        }
+      }
+      while (profileLines.hasNext()) {
+        output.writeLeftoverProfile(profileLines.next().getRow());
+        totalProfiles++;
+      }
+      output.close();
+
+      System.out.printf(
+          "%s: merged %s out of %s profiles (%s unmerged profiles, %s unmerged payrolls)%n",
+          year, merged, totalProfiles, totalProfiles - merged, leftoverPayrolls);
+    }
+
+    profileSorter.delete();
+    payrollSorter.delete();
+  }
+
+  private void runShards() throws InterruptedException, IOException {
+    switch (shardStep) {
+      case ALL:
+        splitShards();
+        runShardWorkers();
+        mergeShards();
+        break;
+      case SPLIT:
+        splitShards();
+        break;
+      case WORK:
+        workShard();
+        break;
+      case MERGE:
+        mergeShards();
+        break;
+    }
+  }
+
+  private File getShardDir(int shard) {
+    return new File(shardDir, String.format("shard-%s", shard));
+  }
+
+  /**
+   * Exact last name matching only compares rows with the same last name, so rows are split into
+   * shards by a hash of it.
+   */
+  private int getShard(String lastName) {
+    return Math.floorMod(lastName.hashCode(), shards);
+  }
+
+  /**
+   * Splits the input files into one profile and payroll file per shard. Each shard also gets the
+   * row number of each of its profiles in the original profile file, so the merge can put them back
+   * in that order.
+   */
+  private void splitShards() throws IOException {
+    OutputStream[] profileOuts = new OutputStream[shards];
+    OutputStream[] profileRowOuts = new OutputStream[shards];
+    OutputStream[] payrollOuts = new OutputStream[shards];
+    for (int i = 0; i < shards; i++) {
+      File dir = getShardDir(i);
+      dir.mkdirs();
+      profileOuts[i] =
+          new BufferedOutputStream(new FileOutputStream(new File(dir, "profiles.csv")));
+      profileRowOuts[i] =
+          new BufferedOutputStream(new FileOutputStream(new File(dir, PROFILE_ROWS_FILE)));
+      payrollOuts[i] =
+          new BufferedOutputStream(new FileOutputStream(new File(dir, "payroll.csv")));
+    }
+
+    RawCsv profileCsv = RawCsv.map(profileFile);
+    int[] profileRow = {0};
+    profileCsv.forEachRow(
+        (row, columns) -> {
+          if (RawCsv.isFirst(row)) {
+            // Every shard gets the header.
+            for (OutputStream out : profileOuts) {
+              profileCsv.write(row, out);
+              out.write('\n');
+            }
+          } else {
+            int i = getShard(new Profile(row, columns).getLastName());
+            profileCsv.write(row, profileOuts[i]);
+            profileOuts[i].write('\n');
+            profileRowOuts[i].write(String.format("%s%n", profileRow[0]++).getBytes(UTF_8));
+          }
+        });
+
+    RawCsv payrollCsv = RawCsv.map(payrollFile);
+    payrollCsv.forEachRow(
+        (row, columns) -> {
+          Payroll payroll = readPayrollRow(row, columns);
+          if (payroll != null) {
+            OutputStream out = payrollOuts[getShard(payroll.getLastName())];
+            payrollCsv.write(row, out);
+            out.write('\n');
+          }
+        });
+
+    for (int i = 0; i < shards; i++) {
+      profileOuts[i].close();
+      profileRowOuts[i].close();
+      payrollOuts[i].close();
+    }
+    System.out.printf("split inputs into %s shards in %s%n", shards, shardDir);
+  }
+
+  /** Runs a worker process for each shard on this machine, and waits for them to finish. */
+  private void runShardWorkers() throws InterruptedException, IOException {
+    // Split the parse threads between workers, since they all run at once.
+    int threads = parseThreads > 0 ? parseThreads : Runtime.getRuntime().availableProcessors();
+    int workerThreads = Math.max(1, threads / shards);
+    List<Process> workers = new ArrayList<>();
+    for (int i = 0; i < shards; i++) {
+      List<String> command = new ArrayList<>();
+      command.add(Paths.get(System.getProperty("java.home"), "bin", "java").toString());
+      // Run workers with the same JVM flags, e.g. heap size, as this process.
+      command.addAll(ManagementFactory.getRuntimeMXBean().getInputArguments());
+      command.addAll(
+          ImmutableList.of(
+              "-cp",
+              System.getProperty("java.class.path"),
+              ProfilePayroll.class.getName(),
+              "-shards",
+              Integer.toString(shards),
+              "-shard-dir",
+              shardDir.getPath(),
+              "-shard-step",
+              "work",
+              "-shard",
+              Integer.toString(i),
+              "-fuzzy-max-distance",
+              Integer.toString(fuzzyMaxDistance),
+              "-parse-threads",
+              Integer.toString(workerThreads)));
+      if (fuzzy) {
+        command.add("-fuzzy");
+      }
+      if (titlesToRemoveFile != null) {
+        command.addAll(ImmutableList.of("-titles-to-remove", titlesToRemoveFile.getPath()));
+      }
+      if (manualMatchesFile != null) {
+        command.addAll(ImmutableList.of("-manual-matches", manualMatchesFile.getPath()));
+      }
+      workers.add(
+          new ProcessBuilder(command)
+              .redirectErrorStream(true)
+              .redirectOutput(new File(getShardDir(i), "log.txt"))
+              .start());
+    }
+
+    for (int i = 0; i < shards; i++) {
+      int exitCode = workers.get(i).waitFor();
+      checkState(
+          exitCode == 0,
+          "shard %s failed with exit code %s, see %s",
+          i,
+          exitCode,
+          new File(getShardDir(i), "log.txt"));
+    }
+  }
+
+  /** Matches one shard by exact last name, writing the results to its shard directory. */
+  private void workShard() throws IOException {
+    File dir = getShardDir(shard);
+    profileFile = new File(dir, "profiles.csv");
+    payrollFile = new File(dir, "payroll.csv");
+    outputDir = dir;
+    exactLastNamesOnly = true;
+    mergeInMemory();
+  }
+
+  /**
+   * Combines the output of every shard and runs the last name prefix round over the rows that are
+   * still unmerged, since those can match across shards. Unmerged profiles go through the round,
+   * and all profiles are written, in their original order, so the output is the same as merging
+   * in memory.
+   */
+  private void mergeShards() throws IOException {
+    if (!outputDir.exists()) {
+      outputDir.mkdir();
+    }
+    String[] profileHeaders = RawCsv.map(new File(getShardDir(0), "profiles.csv")).parseHeader();
+    int profileColumns = profileHeaders.length;
+    Map<List<String>, Integer> profileRows = readProfileRows();
+
+    SortedSet<String> years = new TreeSet<>();
+    for (int i = 0; i < shards; i++) {
+      String[] files = getShardDir(i).list();
+      for (String file : files == null ? new String[0] : files) {
+        Matcher m = OUTPUT_FILE.matcher(file);
+        if (m.matches()) {
+          years.add(m.group(1));
+        }
+      }
+    }
+
+    for (String year : years) {
+      // Copy every shard's rows into one file so they can all be referenced by offset.
+      File combined = File.createTempFile("combined", ".csv", tempDir);
+      try (OutputStream out = new BufferedOutputStream(new FileOutputStream(combined))) {
+        for (int i = 0; i < shards; i++) {
+          File shardOutput = new File(getShardDir(i), String.format("payroll_%s.csv", year));
+          // Shards without any payroll for a year have no output, so all of their profiles are
+          // unmerged.
+          RawCsv shardCsv =
+              RawCsv.map(
+                  shardOutput.exists() ? shardOutput : new File(getShardDir(i), "profiles.csv"));
+          shardCsv.forEachRow(
+              (row, columns) -> {
+                if (!RawCsv.isFirst(row)) {
+                  shardCsv.write(row, out);
+                  out.write('\n');
+                }
+              });
+        }
+      }
+
+      RawCsv combinedCsv = RawCsv.map(combined);
+      List<ShardOutputRow> mergedRows = new ArrayList<>();
+      List<Profile> leftoverProfiles = new ArrayList<>();
+      Map<Profile, Integer> leftoverProfileRows = new HashMap<>();
+      ArrayListMultimap<String, Payroll> leftoverPayroll = ArrayListMultimap.create();
+      combinedCsv.forEachRow(
+          (row, columns) -> {
+            if (columns.length == profileColumns) {
+              Profile profile = new Profile(row, columns);
+              leftoverProfiles.add(profile);
+              leftoverProfileRows.put(profile, getProfileRow(profileRows, columns, profileColumns));
+            } else if (columns[0].isEmpty()) {
+              // Unmerged payroll starts with one comma for each blank profile column.
+              RawCsv.Row payrollRow =
+                  new RawCsv.Row(
+                      row.getOffset() + profileColumns, row.getLength() - profileColumns);
+              Payroll payroll =
+                  new Payroll(
+                      payrollRow, Arrays.copyOfRange(columns, profileColumns, columns.length));
+              leftoverPayroll.put(payroll.getLastName(), payroll);
+            } else {
+              mergedRows.add(
+                  new ShardOutputRow(
+                      getProfileRow(profileRows, columns, profileColumns), row, null));
+            }
+          });
+      int mergedInShards = mergedRows.size();
+      int totalProfiles = mergedInShards + leftoverProfiles.size();
+      leftoverProfiles.sort(Comparator.comparing(leftoverProfileRows::get));
+
+      List<Merged> reconciled =
+          merge(
+              leftoverProfiles,
+              leftoverPayroll,
+              "last name prefix",
+              this::findLastNamePrefixMatches);
+      if (fuzzy) {
+        reconciled.addAll(mergeFuzzy(leftoverProfiles, leftoverPayroll));
+      }
+
+      for (Merged m : reconciled) {
+        mergedRows.add(new ShardOutputRow(leftoverProfileRows.get(m.getProfile()), null, m));
+      }
+      mergedRows.sort(Comparator.comparingInt(ShardOutputRow::getProfileRow));
+
+      YearOutput output =
+          YearOutput.create(outputDir, tempDir, year, profileHeaders, combinedCsv, combinedCsv);
+      for (ShardOutputRow row : mergedRows) {
+        if (row.getMerged() == null) {
+          output.writeMergedRow(row.getRow());
+        } else {
+          output.writeMerged(row.getMerged());
+        }
+      }
+      for (Profile profile : leftoverProfiles) {
+        output.writeLeftoverProfile(profile.getRaw());
+      }
+      for (Payroll payroll : sortByLastName(leftoverPayroll)) {
+        output.writeLeftoverPayroll(payroll.getRaw());
+      }
+      output.close();
+      combined.delete();
+
+      int merged = mergedRows.size();
+      System.out.printf(
+          "%s: merged %s out of %s profiles (%s across shards, %s unmerged profiles, %s unmerged"
+              + " payrolls)%n",
+          year,
+          merged,
+          totalProfiles,
+          reconciled.size(),
+          totalProfiles - merged,
+          leftoverPayroll.size());
+    }
+  }
+
+  /** Reads every shard's profile row numbers, by the profile's columns. */
+  private Map<List<String>, Integer> readProfileRows() throws IOException {
+    Map<List<String>, Integer> profileRows = new HashMap<>();
+    for (int i = 0; i < shards; i++) {
+      Iterator<String> rows =
+          Files.readAllLines(new File(getShardDir(i), PROFILE_ROWS_FILE).toPath()).iterator();
+      RawCsv.map(new File(getShardDir(i), "profiles.csv"))
+          .forEachRow(
+              (row, columns) -> {
+                if (!RawCsv.isFirst(row)) {
+                  profileRows.put(ImmutableList.copyOf(columns), Integer.parseInt(rows.next()));
+                }
+              });
+    }
+    return profileRows;
+  }
+
+  /** Returns the original row number of the profile at the start of a row of shard output. */
+  private static int getProfileRow(
+      Map<List<String>, Integer> profileRows, String[] columns, int profileColumns) {
+    Integer profileRow = profileRows.get(Arrays.asList(columns).subList(0, profileColumns));
+    checkState(profileRow != null, "profile isn't in any shard: %s", Arrays.toString(columns));
+    return profileRow;
+  }
+
+  /**
+   * A line to sort for a row: the keys, then the row's location. The offset is zero-padded so rows
+   * with the same keys stay in file order.
+   */
+  private static String toSortLine(RawCsv.Row row, String... keys) {
+    return String.format(
+        "%s\t%019d\t%d", String.join("\t", keys), row.getOffset(), row.getLength());
+  }
+
+  /** A line from toSortLine, split once so its keys can be compared while it's peeked at. */
+  private static final class SortLine {
+
+    private final List<String> keys;
+    private final RawCsv.Row row;
+
+    private SortLine(List<String> keys, RawCsv.Row row) {
+      this.keys = keys;
+      this.row = row;
+    }
+
+    private static SortLine parse(String line) {
+      List<String> parts = Splitter.on('\t').splitToList(line);
+      return new SortLine(
+          parts.subList(0, parts.size() - 2),
+          new RawCsv.Row(
+              Long.parseLong(parts.get(parts.size() - 2)),
+              Integer.parseInt(parts.get(parts.size() - 1))));
+    }
+
+    private String getKey(int index) {
+      return keys.get(index);
+    }
+
+    private RawCsv.Row getRow() {
+      return row;
+    }
   }
 
   private List<Merged> merge(List<Profile> profiles, ArrayListMultimap<String, Payroll> payroll) {
-    List merged = merge(profiles, payroll, this::findLastNameMatches);
+    List<Merged> merged = mergeLastNames(profiles, payroll);
+
+    // Try it one more time with all of the remaining profiles, but this time matching with prefixes
+    // of last name.
+    if (!exactLastNamesOnly) {
+      merged.addAll(merge(profiles, payroll, "last name prefix", this::findLastNamePrefixMatches));
+      if (fuzzy) {
+        merged.addAll(mergeFuzzy(profiles, payroll));
+      }
+    }
+
+    return merged;
+  }
+
+  /** The matching rounds that only compare profiles and payroll with the exact same last name. */
+  private List<Merged> mergeLastNames(
+      List<Profile> profiles, ArrayListMultimap<String, Payroll> payroll) {
+    List<Merged> merged = merge(profiles, payroll, "last name", this::findLastNameMatches);
 
     // Do it all again! Now that there are fewer payroll options to match against we may hit some
     // new matches, especially with duplicate names and missing middle names. Example:
@@ -408,19 +907,67 @@ public final class ProfilePayroll {
     //
     // The first round Victor J wouldn't match anything, but the second round Victor M would be gone
     // from payroll matches so there'd only be one Victor Torres and it would match.
-    merged.addAll(merge(profiles, payroll, this::findLastNameMatches));
+    merged.addAll(merge(profiles, payroll, "last name again", this::findLastNameMatches));
 
-    // Try it one more time with all of the remaining profiles, but this time matching with prefixes
-    // of last name.
-    merged.addAll(merge(profiles, payroll, this::findLastNamePrefixMatches));
+    return merged;
+  }
 
+  /**
+   * Matches profiles to the payroll entry with the same identity (name and start date) as the one
+   * they were matched to in another year. Only unambiguous identities are matched, everything else
+   * is left for the regular matching rounds.
+   */
+  private List<Merged> seed(
+      List<Profile> profiles,
+      ArrayListMultimap<String, Payroll> payroll,
+      Map<String, String> identities) {
+    MergeRoundEvent event = new MergeRoundEvent();
+    event.begin();
+    int profilesBefore = profiles.size();
+    int payrollBefore = payroll.size();
+    List<Merged> merged = new ArrayList<>();
+
+    for (Iterator<Profile> it = profiles.iterator(); it.hasNext(); ) {
+      Profile profile = it.next();
+      String identity = identities.get(profile.getTaxId());
+      if (identity == null) {
+        continue;
+      }
+
+      Payroll match = null;
+      boolean ambiguous = false;
+      for (Payroll candidate : payroll.get(Payroll.getLastNameFromIdentity(identity))) {
+        if (identity.equals(candidate.getIdentity())) {
+          ambiguous = match != null;
+          match = candidate;
+        }
+      }
+      if (match != null && !ambiguous) {
+        checkState(payroll.remove(match.getLastName(), match), match);
+        it.remove();
+
+        merged.add(new Merged(profile, match));
+      }
+    }
+
+    commit(event, payroll, "seed", profilesBefore, payrollBefore, merged.size());
     return merged;
   }
 
+  /**
+   * One matching round, recorded as a JFR event.
+   *
+   * @param round name of the round, for the JFR event
+   */
   private List<Merged> merge(
       List<Profile> profiles,
       ArrayListMultimap<String, Payroll> payroll,
+      String round,
       BiFunction<Profile, ArrayListMultimap<String, Payroll>, List<Payroll>> lastNamesFunction) {
+    MergeRoundEvent event = new MergeRoundEvent();
+    event.begin();
+    int profilesBefore = profiles.size();
+    int payrollBefore = payroll.size();
     List<Merged> merged = new ArrayList<>();
 
     for (Iterator<Profile> it = profiles.iterator(); it.hasNext(); ) {
@@ -436,9 +983,57 @@ public final class ProfilePayroll {
       }
     }
 
+    commit(event, payroll, round, profilesBefore, payrollBefore, merged.size());
     return merged;
   }
 
+  private static void commit(
+      MergeRoundEvent event,
+      ArrayListMultimap<String, Payroll> payroll,
+      String round,
+      int profiles,
+      int payrolls,
+      int matches) {
+    if (!event.shouldCommit()) {
+      return;
+    }
+    // Every payroll row in a round is from the same fiscal year.
+    event.year = payroll.isEmpty() ? "" : payroll.values().iterator().next().getYear();
+    event.round = round;
+    event.profiles = profiles;
+    event.payrolls = payrolls;
+    event.matches = matches;
+    event.commit();
+  }
+
+  /** Matches leftover profiles to payroll with a last name within a small edit distance. */
+  private List<Merged> mergeFuzzy(
+      List<Profile> profiles, ArrayListMultimap<String, Payroll> payroll) {
+    Stopwatch stopwatch = Stopwatch.createStarted();
+    FuzzyNameIndex index = new FuzzyNameIndex(payroll.keySet(), fuzzyMaxDistance);
+    List<Merged> merged =
+        merge(
+            profiles,
+            payroll,
+            "fuzzy",
+            (profile, p) -> findFuzzyLastNameMatches(index, profile, p));
+    System.out.printf(
+        "fuzzy round: merged %s out of %s leftover profiles in %s%n",
+        merged.size(), profiles.size() + merged.size(), stopwatch);
+    return merged;
+  }
+
+  private List<Payroll> findFuzzyLastNameMatches(
+      FuzzyNameIndex index, Profile profile, ArrayListMultimap<String, Payroll> payroll) {
+    List<Payroll> matches = new ArrayList<>();
+    for (String lastName : index.find(Payroll.normalizeName(profile.getLastName()))) {
+      matches.addAll(payroll.get(lastName));
+    }
+    // findMatch breaks ties by candidate order, so keep it independent of hash order.
+    matches.sort(Comparator.comparing(Payroll::getLastName));
+    return matches;
+  }
+
   private List<Payroll> findLastNameMatches(
       Profile profile, ArrayListMultimap<String, Payroll> payroll) {
     return payroll.get(profile.getLastName());
@@ -455,13 +1050,16 @@ public final class ProfilePayroll {
         matches.add(entry.getValue());
       }
     }
+    // findMatch breaks ties by candidate order, and the multimap's order depends on every last
+    // name that was ever in it, which differs between sharded and in-memory runs.
+    matches.sort(Comparator.comparing(Payroll::getLastName));
     return matches;
   }
 
   /** The payrolls parameter is a list of payroll data whose last name matches the given profile. */
   private Payroll findMatch(Profile profile, List<Payroll> payrolls) {
     // If we identified a manual match, go with that.
-    if (MANUAL_MATCHES.containsKey(profile.getTaxId())) {
+    if (manualMatches.containsRow(profile.getTaxId())) {
       Payroll match = findManualMatch(profile, payrolls);
       if (match != null) {
         return match;
@@ -539,13 +1137,15 @@ public final class ProfilePayroll {
   }
 
   private Payroll findManualMatch(Profile profile, List<Payroll> payrolls) {
-    checkState(MANUAL_MATCHES.containsKey(profile.getTaxId()), profile);
+    checkState(manualMatches.containsRow(profile.getTaxId()), profile);
+    Map<String, String> boroughs = manualMatches.row(profile.getTaxId());
     for (Payroll payroll : payrolls) {
-      if (MANUAL_MATCHES.get(profile.getTaxId()).equals(payroll.getBorough())) {
+      String borough = boroughs.getOrDefault(payroll.getYear(), boroughs.get(ALL_YEARS));
+      if (payroll.getBorough().equals(borough)) {
         return payroll;
       }
     }
-    // Manual matches are set up for 2021 payroll data, so may not match with previous years.
+    // Manual matches may be set up for a different year of payroll data.
     return null;
   }
 
@@ -557,62 +1157,281 @@ public final class ProfilePayroll {
       Map<String, List<Merged>> merged,
       Map<String, List<Profile>> leftoverProfiles,
       SortedMap<String, ArrayListMultimap<String, Payroll>> leftoverPayrolls,
-      String[] profileHeaders)
+      String[] profileHeaders,
+      RawCsv profileCsv,
+      RawCsv payrollCsv)
       throws IOException {
     if (!outputDir.exists()) {
       outputDir.mkdir();
     }
 
+    byte[] blankProfile = getBlankProfile(profileHeaders);
+
     for (String year : merged.keySet()) {
       File yearOutput = new File(outputDir, String.format("payroll_%s.csv", year));
-      CSVWriter writer = new CSVWriter(new FileWriter(yearOutput));
+      OutputStream out = new BufferedOutputStream(new FileOutputStream(yearOutput));
+      writeHeader(out, profileHeaders);
+
+      // Write merged rows in profile order, rather than the order of the rounds that matched them,
+      // so sharded runs can write the same output.
+      List<Merged> mergedYear = new ArrayList<>(merged.get(year));
+      mergedYear.sort(Comparator.comparingLong(m -> m.getProfile().getRaw().getOffset()));
+      for (Merged m : mergedYear) {
+        profileCsv.write(m.getProfile().getRaw(), out);
+        out.write(',');
+        payrollCsv.write(m.getPayroll().getRaw(), out);
+        out.write('\n');
+      }
+      for (Profile profile : leftoverProfiles.get(year)) {
+        profileCsv.write(profile.getRaw(), out);
+        out.write('\n');
+      }
+      for (Payroll payroll : sortByLastName(leftoverPayrolls.get(year))) {
+        out.write(blankProfile);
+        payrollCsv.write(payroll.getRaw(), out);
+        out.write('\n');
+      }
+
+      out.close();
+    }
+  }
+
+  /**
+   * Returns payroll sorted by last name, and otherwise in the order it was added. Iterating the
+   * multimap directly would give an order that depends on every last name that was ever in it.
+   */
+  private static List<Payroll> sortByLastName(ArrayListMultimap<String, Payroll> payroll) {
+    List<Payroll> sorted = new ArrayList<>();
+    for (Collection<Payroll> lastName : new TreeMap<>(payroll.asMap()).values()) {
+      sorted.addAll(lastName);
+    }
+    return sorted;
+  }
+
+  /**
+   * Writes the header of an output file. Rows are copied byte for byte from the input files, so
+   * only the header goes through CSVWriter.
+   */
+  private static void writeHeader(OutputStream out, String[] profileHeaders) throws IOException {
+    CSVWriter writer = new CSVWriter(new OutputStreamWriter(out, UTF_8));
+    writer.writeNext(ObjectArrays.concat(profileHeaders, PAYROLL_HEADERS, String.class));
+    writer.flush();
+  }
+
+  /** Empty profile columns to go before payroll data that didn't match any profile. */
+  private static byte[] getBlankProfile(String[] profileHeaders) {
+    return Strings.repeat(",", profileHeaders.length).getBytes(UTF_8);
+  }
+
+  /**
+   * Writes one year's output as it's streamed in by the external sort mode. Unmerged rows are
+   * buffered in temporary files so the output has the same order as the in-memory mode: merged
+   * rows, then unmerged profiles, then unmerged payroll.
+   */
+  private static final class YearOutput {
+
+    private final OutputStream out;
+    private final File leftoverProfilesFile;
+    private final OutputStream leftoverProfiles;
+    private final File leftoverPayrollsFile;
+    private final OutputStream leftoverPayrolls;
+    private final byte[] blankProfile;
+    private final RawCsv profileCsv;
+    private final RawCsv payrollCsv;
+
+    private YearOutput(
+        OutputStream out,
+        File leftoverProfilesFile,
+        File leftoverPayrollsFile,
+        byte[] blankProfile,
+        RawCsv profileCsv,
+        RawCsv payrollCsv)
+        throws IOException {
+      this.out = out;
+      this.leftoverProfilesFile = leftoverProfilesFile;
+      this.leftoverProfiles = new BufferedOutputStream(new FileOutputStream(leftoverProfilesFile));
+      this.leftoverPayrollsFile = leftoverPayrollsFile;
+      this.leftoverPayrolls = new BufferedOutputStream(new FileOutputStream(leftoverPayrollsFile));
+      this.blankProfile = blankProfile;
+      this.profileCsv = profileCsv;
+      this.payrollCsv = payrollCsv;
+    }
+
+    private static YearOutput create(
+        File outputDir,
+        File tempDir,
+        String year,
+        String[] profileHeaders,
+        RawCsv profileCsv,
+        RawCsv payrollCsv)
+        throws IOException {
+      File yearOutput = new File(outputDir, String.format("payroll_%s.csv", year));
+      OutputStream out = new BufferedOutputStream(new FileOutputStream(yearOutput));
+      writeHeader(out, profileHeaders);
+      return new YearOutput(
+          out,
+          File.createTempFile("leftover-profiles", ".csv", tempDir),
+          File.createTempFile("leftover-payrolls", ".csv", tempDir),
+          getBlankProfile(profileHeaders),
+          profileCsv,
+          payrollCsv);
+    }
 
-      String[] allHeaders = ObjectArrays.concat(profileHeaders, PAYROLL_HEADERS, String.class);
-      writer.writeNext(allHeaders);
+    private void writeMerged(Merged merged) throws IOException {
+      profileCsv.write(merged.getProfile().getRaw(), out);
+      out.write(',');
+      payrollCsv.write(merged.getPayroll().getRaw(), out);
+      out.write('\n');
+    }
 
-      merged.get(year).stream().map(Merged::getRows).forEach(writer::writeNext);
-      leftoverProfiles.get(year).stream().map(Profile::getRaw).forEach(writer::writeNext);
+    /** Writes a row that's already merged, from a file with the same columns as the output. */
+    private void writeMergedRow(RawCsv.Row row) throws IOException {
+      profileCsv.write(row, out);
+      out.write('\n');
+    }
 
-      String[] blankProfile = new String[profileHeaders.length];
-      leftoverPayrolls.get(year).values().stream()
-          .map(Payroll::getRaw)
-          .map(p -> ObjectArrays.concat(blankProfile, p, String.class))
-          .forEach(writer::writeNext);
+    private void writeLeftoverProfile(RawCsv.Row row) throws IOException {
+      profileCsv.write(row, leftoverProfiles);
+      leftoverProfiles.write('\n');
+    }
 
-      writer.close();
+    private void writeLeftoverPayroll(RawCsv.Row row) throws IOException {
+      leftoverPayrolls.write(blankProfile);
+      payrollCsv.write(row, leftoverPayrolls);
+      leftoverPayrolls.write('\n');
+    }
+
+    private void close() throws IOException {
+      leftoverProfiles.close();
+      leftoverPayrolls.close();
+      Files.copy(leftoverProfilesFile.toPath(), out);
+      Files.copy(leftoverPayrollsFile.toPath(), out);
+      out.close();
+      leftoverProfilesFile.delete();
+      leftoverPayrollsFile.delete();
     }
   }
 
-  private static class Profile {
+  /** Outputs one row per matched officer with their pay in each year. */
+  private void outputTimeline(
+      Map<String, List<Merged>> merged, Set<String> years, RawCsv payrollCsv) throws IOException {
+    Map<String, Profile> profiles = new TreeMap<>();
+    Map<String, Map<String, Payroll>> timeline = new HashMap<>();
+    for (String year : years) {
+      for (Merged m : merged.get(year)) {
+        String taxId = m.getProfile().getTaxId();
+        profiles.put(taxId, m.getProfile());
+        timeline.computeIfAbsent(taxId, k -> new HashMap<>()).put(year, m.getPayroll());
+      }
+    }
 
-    private final String[] rows;
+    List<String> headers = new ArrayList<>(ImmutableList.of("Tax ID", "Last Name", "First Name"));
+    for (String year : years) {
+      for (String column : TIMELINE_PAY_HEADERS) {
+        headers.add(String.format("%s %s", year, column));
+      }
+    }
 
-    private Profile(String[] rows) {
-      this.rows = rows;
+    CSVWriter writer = new CSVWriter(new FileWriter(new File(outputDir, "timeline.csv")));
+    writer.writeNext(headers.toArray(new String[0]));
+    for (Profile profile : profiles.values()) {
+      List<String> row =
+          new ArrayList<>(
+              ImmutableList.of(
+                  profile.getTaxId(), profile.getLastName(), profile.getFirstName()));
+      Map<String, Payroll> officerTimeline = timeline.get(profile.getTaxId());
+      for (String year : years) {
+        Payroll payroll = officerTimeline.get(year);
+        if (payroll == null) {
+          row.addAll(Collections.nCopies(TIMELINE_PAY_HEADERS.size(), ""));
+        } else {
+          row.addAll(Payroll.getPay(payrollCsv.parse(payroll.getRaw())));
+        }
+      }
+      writer.writeNext(row.toArray(new String[0]));
+    }
+    writer.close();
+  }
+
+  /**
+   * Decides which payroll titles to remove. Whether to remove each distinct title is computed the
+   * first time it's seen and memoized by title, so regular expression entries don't need to be
+   * re-run for every payroll row.
+   */
+  private static final class TitleFilter {
+
+    private final ImmutableSet<String> titles;
+    private final ImmutableList<Pattern> patterns;
+
+    /** Whether to remove each title seen so far. Concurrent since payroll is read in parallel. */
+    private final Map<String, Boolean> removed = new ConcurrentHashMap<>();
+
+    private TitleFilter(ImmutableSet<String> titles, ImmutableList<Pattern> patterns) {
+      this.titles = titles;
+      this.patterns = patterns;
+    }
+
+    private static TitleFilter create(List<String> lines) {
+      ImmutableSet.Builder<String> titles = ImmutableSet.builder();
+      ImmutableList.Builder<Pattern> patterns = ImmutableList.builder();
+      for (String line : lines) {
+        if (line.startsWith(REGEX_PREFIX)) {
+          patterns.add(Pattern.compile(line.substring(REGEX_PREFIX.length())));
+        } else {
+          titles.add(line);
+        }
+      }
+      return new TitleFilter(titles.build(), patterns.build());
+    }
+
+    private boolean shouldRemove(String title) {
+      return removed.computeIfAbsent(
+          title,
+          t -> titles.contains(t) || patterns.stream().anyMatch(p -> p.matcher(t).matches()));
+    }
+  }
+
+  /** Matching keys for a profile, with the location of its row in the profile file. */
+  private static class Profile {
+
+    private final RawCsv.Row raw;
+    private final String taxId;
+    private final String firstName;
+    private final String middleInitial;
+    private final String lastName;
+    private final String appointmentDate;
+
+    private Profile(RawCsv.Row raw, String[] rows) {
+      this.raw = raw;
+      this.taxId = rows[0];
+      this.firstName = rows[2];
+      this.middleInitial = rows[4];
+      this.lastName = rows[3];
+      this.appointmentDate = rows[8];
     }
 
     private String getTaxId() {
-      return rows[0];
+      return taxId;
     }
 
     private String getFirstName() {
-      return rows[2];
+      return firstName;
     }
 
     private String getMiddleInitial() {
-      return rows[4];
+      return middleInitial;
     }
 
     private String getLastName() {
-      return rows[3];
+      return lastName;
     }
 
     private LocalDate getAppointmentDate() {
-      return ProfilePayroll.parseDate(rows[8]);
+      return ProfilePayroll.parseDate(appointmentDate);
     }
 
-    private String[] getRaw() {
-      return rows;
+    private RawCsv.Row getRaw() {
+      return raw;
     }
 
     @Override
@@ -627,61 +1446,87 @@ public final class ProfilePayroll {
     }
   }
 
+  /** Matching keys for a payroll entry, with the location of its row in the payroll file. */
   private static class Payroll {
 
     private static final CharMatcher VALID_NAME_CHARS = CharMatcher.inRange('A', 'Z');
 
-    private final String[] rows;
+    private final RawCsv.Row raw;
+    private final String year;
+    private final String firstName;
+    private final String middleInitial;
+    private final String lastName;
+    private final String borough;
+    private final String appointmentDate;
+    private final String regularPay;
+
+    private Payroll(RawCsv.Row raw, String[] rows) {
+      this.raw = raw;
+      // There are only a handful of distinct years, so share them between all rows.
+      this.year = rows[0].intern();
+      this.firstName = normalizeName(rows[4]);
+      this.middleInitial = rows[5];
+      this.lastName = normalizeName(SUFFIXES.matcher(rows[3]).replaceAll(""));
+      this.borough = rows[7].intern();
+      this.appointmentDate = rows[6];
+      this.regularPay = rows[13];
+    }
+
+    private static String getTitle(String[] rows) {
+      return rows[8];
+    }
 
-    private Payroll(String[] rows) {
-      this.rows = rows;
+    /** The columns in TIMELINE_PAY_HEADERS. */
+    private static ImmutableList<String> getPay(String[] rows) {
+      return ImmutableList.of(rows[10], rows[13], rows[15], rows[16]);
     }
 
     private String getFirstName() {
-      return normalizeName(rows[4]);
+      return firstName;
     }
 
     private String getMiddleInitial() {
-      return rows[5];
+      return middleInitial;
     }
 
     private String getLastName() {
-      return normalizeName(SUFFIXES.matcher(rows[3]).replaceAll(""));
-    }
-
-    private String getTitle() {
-      return rows[8];
+      return lastName;
     }
 
     private String getYear() {
-      return rows[0];
+      return year;
     }
 
     private String getBorough() {
-      return rows[7];
+      return borough;
     }
 
     private LocalDate getAppointmentDate() {
-      return ProfilePayroll.parseDate(rows[6]);
+      return ProfilePayroll.parseDate(appointmentDate);
     }
 
-    private BigDecimal getBaseSalary() {
-      return new BigDecimal(rows[10]);
+    private BigDecimal getRegularPay() {
+      return new BigDecimal(regularPay);
     }
 
-    private BigDecimal getRegularPay() {
-      return new BigDecimal(rows[13]);
+    /**
+     * Identifies the same person across years of payroll data, since payroll data doesn't have a
+     * stable ID.
+     */
+    private String getIdentity() {
+      return String.join(
+          "|", getLastName(), getFirstName(), getMiddleInitial(), getAppointmentDate().toString());
     }
 
-    private String getLeaveStatus() {
-      return rows[9];
+    private static String getLastNameFromIdentity(String identity) {
+      return identity.substring(0, identity.indexOf('|'));
     }
 
-    private String[] getRaw() {
-      return rows;
+    private RawCsv.Row getRaw() {
+      return raw;
     }
 
-    private String normalizeName(String name) {
+    private static String normalizeName(String name) {
       return VALID_NAME_CHARS.retainFrom(name);
     }
 
@@ -691,13 +1536,19 @@ public final class ProfilePayroll {
           .add("first name", getFirstName())
           .add("middle initial", getMiddleInitial())
           .add("last name", getLastName())
-          .add("title", getTitle())
           .add("appointment date", getAppointmentDate())
           .add("year", getYear())
           .toString();
     }
   }
 
+  private enum ShardStep {
+    ALL,
+    SPLIT,
+    WORK,
+    MERGE
+  }
+
   private static final class Merged {
 
     private final Profile profile;
@@ -708,8 +1559,42 @@ public final class ProfilePayroll {
       this.payroll = payroll;
     }
 
-    private String[] getRows() {
-      return ObjectArrays.concat(profile.getRaw(), payroll.getRaw(), String.class);
+    private Profile getProfile() {
+      return profile;
+    }
+
+    private Payroll getPayroll() {
+      return payroll;
+    }
+  }
+
+  /** A merged row of sharded output, and its profile's row number in the original profile file. */
+  private static final class ShardOutputRow {
+
+    private final int profileRow;
+    private final RawCsv.Row row;
+    private final Merged merged;
+
+    /**
+     * @param row a row merged by a shard worker, or null
+     * @param merged a match made across shards, or null
+     */
+    private ShardOutputRow(int profileRow, RawCsv.Row row, Merged merged) {
+      this.profileRow = profileRow;
+      this.row = row;
+      this.merged = merged;
+    }
+
+    private int getProfileRow() {
+      return profileRow;
+    }
+
+    private RawCsv.Row getRow() {
+      return row;
+    }
+
+    private Merged getMerged() {
+      return merged;
     }
   }
 }
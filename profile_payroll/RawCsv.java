@@ -0,0 +1,272 @@
+package emspishak.nypd.profilepayroll;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import com.google.common.base.Throwables;
+import com.google.common.collect.ImmutableList;
+import com.opencsv.CSVParser;
+import com.opencsv.CSVParserBuilder;
+import com.opencsv.ICSVParser;
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.function.Supplier;
+
+/**
+ * A CSV file mapped into memory, so rows can be referenced by their byte offset and length instead
+ * of being kept on the heap as Strings, and copied straight into output files.
+ */
+final class RawCsv {
+
+  /** Files are mapped in regions of this many bytes, since a single mapping is limited to 2GB. */
+  private static final int REGION_BITS = 30;
+
+  private static final long REGION_SIZE = 1L << REGION_BITS;
+
+  private final MappedByteBuffer[] regions;
+  private final long size;
+  private final CSVParser parser = newParser();
+
+  private RawCsv(MappedByteBuffer[] regions, long size) {
+    this.regions = regions;
+    this.size = size;
+  }
+
+  static RawCsv map(File file) throws IOException {
+    try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+      long size = channel.size();
+      int regionCount = (int) ((size + REGION_SIZE - 1) >>> REGION_BITS);
+      MappedByteBuffer[] regions = new MappedByteBuffer[regionCount];
+      for (int i = 0; i < regions.length; i++) {
+        long start = i * REGION_SIZE;
+        regions[i] =
+            channel.map(FileChannel.MapMode.READ_ONLY, start, Math.min(REGION_SIZE, size - start));
+      }
+      // Mappings stay valid after the channel is closed.
+      return new RawCsv(regions, size);
+    }
+  }
+
+  /**
+   * A parser that only treats doubled quotes ("") as escapes, like the row scanning here. By default
+   * CSVParser also treats backslashes as escapes, which would let a row end somewhere else.
+   */
+  private static CSVParser newParser() {
+    return new CSVParserBuilder().withEscapeChar(ICSVParser.NULL_CHARACTER).build();
+  }
+
+  /**
+   * Calls the visitor with every non-empty row in the file, in order. Rows end at newlines that
+   * aren't inside quotes, the same as CSVReader with a parser from newParser().
+   */
+  void forEachRow(RowVisitor visitor) throws IOException {
+    forEachRow(visitor, parser, 0, size);
+  }
+
+  /**
+   * Calls visitors with every non-empty row in the file in parallel, like forEachRow(). The file is
+   * split into chunks of whole rows, one per thread, and each chunk's rows are visited in order by
+   * its own visitor. Visitors are returned in file order, so combining their results in order gives
+   * the same result as a sequential forEachRow().
+   */
+  <V extends RowVisitor> ImmutableList<V> forEachRowInParallel(int threads, Supplier<V> visitors)
+      throws IOException {
+    ExecutorService executor = Executors.newFixedThreadPool(threads);
+    try {
+      long[] starts = new long[threads + 1];
+      for (int i = 0; i <= threads; i++) {
+        starts[i] = size * i / threads;
+      }
+
+      // Whether a chunk starts inside quotes depends on every quote before it, so first count
+      // quotes in each chunk in parallel, then add them up.
+      List<Future<Boolean>> oddQuotes = new ArrayList<>();
+      for (int i = 0; i < threads; i++) {
+        long start = starts[i];
+        long end = starts[i + 1];
+        oddQuotes.add(executor.submit(() -> hasOddQuotes(start, end)));
+      }
+      long[] boundaries = new long[threads + 1];
+      boundaries[threads] = size;
+      boolean inQuotes = false;
+      for (int i = 1; i < threads; i++) {
+        inQuotes ^= getResult(oddQuotes.get(i - 1));
+        boundaries[i] = findRowStart(starts[i], inQuotes);
+      }
+
+      List<Future<V>> chunks = new ArrayList<>();
+      for (int i = 0; i < threads; i++) {
+        long start = boundaries[i];
+        long end = boundaries[i + 1];
+        chunks.add(
+            executor.submit(
+                () -> {
+                  V visitor = visitors.get();
+                  // CSVParser isn't thread safe.
+                  forEachRow(visitor, newParser(), start, end);
+                  return visitor;
+                }));
+      }
+      ImmutableList.Builder<V> results = ImmutableList.builder();
+      for (Future<V> chunk : chunks) {
+        results.add(getResult(chunk));
+      }
+      return results.build();
+    } finally {
+      executor.shutdownNow();
+    }
+  }
+
+  /** Visits rows from start, which must be the start of a row, up to end. */
+  private void forEachRow(RowVisitor visitor, CSVParser parser, long start, long end)
+      throws IOException {
+    boolean inQuotes = false;
+    for (long position = start; position < end; position++) {
+      byte b = get(position);
+      if (b == '"') {
+        // Escaped quotes ("") toggle twice, so they don't change anything.
+        inQuotes = !inQuotes;
+      } else if (b == '\n' && !inQuotes) {
+        visitRow(visitor, parser, start, position);
+        start = position + 1;
+      }
+    }
+    visitRow(visitor, parser, start, end);
+  }
+
+  private boolean hasOddQuotes(long start, long end) {
+    boolean odd = false;
+    for (long position = start; position < end; position++) {
+      if (get(position) == '"') {
+        odd = !odd;
+      }
+    }
+    return odd;
+  }
+
+  /** Finds the first row that starts at or after position, given whether it's inside quotes. */
+  private long findRowStart(long position, boolean inQuotes) {
+    if (position == 0 || (!inQuotes && get(position - 1) == '\n')) {
+      return position;
+    }
+    for (; position < size; position++) {
+      byte b = get(position);
+      if (b == '"') {
+        inQuotes = !inQuotes;
+      } else if (b == '\n' && !inQuotes) {
+        return position + 1;
+      }
+    }
+    return size;
+  }
+
+  private static <T> T getResult(Future<T> future) throws IOException {
+    try {
+      return future.get();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new InterruptedIOException();
+    } catch (ExecutionException e) {
+      Throwables.throwIfInstanceOf(e.getCause(), IOException.class);
+      Throwables.throwIfUnchecked(e.getCause());
+      throw new IOException(e.getCause());
+    }
+  }
+
+  /** Parses the first row, which is the header in files that have one. */
+  String[] parseHeader() throws IOException {
+    boolean inQuotes = false;
+    for (long position = 0; position < size; position++) {
+      byte b = get(position);
+      if (b == '"') {
+        inQuotes = !inQuotes;
+      } else if (b == '\n' && !inQuotes) {
+        return parse(trimRow(0, position));
+      }
+    }
+    return parse(trimRow(0, size));
+  }
+
+  /** Whether a row is the first row in the file. */
+  static boolean isFirst(Row row) {
+    return row.offset == 0;
+  }
+
+  private void visitRow(RowVisitor visitor, CSVParser parser, long start, long end)
+      throws IOException {
+    Row row = trimRow(start, end);
+    if (row.length > 0) {
+      visitor.visit(row, parser.parseLine(new String(getBytes(row), UTF_8)));
+    }
+  }
+
+  /** Creates a row from start to end, without any carriage return at the end. */
+  private Row trimRow(long start, long end) {
+    if (end > start && get(end - 1) == '\r') {
+      end--;
+    }
+    return new Row(start, Math.toIntExact(end - start));
+  }
+
+  /** Parses the columns of a row. */
+  String[] parse(Row row) throws IOException {
+    return parser.parseLine(new String(getBytes(row), UTF_8));
+  }
+
+  /** Copies the raw bytes of a row, without a line ending. */
+  void write(Row row, OutputStream out) throws IOException {
+    out.write(getBytes(row));
+  }
+
+  private byte[] getBytes(Row row) {
+    byte[] bytes = new byte[row.length];
+    int copied = 0;
+    while (copied < bytes.length) {
+      long position = row.offset + copied;
+      MappedByteBuffer region = regions[(int) (position >>> REGION_BITS)];
+      int index = (int) (position & (REGION_SIZE - 1));
+      int length = Math.min(bytes.length - copied, region.limit() - index);
+      region.get(index, bytes, copied, length);
+      copied += length;
+    }
+    return bytes;
+  }
+
+  private byte get(long position) {
+    return regions[(int) (position >>> REGION_BITS)].get((int) (position & (REGION_SIZE - 1)));
+  }
+
+  interface RowVisitor {
+    void visit(Row row, String[] columns) throws IOException;
+  }
+
+  /** The location of a row in the file. */
+  static final class Row {
+
+    private final long offset;
+    private final int length;
+
+    Row(long offset, int length) {
+      this.offset = offset;
+      this.length = length;
+    }
+
+    long getOffset() {
+      return offset;
+    }
+
+    int getLength() {
+      return length;
+    }
+  }
+}
@@ -0,0 +1,112 @@
+package emspishak.nypd.profilepayroll;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static org.junit.Assert.assertEquals;
+
+import com.google.common.collect.ImmutableList;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/** Tests that RawCsv finds the same rows sequentially and in parallel, and parses them. */
+public final class RawCsvTest {
+
+  /**
+   * Rows with a quoted newline, escaped quotes, a backslash before a quote, a Windows line ending
+   * and a blank line, which is skipped.
+   */
+  private static final String CSV =
+      "name,note\n"
+          + "\"SMITH\",\"two\nlines\"\n"
+          + "\"O\"\"BRIEN\",\"says \"\"hi\"\"\"\n"
+          + "\"C:\\\",\"back\\slash\"\r\n"
+          + "\n"
+          + "JONES,plain\n";
+
+  private static final ImmutableList<ImmutableList<String>> COLUMNS =
+      ImmutableList.of(
+          ImmutableList.of("name", "note"),
+          ImmutableList.of("SMITH", "two\nlines"),
+          ImmutableList.of("O\"BRIEN", "says \"hi\""),
+          ImmutableList.of("C:\\", "back\\slash"),
+          ImmutableList.of("JONES", "plain"));
+
+  @Rule public final TemporaryFolder tempFolder = new TemporaryFolder();
+
+  @Test
+  public void visitsRowsInOrder() throws Exception {
+    RawCsv csv = map(CSV);
+    Rows rows = new Rows(csv);
+
+    csv.forEachRow(rows);
+
+    assertEquals(COLUMNS, rows.columns);
+    assertEquals(
+        ImmutableList.of(
+            "name,note",
+            "\"SMITH\",\"two\nlines\"",
+            "\"O\"\"BRIEN\",\"says \"\"hi\"\"\"",
+            "\"C:\\\",\"back\\slash\"",
+            "JONES,plain"),
+        rows.raw);
+  }
+
+  @Test
+  public void parallelChunksMatchSequential() throws Exception {
+    // Repeat the rows so chunks start at every kind of position: inside quotes, right after an
+    // escaped quote, and on a carriage return.
+    StringBuilder many = new StringBuilder();
+    for (int i = 0; i < 50; i++) {
+      many.append(CSV);
+    }
+    RawCsv csv = map(many.toString());
+    Rows sequential = new Rows(csv);
+    csv.forEachRow(sequential);
+
+    for (int threads = 1; threads <= 16; threads++) {
+      List<List<String>> columns = new ArrayList<>();
+      for (Rows chunk : csv.forEachRowInParallel(threads, () -> new Rows(csv))) {
+        columns.addAll(chunk.columns);
+      }
+      assertEquals("threads: " + threads, sequential.columns, columns);
+    }
+  }
+
+  @Test
+  public void parsesHeader() throws Exception {
+    assertEquals(Arrays.asList("name", "note"), Arrays.asList(map(CSV).parseHeader()));
+  }
+
+  private RawCsv map(String contents) throws IOException {
+    File file = tempFolder.newFile();
+    Files.write(file.toPath(), contents.getBytes(UTF_8));
+    return RawCsv.map(file);
+  }
+
+  /** Collects the rows it visits, parsed and raw. */
+  private static final class Rows implements RawCsv.RowVisitor {
+
+    private final RawCsv csv;
+    private final List<List<String>> columns = new ArrayList<>();
+    private final List<String> raw = new ArrayList<>();
+
+    private Rows(RawCsv csv) {
+      this.csv = csv;
+    }
+
+    @Override
+    public void visit(RawCsv.Row row, String[] rowColumns) throws IOException {
+      columns.add(Arrays.asList(rowColumns));
+      ByteArrayOutputStream out = new ByteArrayOutputStream();
+      csv.write(row, out);
+      raw.add(out.toString(UTF_8));
+    }
+  }
+}
@@ -0,0 +1,126 @@
+package emspishak.nypd.profilepayroll;
+
+import static com.google.common.base.Preconditions.checkState;
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import com.google.common.base.Splitter;
+import com.google.common.collect.ImmutableList;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.List;
+import java.util.regex.Pattern;
+
+/**
+ * Saves each fiscal year's matches once the year is finished, so a run that dies partway through
+ * can resume without matching those years again. A match is saved as the offsets of its profile
+ * and payroll rows, and checkpoints are only resumed from with the same inputs and options.
+ */
+final class YearCheckpoints {
+
+  private static final String SETTINGS_FILE = "settings.txt";
+
+  /** Files this writes besides settings: finished years, and years still being written. */
+  private static final Pattern YEAR_FILE = Pattern.compile("year_.*\\.csv|year.*\\.tmp");
+
+  private static final Splitter SPLITTER = Splitter.on(',');
+
+  private final File dir;
+
+  private YearCheckpoints(File dir) {
+    this.dir = dir;
+  }
+
+  /**
+   * Opens the checkpoints in dir. Unless resuming, any that are there are deleted first. Only
+   * checkpoint files are ever deleted, and a directory with other files that isn't already a
+   * checkpoint directory is refused, in case it was passed by mistake.
+   *
+   * @param settings the inputs and options the checkpoints are for, which have to be the same to
+   *     resume
+   */
+  static YearCheckpoints create(File dir, String settings, boolean resume) throws IOException {
+    File settingsFile = new File(dir, SETTINGS_FILE);
+    YearCheckpoints checkpoints = new YearCheckpoints(dir);
+    if (resume) {
+      checkState(
+          settingsFile.isFile()
+              && Files.readString(settingsFile.toPath(), UTF_8).equals(settings),
+          "no checkpoint in %s for these inputs and options, run without -resume to start over",
+          dir);
+    } else {
+      String[] files = dir.list();
+      checkState(
+          files == null || files.length == 0 || settingsFile.isFile(),
+          "%s isn't empty and has no %s, so it isn't a checkpoint directory",
+          dir,
+          SETTINGS_FILE);
+      checkpoints.deleteFiles();
+      dir.mkdirs();
+      Files.writeString(settingsFile.toPath(), settings, UTF_8);
+    }
+    return checkpoints;
+  }
+
+  /**
+   * Returns a finished year's matches as {profile offset, payroll offset}, in the order they were
+   * matched, or null if the year wasn't finished.
+   */
+  ImmutableList<long[]> read(String year) throws IOException {
+    File file = getYearFile(year);
+    if (!file.isFile()) {
+      return null;
+    }
+    ImmutableList.Builder<long[]> matches = ImmutableList.builder();
+    for (String line : Files.readAllLines(file.toPath(), UTF_8)) {
+      List<String> offsets = SPLITTER.splitToList(line);
+      checkState(offsets.size() == 2, "invalid checkpoint line in %s: %s", file, line);
+      matches.add(new long[] {Long.parseLong(offsets.get(0)), Long.parseLong(offsets.get(1))});
+    }
+    return matches.build();
+  }
+
+  /** Saves a finished year's matches. It's written to a temporary file first so it's never torn. */
+  void write(String year, List<long[]> matches) throws IOException {
+    File temp = File.createTempFile("year", ".tmp", dir);
+    try (BufferedWriter writer = Files.newBufferedWriter(temp.toPath(), UTF_8)) {
+      for (long[] match : matches) {
+        writer.write(match[0] + "," + match[1]);
+        writer.newLine();
+      }
+    }
+    Files.move(
+        temp.toPath(),
+        getYearFile(year).toPath(),
+        StandardCopyOption.REPLACE_EXISTING,
+        StandardCopyOption.ATOMIC_MOVE);
+  }
+
+  /**
+   * Deletes the checkpoints, once the outputs they're for are written, and the directory if
+   * nothing else is in it.
+   */
+  void delete() throws IOException {
+    deleteFiles();
+    String[] files = dir.list();
+    if (files != null && files.length == 0) {
+      Files.delete(dir.toPath());
+    }
+  }
+
+  /** Deletes the settings and year files, leaving anything else in the directory alone. */
+  private void deleteFiles() throws IOException {
+    String[] files = dir.list();
+    for (String file : files == null ? new String[0] : files) {
+      if (file.equals(SETTINGS_FILE) || YEAR_FILE.matcher(file).matches()) {
+        Files.delete(new File(dir, file).toPath());
+      }
+    }
+  }
+
+  private File getYearFile(String year) {
+    return new File(dir, String.format("year_%s.csv", year));
+  }
+}
@@ -0,0 +1,435 @@
+package emspishak.nypd.queryservice;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import com.google.common.base.Splitter;
+import com.google.common.base.Stopwatch;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableListMultimap;
+import com.google.common.collect.ImmutableMap;
+import com.opencsv.CSVReader;
+import com.opencsv.exceptions.CsvException;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.file.Files;
+import java.time.LocalDate;
+import java.time.format.DateTimeFormatter;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Function;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import org.json.JSONArray;
+import org.json.JSONObject;
+import org.kohsuke.args4j.CmdLineException;
+import org.kohsuke.args4j.CmdLineParser;
+import org.kohsuke.args4j.Option;
+
+/**
+ * Serves queries over NYPD profile, training and merged payroll data from an in-memory index, so
+ * the data only has to be parsed once instead of on every question.
+ */
+public final class QueryService {
+
+  private static final DateTimeFormatter INPUT_DATE_FORMAT = DateTimeFormatter.ofPattern("M/d/u");
+
+  /** Output files of ProfilePayroll, one per fiscal year. */
+  private static final Pattern PAYROLL_FILE = Pattern.compile("payroll_(\\d+)\\.csv");
+
+  @Option(name = "-profile-dir", usage = "Directory with NYPD profile JSON.")
+  private File profileDir;
+
+  @Option(name = "-payroll-dir", usage = "Directory with ProfilePayroll output CSVs.")
+  private File payrollDir;
+
+  @Option(name = "-port", usage = "Port to serve queries on.")
+  private int port = 8080;
+
+  /** The data currently being served, swapped out as a whole on reload. */
+  private final AtomicReference<Snapshot> snapshot = new AtomicReference<>();
+
+  public static void main(String[] args) throws CmdLineException, CsvException, IOException {
+    new QueryService().doMain(args);
+  }
+
+  private void doMain(String[] args) throws CmdLineException, CsvException, IOException {
+    CmdLineParser parser = new CmdLineParser(this);
+    parser.parseArgument(args);
+
+    reload();
+
+    // Only serve this machine: this is officer data, and reloads are expensive.
+    HttpServer server =
+        HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 0);
+    server.setExecutor(Executors.newCachedThreadPool());
+    server.createContext(
+        "/officer", exchange -> handle(exchange, params -> officer(snapshot.get(), params)));
+    server.createContext(
+        "/command", exchange -> handle(exchange, params -> command(snapshot.get(), params)));
+    server.createContext(
+        "/rank", exchange -> handle(exchange, params -> rank(snapshot.get(), params)));
+    server.createContext(
+        "/course", exchange -> handle(exchange, params -> course(snapshot.get(), params)));
+    server.createContext(
+        "/reload", exchange -> handle(exchange, "POST", params -> reloadQuietly()));
+    server.start();
+
+    System.out.printf("serving on http://localhost:%s%n", port);
+  }
+
+  /**
+   * Loads a new snapshot and swaps it in. Readers keep using the old snapshot until the new one is
+   * fully loaded.
+   */
+  private synchronized JSONObject reload() throws CsvException, IOException {
+    Stopwatch stopwatch = Stopwatch.createStarted();
+    Snapshot loaded = Snapshot.load(profileDir, payrollDir);
+    snapshot.set(loaded);
+    System.out.printf(
+        "loaded %s officers and %s payroll years in %s%n",
+        loaded.officers.size(), loaded.payrollYears.size(), stopwatch);
+
+    return new JSONObject()
+        .put("officers", loaded.officers.size())
+        .put("payroll_years", loaded.payrollYears.size())
+        .put("load_millis", stopwatch.elapsed().toMillis());
+  }
+
+  private JSONObject reloadQuietly() {
+    try {
+      return reload();
+    } catch (CsvException | IOException e) {
+      throw new IllegalStateException("reload failed, still serving previous data", e);
+    }
+  }
+
+  private static JSONObject officer(Snapshot snapshot, Map<String, String> params) {
+    Officer officer = snapshot.officers.get(parseTaxId(getParam(params, "taxid")));
+    if (officer == null) {
+      throw new IllegalArgumentException("unknown taxid");
+    }
+    return snapshot.toJson(officer, params.get("year"));
+  }
+
+  private static JSONArray command(Snapshot snapshot, Map<String, String> params) {
+    return toJson(snapshot, snapshot.byCommand.get(getParam(params, "command")), params);
+  }
+
+  private static JSONArray rank(Snapshot snapshot, Map<String, String> params) {
+    return toJson(snapshot, snapshot.byRank.get(getParam(params, "rank")), params);
+  }
+
+  /**
+   * Officers who took a course. With after_assignment=true, only officers who took it on or after
+   * their current assignment date.
+   */
+  private static JSONArray course(Snapshot snapshot, Map<String, String> params) {
+    String course = getParam(params, "course");
+    boolean afterAssignment = Boolean.parseBoolean(params.get("after_assignment"));
+
+    ImmutableList.Builder<Officer> officers = ImmutableList.builder();
+    for (Officer officer : snapshot.byCourse.get(course)) {
+      if (!afterAssignment || officer.tookAfterAssignment(course)) {
+        officers.add(officer);
+      }
+    }
+    return toJson(snapshot, officers.build(), params);
+  }
+
+  private static JSONArray toJson(
+      Snapshot snapshot, List<Officer> officers, Map<String, String> params) {
+    JSONArray json = new JSONArray();
+    for (Officer officer : officers) {
+      json.put(snapshot.toJson(officer, params.get("year")));
+    }
+    return json;
+  }
+
+  private static String getParam(Map<String, String> params, String name) {
+    String value = params.get(name);
+    if (value == null) {
+      throw new IllegalArgumentException("missing parameter " + name);
+    }
+    return value;
+  }
+
+  private static int parseTaxId(String taxId) {
+    try {
+      return Integer.parseInt(taxId);
+    } catch (NumberFormatException e) {
+      throw new IllegalArgumentException("invalid taxid " + taxId, e);
+    }
+  }
+
+  private static void handle(HttpExchange exchange, Function<Map<String, String>, Object> query)
+      throws IOException {
+    handle(exchange, "GET", query);
+  }
+
+  /** Answers a query, or a 405 if the request doesn't use the given method. */
+  private static void handle(
+      HttpExchange exchange, String method, Function<Map<String, String>, Object> query)
+      throws IOException {
+    Stopwatch stopwatch = Stopwatch.createStarted();
+    int status;
+    String body;
+    if (!exchange.getRequestMethod().equals(method)) {
+      exchange.getResponseHeaders().set("Allow", method);
+      body = new JSONObject().put("error", "use " + method).toString();
+      status = 405;
+    } else {
+      try {
+        body = query.apply(parseQuery(exchange.getRequestURI().getRawQuery())).toString();
+        status = 200;
+      } catch (IllegalArgumentException e) {
+        body = new JSONObject().put("error", e.getMessage()).toString();
+        status = 400;
+      } catch (RuntimeException e) {
+        body = new JSONObject().put("error", e.toString()).toString();
+        status = 500;
+      }
+    }
+
+    byte[] bytes = body.getBytes(UTF_8);
+    exchange.getResponseHeaders().set("Content-Type", "application/json; charset=utf-8");
+    exchange.sendResponseHeaders(status, bytes.length);
+    try (OutputStream out = exchange.getResponseBody()) {
+      out.write(bytes);
+    }
+    System.out.printf(
+        "%s %s %s bytes in %s%n", status, exchange.getRequestURI(), bytes.length, stopwatch);
+  }
+
+  private static Map<String, String> parseQuery(String rawQuery) {
+    Map<String, String> params = new HashMap<>();
+    if (rawQuery == null) {
+      return params;
+    }
+    for (String param : Splitter.on('&').omitEmptyStrings().split(rawQuery)) {
+      List<String> parts = Splitter.on('=').limit(2).splitToList(param);
+      params.put(
+          URLDecoder.decode(parts.get(0), UTF_8),
+          parts.size() == 1 ? "" : URLDecoder.decode(parts.get(1), UTF_8));
+    }
+    return params;
+  }
+
+  /** An immutable, fully indexed copy of all the data. */
+  private static final class Snapshot {
+
+    private final ImmutableMap<Integer, Officer> officers;
+    private final ImmutableListMultimap<String, Officer> byCommand;
+    private final ImmutableListMultimap<String, Officer> byRank;
+    private final ImmutableListMultimap<String, Officer> byCourse;
+    private final ImmutableList<PayrollYear> payrollYears;
+
+    private Snapshot(
+        ImmutableMap<Integer, Officer> officers,
+        ImmutableListMultimap<String, Officer> byCommand,
+        ImmutableListMultimap<String, Officer> byRank,
+        ImmutableListMultimap<String, Officer> byCourse,
+        ImmutableList<PayrollYear> payrollYears) {
+      this.officers = officers;
+      this.byCommand = byCommand;
+      this.byRank = byRank;
+      this.byCourse = byCourse;
+      this.payrollYears = payrollYears;
+    }
+
+    private static Snapshot load(File profileDir, File payrollDir)
+        throws CsvException, IOException {
+      Map<Integer, Officer> officers = new LinkedHashMap<>();
+      ImmutableListMultimap.Builder<String, Officer> byCommand = ImmutableListMultimap.builder();
+      ImmutableListMultimap.Builder<String, Officer> byRank = ImmutableListMultimap.builder();
+      ImmutableListMultimap.Builder<String, Officer> byCourse = ImmutableListMultimap.builder();
+
+      for (char c = 'A'; c <= 'Z'; c++) {
+        File jsonFile = new File(profileDir, String.format("nypd-profiles-%s.json", c));
+        JSONArray profiles = new JSONArray(Files.readString(jsonFile.toPath()));
+
+        for (int i = 0; i < profiles.length(); i++) {
+          Officer officer = Officer.create(profiles.getJSONObject(i));
+          // A tax ID can appear in more than one profile; keep the first, like ProfileIndex.
+          if (officers.putIfAbsent(officer.taxId, officer) != null) {
+            continue;
+          }
+          byCommand.put(officer.command, officer);
+          byRank.put(officer.rank, officer);
+          for (String course : officer.trainings.keySet()) {
+            byCourse.put(course, officer);
+          }
+        }
+      }
+
+      ImmutableList.Builder<PayrollYear> payrollYears = ImmutableList.builder();
+      if (payrollDir != null) {
+        File[] files = payrollDir.listFiles();
+        for (File file : files == null ? new File[0] : files) {
+          Matcher m = PAYROLL_FILE.matcher(file.getName());
+          if (m.matches()) {
+            payrollYears.add(PayrollYear.load(m.group(1), file));
+          }
+        }
+      }
+
+      return new Snapshot(
+          ImmutableMap.copyOf(officers),
+          byCommand.build(),
+          byRank.build(),
+          byCourse.build(),
+          payrollYears.build());
+    }
+
+    /** Converts an officer to JSON, including payroll for all years or just the given year. */
+    private JSONObject toJson(Officer officer, String year) {
+      JSONObject payroll = new JSONObject();
+      for (PayrollYear payrollYear : payrollYears) {
+        if (year != null && !year.equals(payrollYear.year)) {
+          continue;
+        }
+        String[] row = payrollYear.rows.get(officer.taxId);
+        if (row != null) {
+          JSONObject rowJson = new JSONObject();
+          for (int i = 0; i < row.length && i < payrollYear.headers.length; i++) {
+            rowJson.put(payrollYear.headers[i], row[i]);
+          }
+          payroll.put(payrollYear.year, rowJson);
+        }
+      }
+
+      JSONArray trainings = new JSONArray();
+      officer.trainings.forEach(
+          (name, date) ->
+              trainings.put(
+                  new JSONObject()
+                      .put("name", name)
+                      .put("date", date == null ? "" : date.toString())));
+
+      return new JSONObject()
+          .put("taxid", officer.taxId)
+          .put("last_name", officer.lastName)
+          .put("first_name", officer.firstName)
+          .put("rank", officer.rank)
+          .put("command", officer.command)
+          .put(
+              "assignment_date",
+              officer.assignmentDate == null ? "" : officer.assignmentDate.toString())
+          .put("trainings", trainings)
+          .put("payroll", payroll);
+    }
+  }
+
+  /** One ProfilePayroll output file, indexed by tax ID. */
+  private static final class PayrollYear {
+
+    private final String year;
+    private final String[] headers;
+    private final ImmutableMap<Integer, String[]> rows;
+
+    private PayrollYear(String year, String[] headers, ImmutableMap<Integer, String[]> rows) {
+      this.year = year;
+      this.headers = headers;
+      this.rows = rows;
+    }
+
+    private static PayrollYear load(String year, File file) throws CsvException, IOException {
+      try (CSVReader reader = new CSVReader(new FileReader(file))) {
+        List<String[]> all = reader.readAll();
+        ImmutableMap.Builder<Integer, String[]> rows = ImmutableMap.builder();
+        for (String[] row : all.subList(1, all.size())) {
+          // Payroll entries that didn't match any profile don't have a tax ID.
+          if (row[0] != null && !row[0].isEmpty()) {
+            rows.put(Integer.parseInt(row[0]), row);
+          }
+        }
+        return new PayrollYear(year, all.get(0), rows.buildKeepingLast());
+      }
+    }
+  }
+
+  private static final class Officer {
+
+    private final int taxId;
+    private final String lastName;
+    private final String firstName;
+    private final String rank;
+    private final String command;
+    private final LocalDate assignmentDate;
+
+    /** Map from course name to the date it was taken, or null if there's no date. */
+    private final Map<String, LocalDate> trainings;
+
+    private Officer(
+        int taxId,
+        String lastName,
+        String firstName,
+        String rank,
+        String command,
+        LocalDate assignmentDate,
+        Map<String, LocalDate> trainings) {
+      this.taxId = taxId;
+      this.lastName = lastName;
+      this.firstName = firstName;
+      this.rank = rank;
+      this.command = command;
+      this.assignmentDate = assignmentDate;
+      this.trainings = trainings;
+    }
+
+    private static Officer create(JSONObject profile) {
+      JSONObject reports = profile.optJSONObject("reports");
+      LocalDate assignmentDate = null;
+      Map<String, LocalDate> trainings = new HashMap<>();
+      if (reports != null) {
+        JSONObject summary = reports.optJSONObject("summary");
+        if (summary != null && summary.has("assignment_date")) {
+          assignmentDate =
+              LocalDate.parse(summary.getString("assignment_date"), INPUT_DATE_FORMAT);
+        }
+        JSONArray training = reports.optJSONArray("training");
+        if (training != null) {
+          for (int i = 0; i < training.length(); i++) {
+            JSONObject course = training.getJSONObject(i);
+            LocalDate date =
+                course.has("date")
+                    ? LocalDate.parse(course.getString("date"), INPUT_DATE_FORMAT)
+                    : null;
+            // If a course was taken more than once, keep the latest date.
+            String name = course.getString("name");
+            LocalDate existing = trainings.get(name);
+            if (existing == null || (date != null && date.isAfter(existing))) {
+              trainings.put(name, date);
+            }
+          }
+        }
+      }
+
+      return new Officer(
+          profile.getInt("taxid"),
+          profile.getString("last_name"),
+          profile.getString("first_name"),
+          profile.getString("rank"),
+          profile.getString("command"),
+          assignmentDate,
+          Collections.unmodifiableMap(trainings));
+    }
+
+    /** Courses without a date are treated as after assignment, same as SrgTraining. */
+    private boolean tookAfterAssignment(String course) {
+      LocalDate date = trainings.get(course);
+      return date == null || assignmentDate == null || !date.isBefore(assignmentDate);
+    }
+  }
+}
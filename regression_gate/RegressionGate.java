@@ -0,0 +1,501 @@
+package emspishak.nypd.regressiongate;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkState;
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import com.google.common.base.Joiner;
+import com.google.common.base.Splitter;
+import com.google.common.base.Stopwatch;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSortedMap;
+import com.google.common.collect.MapDifference;
+import com.google.common.collect.Maps;
+import com.google.common.hash.Hashing;
+import com.google.common.io.Files;
+import com.google.common.io.MoreFiles;
+import com.google.common.io.RecursiveDeleteOption;
+import emspishak.nypd.syntheticcorpus.SyntheticCorpus;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import org.kohsuke.args4j.CmdLineException;
+import org.kohsuke.args4j.CmdLineParser;
+import org.kohsuke.args4j.Option;
+
+/**
+ * Runs ProfilePayroll, SrgTraining and NstTraining on a small fixed synthetic corpus and fails if
+ * any output differs from the golden outputs. With -budgets, it also fails if a run's wall time or
+ * allocated bytes exceed its recorded budget by more than the tolerance.
+ *
+ * <p>Runs that should produce the same output, like each tool run with one thread and with
+ * several, share a group and are checked against the same golden outputs. Outputs are compared by
+ * SHA-256, and left in -work-dir to diff when they don't match. Each run is in its own JVM through
+ * the launcher, which reports the bytes it allocated.
+ */
+public final class RegressionGate {
+
+  /** The fixture corpus. Changing these changes every output, so goldens need to be updated. */
+  private static final int FIXTURE_OFFICERS = 2000;
+
+  private static final long FIXTURE_SEED = 1;
+  private static final int FIXTURE_YEARS = 3;
+  private static final int FIXTURE_LAST_YEAR = 2023;
+
+  /**
+   * Percent of payroll rows whose last name is misspelled in the fixture's misspelled payroll, half
+   * with two letters swapped and half with a letter added, so the prefix and fuzzy rounds have
+   * something to match.
+   */
+  private static final int MISSPELLED_PERCENT = 10;
+
+  /** The payroll file's last name, in the fourth quoted field. */
+  private static final Pattern PAYROLL_LAST_NAME =
+      Pattern.compile("^((?:\"[^\"]*\",){3}\")([^\"]*)");
+
+  /** The launcher's last line, with the bytes the tool allocated. */
+  private static final Pattern ALLOCATED_BYTES = Pattern.compile("(\\d+) bytes allocated");
+
+  private static final Splitter FIELDS = Splitter.on(' ').omitEmptyStrings();
+  private static final Joiner JOINER = Joiner.on(' ');
+
+  @Option(name = "-work-dir", usage = "Directory for the fixture corpus, tool outputs and logs.")
+  private File workDir;
+
+  @Option(name = "-golden", usage = "File with golden output hashes.")
+  private File goldenFile;
+
+  @Option(
+      name = "-budgets",
+      usage =
+          "File with wall time and allocated bytes budgets to check, which depend on the machine."
+              + " Budgets aren't checked without it.")
+  private File budgetsFile;
+
+  @Option(
+      name = "-update",
+      usage = "Record this run's outputs (and measurements, with -budgets) as the new goldens.")
+  private boolean update;
+
+  @Option(
+      name = "-tolerance",
+      usage = "Fraction over a budget that still passes, e.g. 0.25 for 25% over.")
+  private double tolerance = 0.25;
+
+  @Option(name = "-jvm-args", usage = "Space separated JVM flags for each tool, e.g. -Xmx2g.")
+  private String jvmArgs = "";
+
+  /** Golden output hashes, by group and then by path relative to the run's output directory. */
+  private final Map<String, ImmutableSortedMap<String, String>> goldenOutputs =
+      new LinkedHashMap<>();
+
+  /** Budgets by run: wall time in ms and allocated bytes. */
+  private final Map<String, long[]> budgets = new LinkedHashMap<>();
+
+  private final List<String> failures = new ArrayList<>();
+
+  public static void main(String[] args)
+      throws CmdLineException, InterruptedException, IOException {
+    new RegressionGate().doMain(args);
+  }
+
+  private void doMain(String[] args) throws CmdLineException, InterruptedException, IOException {
+    CmdLineParser parser = new CmdLineParser(this);
+    parser.parseArgument(args);
+
+    checkArgument(goldenFile != null, "-golden is required");
+    if (!update) {
+      checkState(goldenFile.isFile(), "no goldens at %s, run with -update first", goldenFile);
+      readGolden();
+      if (budgetsFile != null) {
+        checkState(
+            budgetsFile.isFile(), "no budgets at %s, run with -update first", budgetsFile);
+        readBudgets();
+      }
+    }
+
+    File corpus = new File(workDir, "fixture");
+    generate(corpus);
+    String officers = new File(corpus, "officers.csv").getPath();
+    String payroll = new File(corpus, "payroll.csv").getPath();
+    String misspelledPayroll = new File(corpus, "payroll-misspelled.csv").getPath();
+    String profiles = new File(corpus, "profiles").getPath();
+    String fiftyA = new File(corpus, "server-cache.json").getPath();
+
+    for (String parseThreads : ImmutableList.of("1", "4")) {
+      String name =
+          parseThreads.equals("1") ? "profile-payroll-sequential" : "profile-payroll-parallel";
+      run(
+          name,
+          "profile-payroll",
+          "profile-payroll",
+          "-profile",
+          officers,
+          "-payroll",
+          payroll,
+          "-parse-threads",
+          parseThreads,
+          "-output-dir",
+          getOutputDir(name).getPath());
+    }
+    run(
+        "profile-payroll-cross-year",
+        "profile-payroll-cross-year",
+        "profile-payroll",
+        "-profile",
+        officers,
+        "-payroll",
+        payroll,
+        "-cross-year",
+        "-output-dir",
+        getOutputDir("profile-payroll-cross-year").getPath());
+    run(
+        "profile-payroll-sharded",
+        "profile-payroll",
+        "profile-payroll",
+        "-profile",
+        officers,
+        "-payroll",
+        payroll,
+        "-shards",
+        "2",
+        "-shard-dir",
+        getScratchDir("profile-payroll-sharded").getPath(),
+        "-output-dir",
+        getOutputDir("profile-payroll-sharded").getPath());
+    // External sort skips the last name prefix round, so it has its own goldens. The small buffer
+    // makes it sort the fixture in several runs and merge them.
+    run(
+        "profile-payroll-external-sort",
+        "profile-payroll-external-sort",
+        "profile-payroll",
+        "-profile",
+        officers,
+        "-payroll",
+        payroll,
+        "-external-sort",
+        "-sort-buffer-rows",
+        "1000",
+        "-temp-dir",
+        getScratchDir("profile-payroll-external-sort").getPath(),
+        "-output-dir",
+        getOutputDir("profile-payroll-external-sort").getPath());
+    // Fuzzy matching, and prefix matching across shards, run on payroll with misspelled names.
+    run(
+        "profile-payroll-fuzzy",
+        "profile-payroll-fuzzy",
+        "profile-payroll",
+        "-profile",
+        officers,
+        "-payroll",
+        misspelledPayroll,
+        "-fuzzy",
+        "-output-dir",
+        getOutputDir("profile-payroll-fuzzy").getPath());
+    run(
+        "profile-payroll-fuzzy-sharded",
+        "profile-payroll-fuzzy",
+        "profile-payroll",
+        "-profile",
+        officers,
+        "-payroll",
+        misspelledPayroll,
+        "-fuzzy",
+        "-shards",
+        "2",
+        "-shard-dir",
+        getScratchDir("profile-payroll-fuzzy-sharded").getPath(),
+        "-output-dir",
+        getOutputDir("profile-payroll-fuzzy-sharded").getPath());
+    for (String letterThreads : ImmutableList.of("1", "4")) {
+      String mode = letterThreads.equals("1") ? "sequential" : "parallel";
+      // The 50-a index is written next to the 50-a data by default, which would make only the
+      // first run that needs it pay to build it.
+      String srgName = "srg-training-" + mode;
+      run(
+          srgName,
+          "srg-training",
+          "srg-training",
+          "-profile-dir",
+          profiles,
+          "-50a-data",
+          fiftyA,
+          "-50a-index",
+          new File(getScratchDir(srgName), "50a.index").getPath(),
+          "-letter-threads",
+          letterThreads,
+          "-output-dir",
+          getOutputDir(srgName).getPath());
+      String nstName = "nst-training-" + mode;
+      run(
+          nstName,
+          "nst-training",
+          "nst-training",
+          "-profile-dir",
+          profiles,
+          "-50a-data",
+          fiftyA,
+          "-50a-index",
+          new File(getScratchDir(nstName), "50a.index").getPath(),
+          "-letter-threads",
+          letterThreads,
+          "-output",
+          new File(getOutputDir(nstName), "nst.csv").getPath());
+    }
+
+    if (update) {
+      writeGolden();
+      if (budgetsFile != null) {
+        writeBudgets();
+      }
+    }
+    checkState(
+        failures.isEmpty(),
+        "regression gate failed:\n  %s",
+        Joiner.on("\n  ").join(failures));
+    System.out.println(update ? "updated " + goldenFile : "regression gate passed");
+  }
+
+  /** Generates the fixture corpus, unless it was already generated with the same settings. */
+  private static void generate(File corpus) throws IOException {
+    File done = new File(corpus, "generated");
+    String settings = getFixtureSettings();
+    if (done.isFile() && Files.asCharSource(done, UTF_8).read().equals(settings)) {
+      return;
+    }
+    corpus.mkdirs();
+    SyntheticCorpus.writeOfficers(
+        corpus, FIXTURE_OFFICERS, FIXTURE_SEED, FIXTURE_YEARS, FIXTURE_LAST_YEAR);
+    writeMisspelledPayroll(
+        new File(corpus, "payroll.csv"), new File(corpus, "payroll-misspelled.csv"));
+    Files.asCharSink(done, UTF_8).write(settings);
+  }
+
+  private static String getFixtureSettings() {
+    return JOINER.join(
+        "fixture",
+        FIXTURE_OFFICERS,
+        FIXTURE_SEED,
+        FIXTURE_YEARS,
+        FIXTURE_LAST_YEAR,
+        MISSPELLED_PERCENT);
+  }
+
+  /** Copies payroll, misspelling some last names. */
+  private static void writeMisspelledPayroll(File payroll, File misspelled) throws IOException {
+    Random random = new Random(FIXTURE_SEED);
+    List<String> lines = new ArrayList<>();
+    for (String line : Files.readLines(payroll, UTF_8)) {
+      Matcher m = PAYROLL_LAST_NAME.matcher(line);
+      checkState(m.find(), "no last name in %s", line);
+      String lastName = m.group(2);
+      int percent = random.nextInt(100);
+      int i = random.nextInt(Math.max(1, lastName.length() - 1));
+      if (percent < MISSPELLED_PERCENT / 2 && lastName.length() > 1) {
+        lastName =
+            lastName.substring(0, i)
+                + lastName.charAt(i + 1)
+                + lastName.charAt(i)
+                + lastName.substring(i + 2);
+      } else if (percent < MISSPELLED_PERCENT) {
+        lastName += (char) ('A' + random.nextInt(26));
+      }
+      lines.add(m.group(1) + lastName + line.substring(m.end()));
+    }
+    Files.asCharSink(misspelled, UTF_8).writeLines(lines);
+  }
+
+  /** Where a run's outputs go. Everything in it is checked against the goldens. */
+  private File getOutputDir(String name) {
+    return new File(new File(workDir, "output"), name);
+  }
+
+  /** Where a run's other files go, like its 50-a index. */
+  private File getScratchDir(String name) {
+    return new File(new File(workDir, "scratch"), name);
+  }
+
+  /**
+   * Runs a tool through the launcher in a new JVM, with empty output and scratch directories, and
+   * checks its outputs and measurements.
+   */
+  private void run(String name, String group, String tool, String... toolArgs)
+      throws InterruptedException, IOException {
+    for (File dir : ImmutableList.of(getOutputDir(name), getScratchDir(name))) {
+      if (dir.exists()) {
+        MoreFiles.deleteRecursively(dir.toPath(), RecursiveDeleteOption.ALLOW_INSECURE);
+      }
+      dir.mkdirs();
+    }
+
+    List<String> command = new ArrayList<>();
+    command.add(Paths.get(System.getProperty("java.home"), "bin", "java").toString());
+    for (String arg : FIELDS.split(jvmArgs)) {
+      command.add(arg);
+    }
+    command.add("-cp");
+    command.add(System.getProperty("java.class.path"));
+    command.add("emspishak.nypd.launcher.Launcher");
+    command.add(tool);
+    command.addAll(ImmutableList.copyOf(toolArgs));
+
+    File log = new File(workDir, name + ".log");
+    System.out.printf("running %s, logging to %s%n", name, log);
+    Stopwatch stopwatch = Stopwatch.createStarted();
+    Process process =
+        new ProcessBuilder(command).redirectErrorStream(true).redirectOutput(log).start();
+    int exitCode = process.waitFor();
+    long wallMillis = stopwatch.elapsed(TimeUnit.MILLISECONDS);
+
+    if (exitCode != 0) {
+      failures.add(String.format("%s exited with %s, see %s", name, exitCode, log));
+      return;
+    }
+    long allocatedBytes = readAllocatedBytes(log);
+    System.out.printf(
+        "%s: %s ms, %s MB allocated%n", name, wallMillis, allocatedBytes / (1024 * 1024));
+
+    checkOutputs(name, group, hashOutputs(getOutputDir(name)));
+    if (budgetsFile == null) {
+      return;
+    }
+    if (update) {
+      budgets.put(name, new long[] {wallMillis, allocatedBytes});
+    } else {
+      checkBudget(name, "wall time (ms)", wallMillis, 0);
+      checkBudget(name, "allocated bytes", allocatedBytes, 1);
+    }
+  }
+
+  private static long readAllocatedBytes(File log) throws IOException {
+    long allocatedBytes = -1;
+    for (String line : Files.asCharSource(log, UTF_8).readLines()) {
+      Matcher m = ALLOCATED_BYTES.matcher(line);
+      if (m.find()) {
+        allocatedBytes = Long.parseLong(m.group(1));
+      }
+    }
+    checkState(allocatedBytes >= 0, "launcher didn't report allocated bytes in %s", log);
+    return allocatedBytes;
+  }
+
+  /** Returns the SHA-256 of each file under dir, by path relative to dir. */
+  private static ImmutableSortedMap<String, String> hashOutputs(File dir) throws IOException {
+    ImmutableSortedMap.Builder<String, String> hashes = ImmutableSortedMap.naturalOrder();
+    for (File file : Files.fileTraverser().depthFirstPreOrder(dir)) {
+      if (file.isFile()) {
+        hashes.put(
+            dir.toPath().relativize(file.toPath()).toString(),
+            Files.asByteSource(file).hash(Hashing.sha256()).toString());
+      }
+    }
+    return hashes.build();
+  }
+
+  /**
+   * Checks a run's outputs against its group's goldens. When updating, the first run in a group
+   * sets them, so later runs in the group still have to match it.
+   */
+  private void checkOutputs(String name, String group, ImmutableSortedMap<String, String> outputs) {
+    ImmutableSortedMap<String, String> golden = goldenOutputs.get(group);
+    if (golden == null) {
+      if (update) {
+        goldenOutputs.put(group, outputs);
+      } else {
+        failures.add(String.format("%s: no golden outputs for %s", name, group));
+      }
+      return;
+    }
+    MapDifference<String, String> difference = Maps.difference(golden, outputs);
+    for (String path : difference.entriesOnlyOnLeft().keySet()) {
+      failures.add(String.format("%s: missing output %s", name, path));
+    }
+    for (String path : difference.entriesOnlyOnRight().keySet()) {
+      failures.add(String.format("%s: unexpected output %s", name, path));
+    }
+    for (String path : difference.entriesDiffering().keySet()) {
+      failures.add(String.format("%s: %s differs from the golden output", name, path));
+    }
+  }
+
+  private void checkBudget(String name, String measurement, long value, int index) {
+    long[] budget = budgets.get(name);
+    if (budget == null) {
+      failures.add(String.format("%s: no budget", name));
+    } else if (value > budget[index] * (1 + tolerance)) {
+      failures.add(
+          String.format(
+              "%s: %s %s is over its budget of %s by more than %s%%",
+              name, measurement, value, budget[index], Math.round(tolerance * 100)));
+    }
+  }
+
+  /** Reads goldens, a line per output file: "output GROUP PATH SHA256". */
+  private void readGolden() throws IOException {
+    Map<String, ImmutableSortedMap.Builder<String, String>> outputs = new LinkedHashMap<>();
+    for (List<String> fields : readLines(goldenFile, "output")) {
+      outputs
+          .computeIfAbsent(fields.get(1), group -> ImmutableSortedMap.naturalOrder())
+          .put(fields.get(2), fields.get(3));
+    }
+    outputs.forEach((group, hashes) -> goldenOutputs.put(group, hashes.build()));
+  }
+
+  /** Reads budgets, a line per run: "budget RUN WALL_MS ALLOCATED_BYTES". */
+  private void readBudgets() throws IOException {
+    for (List<String> fields : readLines(budgetsFile, "budget")) {
+      budgets.put(
+          fields.get(1), new long[] {Long.parseLong(fields.get(2)), Long.parseLong(fields.get(3))});
+    }
+  }
+
+  /**
+   * Returns the fields of each line of a goldens or budgets file, after a line with the fixture
+   * settings they were recorded with. Every line has 4 fields, starting with kind.
+   */
+  private static List<List<String>> readLines(File file, String kind) throws IOException {
+    List<String> lines = Files.asCharSource(file, UTF_8).readLines();
+    checkState(
+        !lines.isEmpty() && lines.get(0).equals(getFixtureSettings()),
+        "%s was recorded with a different fixture, run with -update",
+        file);
+    List<List<String>> fieldLines = new ArrayList<>();
+    for (String line : lines.subList(1, lines.size())) {
+      List<String> fields = FIELDS.splitToList(line);
+      if (fields.isEmpty() || fields.get(0).startsWith("#")) {
+        continue;
+      }
+      checkState(
+          fields.size() == 4 && fields.get(0).equals(kind), "bad line in %s: %s", file, line);
+      fieldLines.add(fields);
+    }
+    return fieldLines;
+  }
+
+  private void writeGolden() throws IOException {
+    List<String> lines = new ArrayList<>();
+    lines.add(getFixtureSettings());
+    lines.add("# Written by RegressionGate -update.");
+    goldenOutputs.forEach(
+        (group, hashes) ->
+            hashes.forEach((path, hash) -> lines.add(JOINER.join("output", group, path, hash))));
+    Files.asCharSink(goldenFile, UTF_8).writeLines(lines);
+  }
+
+  private void writeBudgets() throws IOException {
+    List<String> lines = new ArrayList<>();
+    lines.add(getFixtureSettings());
+    lines.add("# Written by RegressionGate -update; budgets are wall ms and allocated bytes.");
+    budgets.forEach(
+        (name, budget) -> lines.add(JOINER.join("budget", name, budget[0], budget[1])));
+    Files.asCharSink(budgetsFile, UTF_8).writeLines(lines);
+  }
+}
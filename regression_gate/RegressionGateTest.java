@@ -0,0 +1,20 @@
+package emspishak.nypd.regressiongate;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/** Runs the regression gate against the checked in goldens, without budgets. */
+public final class RegressionGateTest {
+
+  /** Relative to the test's working directory, the root of its runfiles. */
+  private static final String GOLDEN = "regression_gate/golden.txt";
+
+  @Rule public final TemporaryFolder tempFolder = new TemporaryFolder();
+
+  @Test
+  public void outputsMatchGoldens() throws Exception {
+    RegressionGate.main(
+        new String[] {"-work-dir", tempFolder.getRoot().getPath(), "-golden", GOLDEN});
+  }
+}
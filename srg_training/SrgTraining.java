@@ -1,23 +1,25 @@
 package emspishak.nypd.srgtraining;
 
-import static com.google.common.collect.ImmutableList.toImmutableList;
-
-import com.google.common.base.Joiner;
-import com.google.common.collect.Comparators;
-import com.google.common.collect.ComparisonChain;
+import com.google.common.base.Stopwatch;
 import com.google.common.collect.ImmutableList;
-import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.ObjectArrays;
 import com.opencsv.CSVWriter;
+import emspishak.nypd.fiftya.FiftyAIndex;
+import emspishak.nypd.lettercache.LetterCache;
+import emspishak.nypd.profileindex.ProfileIndex;
+import emspishak.nypd.trainingdata.Courses;
+import emspishak.nypd.trainingdata.OfficerColumns;
 import java.io.File;
 import java.io.FileWriter;
 import java.io.IOException;
 import java.nio.file.Files;
 import java.time.LocalDate;
 import java.time.format.DateTimeFormatter;
-import java.util.Comparator;
-import java.util.Optional;
-import java.util.function.Predicate;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.function.IntPredicate;
+import java.util.regex.Pattern;
 import org.json.JSONArray;
 import org.json.JSONObject;
 import org.kohsuke.args4j.CmdLineException;
@@ -26,6 +28,9 @@ import org.kohsuke.args4j.Option;
 
 public final class SrgTraining {
 
+  /** Version of the rows this writes, to bump when they change so cached rows aren't reused. */
+  private static final int ROWS_VERSION = 1;
+
   private static final String[] COMMON_OUTPUT_HEADERS = {
     "last_name",
     "first_name",
@@ -68,105 +73,246 @@ public final class SrgTraining {
   @Option(name = "-50a-data", usage = "50-a server-cache.json file.")
   private File fiftyAData;
 
+  @Option(
+      name = "-50a-index",
+      usage = "Index of the 50-a data, built if missing or stale. Defaults to next to -50a-data.")
+  private File fiftyAIndex;
+
   @Option(name = "-output-dir", usage = "Directory for CSV outputs of SRG related officers.")
   private File outputDir;
 
-  public static void main(String[] args) throws CmdLineException, IOException {
+  @Option(
+      name = "-cache-dir",
+      usage = "Directory to cache each letter file's rows in, so unchanged files are skipped.")
+  private File cacheDir;
+
+  @Option(
+      name = "-letter-threads",
+      usage = "Letter files to process at once. Each one being processed is held in memory.")
+  private int letterThreads = 1;
+
+  @Option(name = "-watch", usage = "Keep running and update outputs when letter files change.")
+  private boolean watch = false;
+
+  @Option(
+      name = "-window-course",
+      usage =
+          "Instead of the SRG outputs, write window.csv with trainings in courses matching this"
+              + " regex between -window-from and -window-to.")
+  private String windowCourse;
+
+  @Option(name = "-window-from", usage = "First date (yyyy-mm-dd) for -window-course.")
+  private String windowFrom = "1900-01-01";
+
+  @Option(name = "-window-to", usage = "Last date (yyyy-mm-dd) for -window-course.")
+  private String windowTo = "2100-01-01";
+
+  private final Courses courses = new Courses();
+
+  private final IntPredicate srgCourses = courses.matching(Courses.SRG_COURSE);
+
+  @Option(
+      name = "-tax-ids",
+      usage =
+          "File listing tax IDs, one per line. Only these officers' profiles are read, using"
+              + " -profile-index, and the letter file cache isn't used.")
+  private File taxIdFile;
+
+  @Option(
+      name = "-profile-index",
+      usage = "Index of profiles by tax ID for -tax-ids. Defaults to in -profile-dir.")
+  private File profileIndexFile;
+
+  public static void main(String[] args)
+      throws CmdLineException, InterruptedException, IOException {
     new SrgTraining().doMain(args);
   }
 
-  private void doMain(String[] args) throws CmdLineException, IOException {
+  private void doMain(String[] args) throws CmdLineException, InterruptedException, IOException {
     CmdLineParser parser = new CmdLineParser(this);
     parser.parseArgument(args);
     outputDir.mkdir();
 
-    ImmutableMap<Integer, JSONObject> taxIds = get50AData();
+    FiftyAIndex fiftyA = FiftyAIndex.load(fiftyAData, fiftyAIndex);
 
+    if (windowCourse != null) {
+      writeWindow(fiftyA);
+      return;
+    }
+    if (taxIdFile != null) {
+      writeTaxIds(fiftyA);
+      return;
+    }
+
+    LetterCache letters =
+        new LetterCache(
+            profileDir,
+            cacheDir,
+            "srg-training",
+            "v" + ROWS_VERSION + " " + fiftyA.getSourceHash(),
+            letterThreads,
+            ImmutableList.of(
+                new LetterCache.Output(
+                    new File(outputDir, "srg-trained.csv"), SRG_TRAINED_OUTPUT_HEADERS),
+                new LetterCache.Output(new File(outputDir, "srg.csv"), SRG_TRAINED_OUTPUT_HEADERS),
+                new LetterCache.Output(
+                    new File(outputDir, "srg-trainings.csv"), SRG_TRAINING_OUTPUT_HEADERS)),
+            (json, writers) ->
+                processLetter(json, fiftyA, writers.get(0), writers.get(1), writers.get(2)));
+    if (watch) {
+      letters.watch();
+    } else {
+      letters.update();
+      fiftyA.printNameMatchStats();
+    }
+  }
+
+  /** Writes the outputs for just the officers in -tax-ids, reading only their profiles. */
+  private void writeTaxIds(FiftyAIndex fiftyA) throws IOException {
+    Stopwatch stopwatch = Stopwatch.createStarted();
+    ImmutableList<Integer> taxIds = ProfileIndex.readTaxIds(taxIdFile);
+    JSONArray profiles = ProfileIndex.load(profileDir, profileIndexFile).getProfiles(taxIds);
     CSVWriter srgTrainedWriter =
         new CSVWriter(new FileWriter(new File(outputDir, "srg-trained.csv")));
-    srgTrainedWriter.writeNext(SRG_TRAINED_OUTPUT_HEADERS);
-
     CSVWriter srgWriter = new CSVWriter(new FileWriter(new File(outputDir, "srg.csv")));
-    srgWriter.writeNext(SRG_TRAINED_OUTPUT_HEADERS);
-
     CSVWriter srgTrainingsWriter =
         new CSVWriter(new FileWriter(new File(outputDir, "srg-trainings.csv")));
+    srgTrainedWriter.writeNext(SRG_TRAINED_OUTPUT_HEADERS);
+    srgWriter.writeNext(SRG_TRAINED_OUTPUT_HEADERS);
     srgTrainingsWriter.writeNext(SRG_TRAINING_OUTPUT_HEADERS);
+    processLetter(profiles, fiftyA, srgTrainedWriter, srgWriter, srgTrainingsWriter);
+    srgTrainedWriter.close();
+    srgWriter.close();
+    srgTrainingsWriter.close();
+    System.out.printf(
+        "found %s of %s tax IDs in %s%n", profiles.length(), taxIds.size(), stopwatch);
+    fiftyA.printNameMatchStats();
+  }
 
-    for (char c = 'A'; c <= 'Z'; c++) {
-      File jsonFile = new File(profileDir, String.format("nypd-profiles-%s.json", c));
-      String contents = Files.readString(jsonFile.toPath());
-      JSONArray json = new JSONArray(contents);
-
-      for (int i = 0; i < json.length(); i++) {
-        JSONObject profile = json.getJSONObject(i);
-        JSONArray training;
-        try {
-          training = profile.getJSONObject("reports").getJSONArray("training");
-        } catch (Exception e) {
-          System.out.println("no training data found for " + profile.getString("full_name"));
-          continue;
-        }
-        int taxId = profile.getInt("taxid");
-        LocalDate assignmentDate = getAssignmentDate(profile);
-
-        ImmutableList<Training> allTrainings = getTrainings(training);
-        ImmutableList<Training> srgTrainings =
-            filterTrainings(allTrainings, t -> t.name.startsWith("SRG"));
-        JSONObject matchedData = taxIds.get(taxId);
+  /** Writes rows for the profiles in one letter file. */
+  private void processLetter(
+      JSONArray json,
+      FiftyAIndex fiftyA,
+      CSVWriter srgTrainedWriter,
+      CSVWriter srgWriter,
+      CSVWriter srgTrainingsWriter) {
+    List<Officer> officers = new ArrayList<>();
+    readOfficers(json, officers);
+
+    for (Officer officer : officers) {
+      JSONObject profile = officer.profile;
+      LocalDate assignmentDate = officer.assignmentDate;
+      Trainings allTrainings = officer.trainings;
+      Trainings srgTrainings = allTrainings.filter((courseId, date) -> srgCourses.test(courseId));
+      boolean inSrg = SRG_COMMANDS.contains(profile.getString("command"));
+      if (srgTrainings.isEmpty() && !inSrg) {
+        continue;
+      }
+      // Look the officer up once for all of their rows, and only if they have any.
+      FiftyAIndex.Match match = fiftyA.match(profile);
+      JSONObject matchedData = match == null ? null : match.getOfficer();
 
-        if (!srgTrainings.isEmpty()) {
-          writeOfficerRow(srgTrainedWriter, profile, matchedData, srgTrainings, assignmentDate);
-        }
-        if (SRG_COMMANDS.contains(profile.getString("command"))) {
-          writeOfficerRow(srgWriter, profile, matchedData, srgTrainings, assignmentDate);
-          ImmutableList<Training> trainingsAfterAsignment =
-              filterTrainings(
-                  allTrainings,
-                  t -> !t.date.isPresent() || t.date.get().compareTo(assignmentDate) >= 0);
-          for (Training t : trainingsAfterAsignment) {
-            writeTrainingRow(srgTrainingsWriter, profile, matchedData, t, assignmentDate);
-          }
+      if (!srgTrainings.isEmpty()) {
+        writeOfficerRow(srgTrainedWriter, profile, matchedData, srgTrainings, assignmentDate);
+      }
+      if (inSrg) {
+        writeOfficerRow(srgWriter, profile, matchedData, srgTrainings, assignmentDate);
+        // Each officer has few trainings, so a scan is cheaper than indexing them by date.
+        int assignmentDay = Math.toIntExact(assignmentDate.toEpochDay());
+        Trainings trainingsAfterAsignment =
+            allTrainings.filter(
+                (courseId, date) -> date == Trainings.NO_DATE || date >= assignmentDay);
+        for (int t = 0; t < trainingsAfterAsignment.size(); t++) {
+          writeTrainingRow(
+              srgTrainingsWriter,
+              profile,
+              matchedData,
+              trainingsAfterAsignment,
+              t,
+              assignmentDate);
         }
       }
     }
-
-    srgTrainedWriter.close();
-    srgWriter.close();
-    srgTrainingsWriter.close();
   }
 
-  private static ImmutableList<Training> getTrainings(JSONArray training) {
-    ImmutableList.Builder<Training> trainings = ImmutableList.builder();
-    for (int j = 0; j < training.length(); j++) {
-      JSONObject course = training.getJSONObject(j);
-      if (course.has("date")) {
-        trainings.add(
-            new Training(
-                course.getString("name"),
-                LocalDate.parse(course.getString("date"), INPUT_DATE_FORMAT)));
-      } else {
-        trainings.add(new Training(course.getString("name")));
+  /** Reads officers with training data from a letter file. */
+  private void readOfficers(JSONArray json, List<Officer> officers) {
+    for (int i = 0; i < json.length(); i++) {
+      JSONObject profile = json.getJSONObject(i);
+      JSONArray training;
+      try {
+        training = profile.getJSONObject("reports").getJSONArray("training");
+      } catch (Exception e) {
+        System.out.println("no training data found for " + profile.getString("full_name"));
+        continue;
       }
+      Trainings trainings = getTrainings(training);
+      // The raw training data isn't needed once it's in Trainings, so don't keep it in memory.
+      profile.getJSONObject("reports").remove("training");
+      officers.add(new Officer(profile, getAssignmentDate(profile), trainings));
     }
-    return trainings.build();
   }
 
-  /** Maps from tax ID to 50a data blob. */
-  private ImmutableMap<Integer, JSONObject> get50AData() throws IOException {
-    String contents = Files.readString(fiftyAData.toPath());
-    JSONObject json = new JSONObject(contents).getJSONObject("officers");
-
-    ImmutableMap.Builder<Integer, JSONObject> data = ImmutableMap.builder();
-    for (String mos : json.keySet()) {
-      JSONObject profile = json.getJSONObject(mos);
-      int taxId = profile.optInt("taxid");
-      if (taxId > 0) {
-        data.put(taxId, profile);
+  /**
+   * Writes every training in a course matching -window-course between -window-from and
+   * -window-to, across all officers, using a date index over all trainings.
+   */
+  private void writeWindow(FiftyAIndex fiftyA) throws IOException {
+    Stopwatch stopwatch = Stopwatch.createStarted();
+    List<Officer> officers = new ArrayList<>();
+    for (char c = 'A'; c <= 'Z'; c++) {
+      File jsonFile = new File(profileDir, String.format("nypd-profiles-%s.json", c));
+      readOfficers(new JSONArray(Files.readString(jsonFile.toPath())), officers);
+    }
+    TrainingIndex index = new TrainingIndex(officers, courses.size());
+    System.out.printf("indexed %s officers' trainings in %s%n", officers.size(), stopwatch);
+
+    stopwatch.reset().start();
+    Pattern coursePattern = Pattern.compile(windowCourse);
+    int from = Math.toIntExact(LocalDate.parse(windowFrom).toEpochDay());
+    int to = Math.toIntExact(LocalDate.parse(windowTo).toEpochDay());
+    List<long[]> matches = new ArrayList<>();
+    for (int course = 0; course < courses.size(); course++) {
+      if (coursePattern.matcher(courses.getName(course)).matches()) {
+        int courseId = course;
+        index.forEachBetween(
+            course, from, to, (officer, date) -> matches.add(new long[] {officer, courseId, date}));
       }
     }
+    System.out.printf("found %s trainings in window in %s%n", matches.size(), stopwatch);
+
+    CSVWriter writer = new CSVWriter(new FileWriter(new File(outputDir, "window.csv")));
+    writer.writeNext(SRG_TRAINING_OUTPUT_HEADERS);
+    for (long[] match : matches) {
+      Officer officer = officers.get((int) match[0]);
+      Trainings training =
+          new Trainings(courses, new int[] {(int) match[1]}, new int[] {(int) match[2]});
+      FiftyAIndex.Match fiftyAMatch = fiftyA.match(officer.profile);
+      writeTrainingRow(
+          writer,
+          officer.profile,
+          fiftyAMatch == null ? null : fiftyAMatch.getOfficer(),
+          training,
+          0,
+          officer.assignmentDate);
+    }
+    writer.close();
+    fiftyA.printNameMatchStats();
+  }
 
-    return data.build();
+  private Trainings getTrainings(JSONArray training) {
+    int[] courseIds = new int[training.length()];
+    int[] dates = new int[training.length()];
+    for (int j = 0; j < training.length(); j++) {
+      JSONObject course = training.getJSONObject(j);
+      courseIds[j] = courses.intern(course.getString("name"));
+      dates[j] =
+          course.has("date")
+              ? Math.toIntExact(
+                  LocalDate.parse(course.getString("date"), INPUT_DATE_FORMAT).toEpochDay())
+              : Trainings.NO_DATE;
+    }
+    return new Trainings(courses, courseIds, dates);
   }
 
   private LocalDate getAssignmentDate(JSONObject profile) {
@@ -175,41 +321,34 @@ public final class SrgTraining {
         INPUT_DATE_FORMAT);
   }
 
-  private ImmutableList<Training> filterTrainings(
-      ImmutableList<Training> trainings, Predicate<Training> predicate) {
-    return trainings.stream().filter(predicate).collect(toImmutableList());
-  }
-
   private String[] getRowCommon(
       JSONObject profile, JSONObject matched50AData, LocalDate assignmentDate) {
-    return new String[] {
-      profile.getString("last_name"),
-      profile.getString("first_name"),
-      profile.getString("shield_no"),
-      profile.getString("rank"),
-      profile.getString("command"),
-      DateTimeFormatter.ISO_LOCAL_DATE.format(assignmentDate),
-      matched50AData == null ? "0" : Integer.toString(matched50AData.getInt("substantiated_count")),
-      matched50AData == null ? "0" : Integer.toString(matched50AData.getInt("allegation_count")),
-      matched50AData == null
-          ? ""
-          : String.format(
-              "https://www.50-a.org/officer/%s", matched50AData.getString("unique_mos")),
-      String.format("https://oip.nypdonline.org/view/1/@TAXID=%s", profile.getInt("taxid")),
-    };
+    return ObjectArrays.concat(
+        ObjectArrays.concat(
+            new String[] {
+              profile.getString("last_name"),
+              profile.getString("first_name"),
+              profile.getString("shield_no"),
+              profile.getString("rank"),
+              profile.getString("command"),
+              DateTimeFormatter.ISO_LOCAL_DATE.format(assignmentDate),
+            },
+            OfficerColumns.get50AColumns(matched50AData),
+            String.class),
+        OfficerColumns.getProfileLink(profile));
   }
 
   private void writeOfficerRow(
       CSVWriter officerWriter,
       JSONObject profile,
       JSONObject matched50AData,
-      ImmutableList<Training> srgTrainings,
+      Trainings srgTrainings,
       LocalDate assignmentDate) {
     String[] row =
         ObjectArrays.concat(
             getRowCommon(profile, matched50AData, assignmentDate),
             new String[] {
-              Integer.toString(srgTrainings.size()), Joiner.on('\n').join(srgTrainings),
+              Integer.toString(srgTrainings.size()), srgTrainings.toString(),
             },
             String.class);
     officerWriter.writeNext(row);
@@ -219,45 +358,178 @@ public final class SrgTraining {
       CSVWriter trainingWriter,
       JSONObject profile,
       JSONObject matched50AData,
-      Training training,
+      Trainings trainings,
+      int index,
       LocalDate assignmentDate) {
     String[] row =
         ObjectArrays.concat(
             getRowCommon(profile, matched50AData, assignmentDate),
             new String[] {
-              training.name, training.date.map(DateTimeFormatter.ISO_LOCAL_DATE::format).orElse(""),
+              trainings.getName(index), trainings.getFormattedDate(index),
             },
             String.class);
     trainingWriter.writeNext(row);
   }
 
-  private static final class Training implements Comparable<Training> {
+  /** An officer's trainings, stored as parallel arrays of course IDs and epoch days. */
+  private static final class Trainings {
+
+    /** Epoch day for trainings without a date. */
+    private static final int NO_DATE = Integer.MIN_VALUE;
 
-    private final String name;
-    private final Optional<LocalDate> date;
+    private final Courses courses;
+    private final int[] courseIds;
+    private final int[] dates;
 
-    private Training(String name, LocalDate date) {
-      this.name = name;
-      this.date = Optional.of(date);
+    private Trainings(Courses courses, int[] courseIds, int[] dates) {
+      this.courses = courses;
+      this.courseIds = courseIds;
+      this.dates = dates;
     }
 
-    private Training(String name) {
-      this.name = name;
-      this.date = Optional.empty();
+    private int size() {
+      return courseIds.length;
     }
 
-    @Override
-    public int compareTo(Training that) {
-      return ComparisonChain.start()
-          .compare(this.date, that.date, Comparators.emptiesLast(Comparator.naturalOrder()))
-          .compare(this.name, that.name)
-          .result();
+    private boolean isEmpty() {
+      return courseIds.length == 0;
+    }
+
+    private String getName(int index) {
+      return courses.getName(courseIds[index]);
+    }
+
+    private String getFormattedDate(int index) {
+      return dates[index] == NO_DATE
+          ? ""
+          : DateTimeFormatter.ISO_LOCAL_DATE.format(LocalDate.ofEpochDay(dates[index]));
+    }
+
+    /** Filters by a predicate on course ID and epoch day. */
+    private Trainings filter(BiIntPredicate predicate) {
+      int[] filteredCourseIds = new int[courseIds.length];
+      int[] filteredDates = new int[dates.length];
+      int size = 0;
+      for (int i = 0; i < courseIds.length; i++) {
+        if (predicate.test(courseIds[i], dates[i])) {
+          filteredCourseIds[size] = courseIds[i];
+          filteredDates[size] = dates[i];
+          size++;
+        }
+      }
+      return new Trainings(
+          courses, Arrays.copyOf(filteredCourseIds, size), Arrays.copyOf(filteredDates, size));
     }
 
     @Override
     public String toString() {
-      return String.format(
-          "%s / %s", date.map(DateTimeFormatter.ISO_LOCAL_DATE::format).orElse(""), name);
+      StringBuilder builder = new StringBuilder();
+      for (int i = 0; i < size(); i++) {
+        if (i > 0) {
+          builder.append('\n');
+        }
+        builder.append(String.format("%s / %s", getFormattedDate(i), getName(i)));
+      }
+      return builder.toString();
+    }
+  }
+
+  private static final class Officer {
+
+    private final JSONObject profile;
+    private final LocalDate assignmentDate;
+    private final Trainings trainings;
+
+    private Officer(JSONObject profile, LocalDate assignmentDate, Trainings trainings) {
+      this.profile = profile;
+      this.assignmentDate = assignmentDate;
+      this.trainings = trainings;
+    }
+  }
+
+  /**
+   * Trainings indexed by course and date, so time window queries are binary searches instead of
+   * scans over every training.
+   *
+   * <p>Entries are longs with the epoch day in the high 32 bits (so sorting entries sorts by date,
+   * with undated trainings first) and the index of the officer in the low 32 bits. Each course's
+   * entries are a sorted range of one array, found through a starts array.
+   */
+  private static final class TrainingIndex {
+
+    /** Course c's entries are courseEntries[courseStarts[c]] to [courseStarts[c + 1]). */
+    private final int[] courseStarts;
+
+    /** Date and the index of the officer who took the training. */
+    private final long[] courseEntries;
+
+    private TrainingIndex(List<Officer> officers, int courseCount) {
+      courseStarts = new int[courseCount + 1];
+      for (Officer officer : officers) {
+        for (int courseId : officer.trainings.courseIds) {
+          courseStarts[courseId + 1]++;
+        }
+      }
+      for (int c = 0; c < courseCount; c++) {
+        courseStarts[c + 1] += courseStarts[c];
+      }
+
+      courseEntries = new long[courseStarts[courseCount]];
+      int[] courseNext = Arrays.copyOf(courseStarts, courseCount);
+      for (int o = 0; o < officers.size(); o++) {
+        Trainings trainings = officers.get(o).trainings;
+        for (int t = 0; t < trainings.size(); t++) {
+          courseEntries[courseNext[trainings.courseIds[t]]++] = entry(trainings.dates[t], o);
+        }
+      }
+      for (int c = 0; c < courseCount; c++) {
+        Arrays.sort(courseEntries, courseStarts[c], courseStarts[c + 1]);
+      }
+    }
+
+    private static long entry(int date, int value) {
+      return ((long) date << 32) | value;
     }
+
+    private static int getDate(long entry) {
+      return (int) (entry >> 32);
+    }
+
+    private static int getValue(long entry) {
+      return (int) entry;
+    }
+
+    /** Calls the visitor with every training in a course from one date to another, inclusive. */
+    private void forEachBetween(int course, int from, int to, BiIntConsumer visitor) {
+      int end = courseStarts[course + 1];
+      for (int e = lowerBound(courseEntries, courseStarts[course], end, entry(from, 0));
+          e < end && getDate(courseEntries[e]) <= to;
+          e++) {
+        visitor.accept(getValue(courseEntries[e]), getDate(courseEntries[e]));
+      }
+    }
+
+    /** First index from start to end with an entry at least key, or end if there isn't one. */
+    private static int lowerBound(long[] entries, int start, int end, long key) {
+      int low = start;
+      int high = end;
+      while (low < high) {
+        int mid = (low + high) >>> 1;
+        if (entries[mid] < key) {
+          low = mid + 1;
+        } else {
+          high = mid;
+        }
+      }
+      return low;
+    }
+  }
+
+  private interface BiIntConsumer {
+    void accept(int officer, int date);
+  }
+
+  private interface BiIntPredicate {
+    boolean test(int courseId, int date);
   }
 }
@@ -0,0 +1,206 @@
+package emspishak.nypd.syntheticcorpus;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import com.google.common.io.Files;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.util.SplittableRandom;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import org.json.JSONArray;
+import org.json.JSONObject;
+import org.kohsuke.args4j.CmdLineException;
+import org.kohsuke.args4j.CmdLineParser;
+import org.kohsuke.args4j.Option;
+
+/**
+ * A local stand-in for the DocumentCloud search API that LegalAid crawls, serving generated CCRB
+ * Closing Reports. Most have the CCRB ID in their title, and the rest have it in the text of their
+ * first page, so LegalAid never has to ask for one. Documents are a function of the seed and their
+ * number, like SyntheticCorpus.
+ */
+public final class DocumentCloudServer {
+
+  private static final Pattern SEARCH_PAGE = Pattern.compile("page=(\\d+)");
+
+  private static final Pattern TEXT_PATH = Pattern.compile("/assets/documents/(\\d+)/pages/.*");
+
+  /** DocumentCloud ID of the first generated document; the rest are numbered from here. */
+  private static final int FIRST_DOCUMENT_ID = 20_000_000;
+
+  /** CCRB ID of the first generated document. */
+  private static final int FIRST_CCRB_ID = 201_900_000;
+
+  @Option(name = "-port", usage = "Port to serve on.")
+  private int port = 8080;
+
+  @Option(name = "-documents", usage = "Number of documents to serve.")
+  private int documents = 2000;
+
+  @Option(name = "-page-size", usage = "Documents per search results page.")
+  private int pageSize = 25;
+
+  @Option(name = "-seed", usage = "Seed for the documents.")
+  private long seed = 1;
+
+  @Option(name = "-error-rate", usage = "Fraction of requests to fail with a 503, to test retries.")
+  private double errorRate = 0;
+
+  @Option(
+      name = "-resources",
+      usage = "File to write LegalAid -resources JSON to, with the first tenth of the documents.")
+  private File resources;
+
+  private HttpServer server;
+  private ExecutorService executor;
+  private SplittableRandom errors;
+
+  public static void main(String[] args) throws CmdLineException, IOException {
+    DocumentCloudServer server = new DocumentCloudServer();
+    CmdLineParser parser = new CmdLineParser(server);
+    parser.parseArgument(args);
+    server.start();
+    if (server.resources != null) {
+      server.writeResources(server.resources);
+    }
+    System.out.printf("serving %s documents at %s%n", server.documents, server.getSearchUrl());
+  }
+
+  /** Creates a server on any free port. Call start() to start it. */
+  public static DocumentCloudServer create(int documents, int pageSize, long seed) {
+    DocumentCloudServer server = new DocumentCloudServer();
+    server.port = 0;
+    server.documents = documents;
+    server.pageSize = pageSize;
+    server.seed = seed;
+    return server;
+  }
+
+  public void start() throws IOException {
+    errors = new SplittableRandom(seed);
+    server = HttpServer.create(new InetSocketAddress("localhost", port), 0);
+    server.createContext("/", this::handle);
+    executor = Executors.newFixedThreadPool(16);
+    server.setExecutor(executor);
+    server.start();
+  }
+
+  public void stop() {
+    server.stop(0);
+    executor.shutdown();
+  }
+
+  /** The first page of search results, for LegalAid's -search-url. */
+  public String getSearchUrl() {
+    return getSearchUrl(1);
+  }
+
+  /** Writes LegalAid -resources JSON that already has the first tenth of the documents. */
+  public void writeResources(File file) throws IOException {
+    JSONArray complaints = new JSONArray();
+    for (int i = 0; i < documents / 10; i++) {
+      complaints.put(
+          new JSONObject()
+              .put("title", "Complaint Closing Report")
+              .put("complaint", Integer.toString(FIRST_CCRB_ID + i))
+              .put("url", getCanonicalUrl(i)));
+    }
+    Files.asCharSink(file, UTF_8).write(new JSONObject().put("complaints", complaints).toString());
+  }
+
+  private void handle(HttpExchange exchange) throws IOException {
+    try {
+      if (shouldFail()) {
+        exchange.sendResponseHeaders(503, -1);
+        return;
+      }
+
+      String path = exchange.getRequestURI().getPath();
+      Matcher text = TEXT_PATH.matcher(path);
+      if (path.startsWith("/api/documents/search/")) {
+        String query = exchange.getRequestURI().getQuery();
+        Matcher page = SEARCH_PAGE.matcher(query == null ? "" : query);
+        send(exchange, getSearchPage(page.find() ? Integer.parseInt(page.group(1)) : 1));
+      } else if (text.matches()) {
+        send(exchange, getFirstPageText(Integer.parseInt(text.group(1)) - FIRST_DOCUMENT_ID));
+      } else {
+        exchange.sendResponseHeaders(404, -1);
+      }
+    } finally {
+      exchange.close();
+    }
+  }
+
+  private synchronized boolean shouldFail() {
+    return errorRate > 0 && errors.nextDouble() < errorRate;
+  }
+
+  private static void send(HttpExchange exchange, String body) throws IOException {
+    byte[] bytes = body.getBytes(UTF_8);
+    exchange.sendResponseHeaders(200, bytes.length);
+    try (OutputStream out = exchange.getResponseBody()) {
+      out.write(bytes);
+    }
+  }
+
+  private String getSearchPage(int page) {
+    JSONArray results = new JSONArray();
+    int start = (page - 1) * pageSize;
+    for (int i = start; i < Math.min(start + pageSize, documents); i++) {
+      results.put(getDocument(i));
+    }
+    return new JSONObject()
+        .put("count", documents)
+        .put("next", start + pageSize < documents ? getSearchUrl(page + 1) : JSONObject.NULL)
+        .put("results", results)
+        .toString();
+  }
+
+  private JSONObject getDocument(int i) {
+    String title =
+        hasIdInTitle(i)
+            ? String.format("CCRB Investigative Recommendation %s", FIRST_CCRB_ID + i)
+            : String.format("Closing Report %s", i);
+    return new JSONObject()
+        .put("id", FIRST_DOCUMENT_ID + i)
+        .put("slug", getSlug(i))
+        .put("title", title)
+        .put("canonical_url", getCanonicalUrl(i))
+        .put("asset_url", String.format("http://localhost:%s/assets/", getPort()));
+  }
+
+  private String getFirstPageText(int i) {
+    return String.format(
+        "CIVILIAN COMPLAINT REVIEW BOARD%nCCRB Investigative Recommendation%nCase Summary%n"
+            + "CCRB Case #: %s%n",
+        FIRST_CCRB_ID + i);
+  }
+
+  private boolean hasIdInTitle(int i) {
+    return new SplittableRandom(seed * 31 + i).nextInt(100) < 70;
+  }
+
+  private static String getSlug(int i) {
+    return String.format("closing-report-%s", i);
+  }
+
+  private static String getCanonicalUrl(int i) {
+    return String.format(
+        "https://www.documentcloud.org/documents/%s-%s", FIRST_DOCUMENT_ID + i, getSlug(i));
+  }
+
+  private String getSearchUrl(int page) {
+    return String.format("http://localhost:%s/api/documents/search/?page=%s", getPort(), page);
+  }
+
+  private int getPort() {
+    return server.getAddress().getPort();
+  }
+}
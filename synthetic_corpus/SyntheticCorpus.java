@@ -0,0 +1,525 @@
+package emspishak.nypd.syntheticcorpus;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import com.google.common.base.Stopwatch;
+import com.google.common.collect.ImmutableList;
+import com.opencsv.CSVWriter;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.time.LocalDate;
+import java.time.format.DateTimeFormatter;
+import java.util.SplittableRandom;
+import org.json.JSONArray;
+import org.json.JSONObject;
+import org.kohsuke.args4j.CmdLineException;
+import org.kohsuke.args4j.CmdLineParser;
+import org.kohsuke.args4j.Option;
+
+/**
+ * Writes a synthetic corpus in the same formats as the real inputs to the tools, at a multiple of
+ * NYC's size: NYPD profile letter files, officers.csv, a multi-year payroll CSV and a 50-a
+ * server-cache.json.
+ *
+ * <p>Everything about an officer is a function of the seed and the officer's number, so the same
+ * seed and scale always give the same corpus, and outputs can be written in one pass each without
+ * keeping officers in memory. Names are drawn from skewed distributions over common names with a
+ * long tail of made up ones, so common names collide about as often as they do in the real data.
+ */
+public final class SyntheticCorpus {
+
+  /** About how many officers NYC has, for scale 1. */
+  private static final int BASE_OFFICERS = 36_000;
+
+  /** Civilian employees in the payroll data, per officer. */
+  private static final double CIVILIANS_PER_OFFICER = 0.4;
+
+  /** 50-a officers that aren't in the profile data any more, per officer. */
+  private static final double HISTORICAL_PER_OFFICER = 0.15;
+
+  /** Complaints in the 50-a data, per officer. */
+  private static final double COMPLAINTS_PER_OFFICER = 0.6;
+
+  private static final DateTimeFormatter DATE_FORMAT = DateTimeFormatter.ofPattern("M/d/yyyy");
+
+  private static final ImmutableList<String> LAST_NAMES =
+      ImmutableList.of(
+          "RODRIGUEZ", "SMITH", "RIVERA", "GARCIA", "MARTINEZ", "WILLIAMS", "JOHNSON", "BROWN",
+          "LOPEZ", "PEREZ", "GONZALEZ", "SANTIAGO", "JONES", "MURPHY", "DIAZ", "CRUZ", "TORRES",
+          "REYES", "RAMOS", "HERNANDEZ", "ORTIZ", "KELLY", "MORALES", "LEE", "DAVIS", "CHEN",
+          "RUSSO", "WONG", "FLORES", "SULLIVAN", "JACKSON", "CASTRO", "MILLER", "KING", "MORAN",
+          "CHAN", "NUNEZ", "WALSH", "VASQUEZ", "ROMANO", "QUINONES", "LI", "YOUNG", "ZHANG",
+          "THOMAS", "FERNANDEZ", "OCONNOR", "NGUYEN", "ESPOSITO", "XU", "WHITE", "ALI", "KHAN");
+
+  private static final ImmutableList<String> FIRST_NAMES =
+      ImmutableList.of(
+          "MICHAEL", "JOHN", "CHRISTOPHER", "JOSEPH", "DANIEL", "ANTHONY", "JOSE", "ROBERT",
+          "MATTHEW", "KEVIN", "JAMES", "DAVID", "NICHOLAS", "THOMAS", "JONATHAN", "BRIAN",
+          "WILLIAM", "LUIS", "ANDREW", "RYAN", "JASON", "PATRICK", "RICHARD", "JUAN", "STEVEN",
+          "MARIA", "JENNIFER", "JESSICA", "MELISSA", "STEPHANIE", "ASHLEY", "NICOLE", "CARLOS",
+          "ERIC", "VINCENT", "EDWIN", "WEI", "MOHAMMED", "YAN", "ISAAC", "QUENTIN", "XAVIER");
+
+  /** Syllables for made up names, for a long tail of rare names. */
+  private static final ImmutableList<String> SYLLABLES =
+      ImmutableList.of(
+          "AB", "BEL", "CAR", "DO", "EL", "FA", "GAN", "HO", "IN", "JA", "KO", "LAN", "MI", "NO",
+          "OS", "PE", "QUI", "RA", "SO", "TI", "UL", "VA", "WIL", "XI", "YO", "ZA", "BER", "TON");
+
+  private static final ImmutableList<String> RANKS =
+      ImmutableList.of(
+          "POLICE OFFICER", "SERGEANT", "DETECTIVE", "LIEUTENANT", "CAPTAIN", "DEPUTY INSPECTOR");
+
+  /** Percent of officers with each rank, by rank. */
+  private static final int[] RANK_PERCENTS = {68, 15, 11, 4, 1, 1};
+
+  private static final ImmutableList<String> SRG_COMMANDS =
+      ImmutableList.of(
+          "STRATEGIC RESP GRP 1 MANHATTAN",
+          "STRATEGIC RESP GRP 2 BRONX",
+          "STRATEGIC RESP GRP 3 BROOKLYN",
+          "STRATEGIC RESP GRP 4 QUEENS",
+          "STRATEGIC RESP GRP 5 SI",
+          "STRATEGIC RESPONSE GROUP");
+
+  private static final ImmutableList<String> BOROUGHS =
+      ImmutableList.of("MANHATTAN", "BRONX", "BROOKLYN", "QUEENS", "RICHMOND");
+
+  private static final ImmutableList<String> COURSES =
+      ImmutableList.of(
+          "ANNUAL FIREARMS QUALIFICATION",
+          "BODY WORN CAMERA",
+          "CPR/AED RECERTIFICATION",
+          "CONDUCTED ELECTRICAL WEAPON RECERTIFICATION",
+          "DE-ESCALATION AND USE OF FORCE",
+          "IMPLICIT BIAS",
+          "ACTIVE SHOOTER RESPONSE",
+          "NALOXONE ADMINISTRATION",
+          "PATROL GUIDE UPDATES",
+          "DOMESTIC VIOLENCE",
+          "CRISIS INTERVENTION TEAM",
+          "LEGAL BUREAU UPDATE");
+
+  private static final ImmutableList<String> SRG_COURSES =
+      ImmutableList.of(
+          "SRG DISORDER CONTROL",
+          "SRG BICYCLE SQUAD",
+          "SRG ADVANCED TACTICS",
+          "SRG CRITICAL RESPONSE");
+
+  private static final ImmutableList<String> NST_COURSES =
+      ImmutableList.of(
+          "NEIGHBORHOOD SAFETY TEAM TRAINING, 7-DAY COURSE",
+          "DASHBOARD CAMERA FOR NEIGHBORHOOD SAFETY TEAMS");
+
+  /** Civilian payroll titles, which ProfilePayroll drops by default. */
+  private static final ImmutableList<String> CIVILIAN_TITLES =
+      ImmutableList.of(
+          "ACCOUNTANT",
+          "ADMINISTRATIVE MANAGER",
+          "ADMIN TRAFFIC ENFRCMNT AGENT",
+          "ADMINISTRATIVE STAFF ANALYST");
+
+  @Option(name = "-output-dir", usage = "Directory to write the corpus to.")
+  private File outputDir;
+
+  @Option(name = "-scale", usage = "Multiple of NYC's size to generate.")
+  private int scale = 1;
+
+  @Option(name = "-seed", usage = "Seed for the corpus; the same seed gives the same corpus.")
+  private long seed = 1;
+
+  @Option(name = "-years", usage = "Number of fiscal years of payroll data.")
+  private int years = 5;
+
+  @Option(name = "-last-year", usage = "Last fiscal year of payroll data.")
+  private int lastYear = 2023;
+
+  public static void main(String[] args) throws CmdLineException, IOException {
+    new SyntheticCorpus().doMain(args);
+  }
+
+  private void doMain(String[] args) throws CmdLineException, IOException {
+    CmdLineParser parser = new CmdLineParser(this);
+    parser.parseArgument(args);
+    write(outputDir, scale, seed, years, lastYear);
+  }
+
+  /**
+   * Writes a corpus to a directory: a profiles directory of letter files, officers.csv,
+   * payroll.csv and server-cache.json.
+   */
+  public static void write(File outputDir, int scale, long seed, int years, int lastYear)
+      throws IOException {
+    writeOfficers(outputDir, BASE_OFFICERS * scale, seed, years, lastYear);
+  }
+
+  /** Like {@link #write}, with a number of officers instead of a scale, e.g. for small fixtures. */
+  public static void writeOfficers(
+      File outputDir, int officers, long seed, int years, int lastYear) throws IOException {
+    Stopwatch stopwatch = Stopwatch.createStarted();
+    LocalDate end = LocalDate.of(lastYear, 6, 30);
+    File profileDir = new File(outputDir, "profiles");
+    profileDir.mkdirs();
+
+    writeProfiles(profileDir, seed, officers, end);
+    writeOfficersCsv(new File(outputDir, "officers.csv"), seed, officers, end);
+    writePayroll(new File(outputDir, "payroll.csv"), seed, officers, end, years);
+    writeFiftyA(new File(outputDir, "server-cache.json"), seed, officers, end);
+    System.out.printf("wrote %s officers to %s in %s%n", officers, outputDir, stopwatch);
+  }
+
+  private static void writeProfiles(File profileDir, long seed, int officers, LocalDate end)
+      throws IOException {
+    Writer[] letterFiles = new Writer[26];
+    boolean[] empty = new boolean[26];
+    for (int c = 0; c < 26; c++) {
+      letterFiles[c] =
+          newWriter(new File(profileDir, String.format("nypd-profiles-%s.json", (char) ('A' + c))));
+      letterFiles[c].write("[\n");
+      empty[c] = true;
+    }
+    for (int i = 0; i < officers; i++) {
+      Officer officer = new Officer(seed, i, end);
+      int c = officer.lastName.charAt(0) - 'A';
+      if (!empty[c]) {
+        letterFiles[c].write(",\n");
+      }
+      letterFiles[c].write(officer.toProfile().toString());
+      empty[c] = false;
+    }
+    for (Writer letterFile : letterFiles) {
+      letterFile.write("\n]\n");
+      letterFile.close();
+    }
+  }
+
+  private static void writeOfficersCsv(File file, long seed, int officers, LocalDate end)
+      throws IOException {
+    try (CSVWriter writer = new CSVWriter(newWriter(file))) {
+      writer.writeNext(
+          new String[] {
+            "taxid", "full_name", "first_name", "last_name", "middle_initial", "shield_no", "rank",
+            "command", "appt_date",
+          });
+      for (int i = 0; i < officers; i++) {
+        Officer officer = new Officer(seed, i, end);
+        writer.writeNext(
+            new String[] {
+              Integer.toString(officer.taxId),
+              officer.getFullName(),
+              officer.firstName,
+              officer.lastName,
+              officer.middleInitial,
+              Integer.toString(officer.shield),
+              officer.rank,
+              officer.command,
+              DATE_FORMAT.format(officer.appointmentDate),
+            });
+      }
+    }
+  }
+
+  /**
+   * Writes a payroll row for every officer and civilian employed in each fiscal year, oldest year
+   * first. Payroll has no header.
+   */
+  private static void writePayroll(File file, long seed, int officers, LocalDate end, int years)
+      throws IOException {
+    int civilians = civilians(officers);
+    try (CSVWriter writer = new CSVWriter(newWriter(file))) {
+      for (int year = end.getYear() - years + 1; year <= end.getYear(); year++) {
+        LocalDate yearEnd = LocalDate.of(year, 6, 30);
+        for (int i = 0; i < officers; i++) {
+          Officer officer = new Officer(seed, i, end);
+          if (!officer.appointmentDate.isAfter(yearEnd)) {
+            writer.writeNext(officer.toPayroll(year, officer.rank));
+          }
+        }
+        for (int i = 0; i < civilians; i++) {
+          // Civilians are numbered after officers, so they don't share random streams.
+          Officer civilian = new Officer(seed, officers + i, end);
+          if (!civilian.appointmentDate.isAfter(yearEnd)) {
+            writer.writeNext(
+                civilian.toPayroll(year, CIVILIAN_TITLES.get(i % CIVILIAN_TITLES.size())));
+          }
+        }
+      }
+    }
+  }
+
+  /**
+   * Writes 50-a data. Most officers have a 50-a record with their tax ID, some have a record with
+   * only their name and shield, and there are also records for officers who are no longer in the
+   * profile data. Complaints are shared between officers.
+   */
+  private static void writeFiftyA(File file, long seed, int officers, LocalDate end)
+      throws IOException {
+    // Historical officers are numbered after officers and civilians.
+    int historicalStart = officers + civilians(officers);
+    int historicalEnd = historicalStart + (int) (officers * HISTORICAL_PER_OFFICER);
+    int complaints = Math.max(1, (int) (officers * COMPLAINTS_PER_OFFICER));
+    try (Writer writer = newWriter(file)) {
+      writer.write("{\"officers\":{");
+      boolean first = true;
+      for (int i = 0; i < historicalEnd; i++) {
+        if (i == officers) {
+          i = historicalStart;
+        }
+        Officer officer = new Officer(seed, i, end);
+        SplittableRandom random = random(seed, i, 1);
+        int percent = random.nextInt(100);
+        boolean inProfiles = i < officers;
+        if (inProfiles && percent >= 83) {
+          continue;
+        }
+        boolean hasTaxId = inProfiles && percent < 75;
+        if (!first) {
+          writer.write(",\n");
+        }
+        first = false;
+        writer.write(String.format("\"mos%s\":", i));
+        writer.write(officer.toFiftyA(random, hasTaxId, complaints).toString());
+      }
+
+      writer.write("},\n\"complaints\":{");
+      for (int k = 0; k < complaints; k++) {
+        if (k > 0) {
+          writer.write(",\n");
+        }
+        writer.write(String.format("\"c%s\":", k));
+        writer.write(getComplaint(random(seed, k, 2), k).toString());
+      }
+      writer.write("}}\n");
+    }
+  }
+
+  private static int civilians(int officers) {
+    return (int) (officers * CIVILIANS_PER_OFFICER);
+  }
+
+  private static JSONObject getComplaint(SplittableRandom random, int k) {
+    JSONObject complaint = new JSONObject().put("id", "c" + k);
+    int percent = random.nextInt(100);
+    if (percent < 40) {
+      JSONArray documents = new JSONArray();
+      documents.put(
+          new JSONObject()
+              .put(
+                  "url",
+                  percent < 30
+                      ? String.format("/complaint/c%s/closing-report.pdf", k)
+                      : String.format("https://www.documentcloud.org/documents/%s-closing", k)));
+      complaint.put("resources", new JSONObject().put("complaints", documents));
+    }
+    return complaint;
+  }
+
+  private static Writer newWriter(File file) throws IOException {
+    return new BufferedWriter(new OutputStreamWriter(new FileOutputStream(file), UTF_8), 1 << 16);
+  }
+
+  /** A random stream for one thing (an officer or a complaint) and one purpose. */
+  private static SplittableRandom random(long seed, int index, int stream) {
+    long mixed = seed * 0x9E3779B97F4A7C15L + index * 0xBF58476D1CE4E5B9L + stream;
+    return new SplittableRandom(mixed);
+  }
+
+  /** Picks from a list, strongly favoring items near the front, like real name frequencies. */
+  private static String pickSkewed(SplittableRandom random, ImmutableList<String> list) {
+    double r = random.nextDouble();
+    return list.get((int) (list.size() * r * r * r));
+  }
+
+  private static String pick(SplittableRandom random, ImmutableList<String> list) {
+    return list.get(random.nextInt(list.size()));
+  }
+
+  private static String makeUpName(SplittableRandom random) {
+    StringBuilder name = new StringBuilder();
+    int syllables = 2 + random.nextInt(2);
+    for (int s = 0; s < syllables; s++) {
+      name.append(pick(random, SYLLABLES));
+    }
+    return name.toString();
+  }
+
+  private static LocalDate randomDate(SplittableRandom random, LocalDate from, LocalDate to) {
+    long days = Math.max(1, to.toEpochDay() - from.toEpochDay());
+    return LocalDate.ofEpochDay(from.toEpochDay() + random.nextLong(days));
+  }
+
+  /** One generated officer (or civilian employee), determined by the seed and its number. */
+  private static final class Officer {
+
+    private final long seed;
+    private final int number;
+    private final int taxId;
+    private final String lastName;
+    private final String firstName;
+    private final String middleInitial;
+    private final int shield;
+    private final String rank;
+    private final String command;
+    private final String borough;
+    private final LocalDate appointmentDate;
+    private final LocalDate assignmentDate;
+    private final LocalDate end;
+
+    private Officer(long seed, int number, LocalDate end) {
+      SplittableRandom random = random(seed, number, 0);
+      this.seed = seed;
+      this.number = number;
+      this.end = end;
+      taxId = 100_000 + number;
+      lastName =
+          random.nextInt(100) < 35 ? makeUpName(random) : pickSkewed(random, LAST_NAMES);
+      firstName =
+          random.nextInt(100) < 8 ? makeUpName(random) : pickSkewed(random, FIRST_NAMES);
+      middleInitial =
+          random.nextInt(100) < 30 ? "" : Character.toString((char) ('A' + random.nextInt(26)));
+      // Shields are reused, so they only identify an officer along with their name.
+      shield = 1 + random.nextInt(30_000);
+
+      int rankPercent = random.nextInt(100);
+      int r = 0;
+      while (rankPercent >= RANK_PERCENTS[r]) {
+        rankPercent -= RANK_PERCENTS[r];
+        r++;
+      }
+      rank = RANKS.get(r);
+
+      int boroughIndex = random.nextInt(BOROUGHS.size());
+      borough = BOROUGHS.get(boroughIndex);
+      command =
+          random.nextInt(100) < 4
+              ? SRG_COMMANDS.get(random.nextInt(SRG_COMMANDS.size()))
+              : String.format("%03d PRECINCT", 1 + boroughIndex * 25 + random.nextInt(25));
+      appointmentDate = randomDate(random, end.minusYears(25), end.minusDays(30));
+      assignmentDate = randomDate(random, appointmentDate, end);
+    }
+
+    private String getFullName() {
+      return middleInitial.isEmpty()
+          ? String.format("%s %s", firstName, lastName)
+          : String.format("%s %s %s", firstName, middleInitial, lastName);
+    }
+
+    private JSONObject toProfile() {
+      SplittableRandom random = random(seed, number, 3);
+      JSONArray training = new JSONArray();
+      int courses = 3 + random.nextInt(20);
+      for (int t = 0; t < courses; t++) {
+        addTraining(training, random, pick(random, COURSES));
+      }
+      boolean srg = SRG_COMMANDS.contains(command);
+      if (random.nextInt(100) < (srg ? 80 : 3)) {
+        int srgCourses = 1 + random.nextInt(srg ? 4 : 1);
+        for (int t = 0; t < srgCourses; t++) {
+          addTraining(training, random, pick(random, SRG_COURSES));
+        }
+      }
+      int nstPercent = random.nextInt(100);
+      if (nstPercent < 3) {
+        // Most NST officers have both NST courses, but some only have one so far.
+        for (int t = 0; t < (nstPercent < 2 ? 2 : 1); t++) {
+          addTraining(training, random, NST_COURSES.get(t));
+        }
+      }
+
+      return new JSONObject()
+          .put("taxid", taxId)
+          .put("full_name", getFullName())
+          .put("first_name", firstName)
+          .put("last_name", lastName)
+          .put("middle_initial", middleInitial)
+          .put("shield_no", Integer.toString(shield))
+          .put("rank", rank)
+          .put("command", command)
+          .put(
+              "reports",
+              new JSONObject()
+                  .put(
+                      "summary",
+                      new JSONObject().put("assignment_date", DATE_FORMAT.format(assignmentDate)))
+                  .put("training", training));
+    }
+
+    private void addTraining(JSONArray training, SplittableRandom random, String name) {
+      JSONObject course = new JSONObject().put("name", name);
+      // A few trainings have no date.
+      if (random.nextInt(100) >= 2) {
+        course.put("date", DATE_FORMAT.format(randomDate(random, appointmentDate, end)));
+      }
+      training.put(course);
+    }
+
+    private String[] toPayroll(int year, String title) {
+      SplittableRandom random = random(seed, number, 10 + year);
+      // Payroll sometimes has suffixes the profile data doesn't.
+      String payrollLastName = random.nextInt(100) < 3 ? lastName + " JR" : lastName;
+      int baseSalary = 42_500 + random.nextInt(100_000);
+      int overtimeHours = random.nextInt(800);
+      return new String[] {
+        Integer.toString(year),
+        "056",
+        "POLICE DEPARTMENT",
+        payrollLastName,
+        firstName,
+        middleInitial,
+        DATE_FORMAT.format(appointmentDate),
+        borough,
+        title,
+        "ACTIVE",
+        String.format("%s.00", baseSalary),
+        "per Annum",
+        "2080.00",
+        String.format("%s.00", baseSalary - random.nextInt(2_000)),
+        String.format("%s.00", overtimeHours),
+        String.format("%s.00", overtimeHours * 70),
+        String.format("%s.00", random.nextInt(10_000)),
+      };
+    }
+
+    private JSONObject toFiftyA(SplittableRandom random, boolean hasTaxId, int complaintCount) {
+      JSONObject officer =
+          new JSONObject()
+              .put("unique_mos", "mos" + number)
+              .put("first_name", firstName)
+              .put("last_name", lastName)
+              .put("shield_no", Integer.toString(shield));
+      if (hasTaxId) {
+        officer.put("taxid", taxId);
+      }
+
+      // Most officers have few complaints and a few have many.
+      double r = random.nextDouble();
+      int allegations = (int) (40 * r * r * r * r);
+      JSONArray complaints = new JSONArray();
+      for (int c = 0; c < (allegations + 1) / 2; c++) {
+        complaints.put("c" + random.nextInt(complaintCount));
+      }
+      officer
+          .put("allegation_count", allegations)
+          .put("substantiated_count", random.nextInt(allegations + 1) / 3)
+          .put("complaints", complaints);
+
+      if (random.nextInt(100) < 10) {
+        String url = String.format("https://www.50-a.org/documents/%s.pdf", number);
+        officer.put("documents", new JSONArray().put(new JSONObject().put("url", url)));
+      }
+      if (random.nextInt(100) < 5) {
+        JSONArray cases = new JSONArray();
+        int count = 1 + random.nextInt(3);
+        for (int c = 0; c < count; c++) {
+          cases.put(new JSONObject().put("case", String.format("%s-%s", number, c)));
+        }
+        officer.put("lawsuits", new JSONObject().put("cases", cases));
+      }
+      return officer;
+    }
+  }
+}
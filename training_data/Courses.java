@@ -0,0 +1,67 @@
+package emspishak.nypd.trainingdata;
+
+import com.google.common.collect.ImmutableSet;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.IntPredicate;
+import java.util.regex.Pattern;
+
+/**
+ * Dictionary of course names, so each distinct course is only stored once and has an int ID. It's
+ * safe to use from several threads, e.g. processing letter files at once.
+ */
+public final class Courses {
+
+  /** SRG courses, which all have names starting with "SRG". */
+  public static final Pattern SRG_COURSE = Pattern.compile("SRG.*", Pattern.DOTALL);
+
+  /** Officers who took all of these are NST trained. */
+  public static final ImmutableSet<String> NST_COURSE_NAMES =
+      ImmutableSet.of(
+          "NEIGHBORHOOD SAFETY TEAM TRAINING, 7-DAY COURSE",
+          "DASHBOARD CAMERA FOR NEIGHBORHOOD SAFETY TEAMS");
+
+  private final Map<String, Integer> ids = new HashMap<>();
+  private final List<String> names = new ArrayList<>();
+
+  public synchronized int intern(String name) {
+    Integer id = ids.get(name);
+    if (id == null) {
+      id = names.size();
+      ids.put(name, id);
+      names.add(name);
+    }
+    return id;
+  }
+
+  public synchronized String getName(int id) {
+    return names.get(id);
+  }
+
+  public synchronized int size() {
+    return names.size();
+  }
+
+  /**
+   * Returns whether a course ID's name matches a pattern. The pattern only runs once per distinct
+   * course instead of once per training.
+   */
+  public IntPredicate matching(Pattern pattern) {
+    BitSet checked = new BitSet();
+    BitSet matches = new BitSet();
+    return id -> {
+      synchronized (checked) {
+        if (!checked.get(id)) {
+          checked.set(id);
+          if (pattern.matcher(getName(id)).matches()) {
+            matches.set(id);
+          }
+        }
+        return matches.get(id);
+      }
+    };
+  }
+}
@@ -0,0 +1,30 @@
+package emspishak.nypd.trainingdata;
+
+import org.json.JSONObject;
+
+/** Output columns every training tool has for an officer, from their profile and 50-a data. */
+public final class OfficerColumns {
+
+  private OfficerColumns() {}
+
+  /**
+   * The substantiated_count, allegation_count and 50a_link columns.
+   *
+   * @param matched50AData the officer's 50-a data, or null if they aren't in it
+   */
+  public static String[] get50AColumns(JSONObject matched50AData) {
+    return new String[] {
+      matched50AData == null ? "0" : Integer.toString(matched50AData.getInt("substantiated_count")),
+      matched50AData == null ? "0" : Integer.toString(matched50AData.getInt("allegation_count")),
+      matched50AData == null
+          ? ""
+          : String.format(
+              "https://www.50-a.org/officer/%s", matched50AData.getString("unique_mos")),
+    };
+  }
+
+  /** The nypd_profile_link column. */
+  public static String getProfileLink(JSONObject profile) {
+    return String.format("https://oip.nypdonline.org/view/1/@TAXID=%s", profile.getInt("taxid"));
+  }
+}
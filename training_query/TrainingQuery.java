@@ -0,0 +1,314 @@
+package emspishak.nypd.trainingquery;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
+import com.opencsv.CSVWriter;
+import emspishak.nypd.fiftya.FiftyAIndex;
+import emspishak.nypd.trainingdata.Courses;
+import emspishak.nypd.trainingdata.OfficerColumns;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.time.LocalDate;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.function.IntPredicate;
+import java.util.regex.Pattern;
+import org.json.JSONArray;
+import org.json.JSONObject;
+import org.kohsuke.args4j.CmdLineException;
+import org.kohsuke.args4j.CmdLineParser;
+import org.kohsuke.args4j.Option;
+
+/**
+ * Finds officers matching declarative training rules, e.g. "took all of these courses" or "took a
+ * course matching SRG.* after their assignment date". All rules are evaluated in a single pass over
+ * the NYPD profile data and each rule gets its own CSV output.
+ */
+public final class TrainingQuery {
+
+  private static final String[] OUTPUT_HEADERS = {
+    "last_name",
+    "first_name",
+    "tax_id",
+    "badge_no",
+    "rank",
+    "command",
+    "assignment_date",
+    "substantiated_count",
+    "allegation_count",
+    "50a_link",
+    "nypd_profile_link",
+    "matched_training_count",
+    "matched_trainings",
+  };
+
+  private static final DateTimeFormatter INPUT_DATE_FORMAT = DateTimeFormatter.ofPattern("M/d/u");
+
+  /** Rule names are used as output file names, so they can't have path separators or dots. */
+  private static final Pattern RULE_NAME = Pattern.compile("[A-Za-z0-9_-]+");
+
+  /** Epoch day for trainings without a date. */
+  private static final int NO_DATE = Integer.MIN_VALUE;
+
+  @Option(name = "-profile-dir", usage = "Directory with NYPD profile JSON.")
+  private File profileDir;
+
+  @Option(name = "-50a-data", usage = "Optional 50-a server-cache.json file.")
+  private File fiftyAData;
+
+  @Option(
+      name = "-50a-index",
+      usage = "Index of the 50-a data, built if missing or stale. Defaults to next to -50a-data.")
+  private File fiftyAIndex;
+
+  @Option(name = "-rules", usage = "JSON file with the rules to evaluate.")
+  private File rulesFile;
+
+  @Option(name = "-output-dir", usage = "Directory for CSV outputs, one per rule.")
+  private File outputDir;
+
+  private final Courses courses = new Courses();
+
+  public static void main(String[] args) throws CmdLineException, IOException {
+    new TrainingQuery().doMain(args);
+  }
+
+  private void doMain(String[] args) throws CmdLineException, IOException {
+    CmdLineParser parser = new CmdLineParser(this);
+    parser.parseArgument(args);
+    outputDir.mkdir();
+
+    ImmutableList<Rule> rules = readRules();
+    FiftyAIndex fiftyA = fiftyAData == null ? null : FiftyAIndex.load(fiftyAData, fiftyAIndex);
+
+    List<CSVWriter> writers = new ArrayList<>();
+    for (Rule rule : rules) {
+      CSVWriter writer =
+          new CSVWriter(new FileWriter(new File(outputDir, String.format("%s.csv", rule.name))));
+      writer.writeNext(OUTPUT_HEADERS);
+      writers.add(writer);
+    }
+    int[] matchCounts = new int[rules.size()];
+
+    for (char c = 'A'; c <= 'Z'; c++) {
+      File jsonFile = new File(profileDir, String.format("nypd-profiles-%s.json", c));
+      JSONArray profiles = new JSONArray(Files.readString(jsonFile.toPath()));
+
+      for (int i = 0; i < profiles.length(); i++) {
+        JSONObject profile = profiles.getJSONObject(i);
+        JSONArray training;
+        try {
+          training = profile.getJSONObject("reports").getJSONArray("training");
+        } catch (Exception e) {
+          System.out.println("no training data found for " + profile.getString("full_name"));
+          continue;
+        }
+
+        LocalDate assignmentDate = getAssignmentDate(profile);
+        int[] courseIds = new int[training.length()];
+        int[] dates = new int[training.length()];
+        BitSet taken = new BitSet();
+        BitSet takenAfterAssignment = new BitSet();
+        for (int j = 0; j < training.length(); j++) {
+          JSONObject course = training.getJSONObject(j);
+          courseIds[j] = courses.intern(course.getString("name"));
+          dates[j] =
+              course.has("date")
+                  ? Math.toIntExact(
+                      LocalDate.parse(course.getString("date"), INPUT_DATE_FORMAT).toEpochDay())
+                  : NO_DATE;
+          taken.set(courseIds[j]);
+          if (isAfter(dates[j], assignmentDate)) {
+            takenAfterAssignment.set(courseIds[j]);
+          }
+        }
+
+        String command = profile.getString("command");
+        for (int r = 0; r < rules.size(); r++) {
+          Rule rule = rules.get(r);
+          if (!rule.matches(command, rule.afterAssignment ? takenAfterAssignment : taken)) {
+            continue;
+          }
+          matchCounts[r]++;
+
+          List<String> matchedTrainings = new ArrayList<>();
+          for (int j = 0; j < courseIds.length; j++) {
+            if (rule.selects(courseIds[j])
+                && (!rule.afterAssignment || isAfter(dates[j], assignmentDate))) {
+              matchedTrainings.add(
+                  String.format("%s / %s", formatDate(dates[j]), courses.getName(courseIds[j])));
+            }
+          }
+          FiftyAIndex.Match match = fiftyA == null ? null : fiftyA.match(profile);
+          JSONObject matchedData = match == null ? null : match.getOfficer();
+          writers.get(r).writeNext(getRow(profile, matchedData, assignmentDate, matchedTrainings));
+        }
+      }
+    }
+
+    for (int r = 0; r < rules.size(); r++) {
+      writers.get(r).close();
+      System.out.printf("%s: %s officers%n", rules.get(r).name, matchCounts[r]);
+    }
+  }
+
+  private ImmutableList<Rule> readRules() throws IOException {
+    JSONArray json = new JSONObject(Files.readString(rulesFile.toPath())).getJSONArray("rules");
+    ImmutableList.Builder<Rule> rules = ImmutableList.builder();
+    Set<String> names = new HashSet<>();
+    for (int i = 0; i < json.length(); i++) {
+      Rule rule = Rule.create(json.getJSONObject(i), courses);
+      checkArgument(names.add(rule.name), "more than one rule named %s", rule.name);
+      rules.add(rule);
+    }
+    return rules.build();
+  }
+
+  /** Returns null if the profile doesn't have an assignment date. */
+  private static LocalDate getAssignmentDate(JSONObject profile) {
+    JSONObject summary = profile.getJSONObject("reports").optJSONObject("summary");
+    if (summary == null || !summary.has("assignment_date")) {
+      return null;
+    }
+    return LocalDate.parse(summary.getString("assignment_date"), INPUT_DATE_FORMAT);
+  }
+
+  /** Trainings without a date, or officers without an assignment date, count as after. */
+  private static boolean isAfter(int date, LocalDate assignmentDate) {
+    return date == NO_DATE || assignmentDate == null || date >= assignmentDate.toEpochDay();
+  }
+
+  private static String formatDate(int date) {
+    return date == NO_DATE
+        ? ""
+        : DateTimeFormatter.ISO_LOCAL_DATE.format(LocalDate.ofEpochDay(date));
+  }
+
+  private static String[] getRow(
+      JSONObject profile,
+      JSONObject matched50AData,
+      LocalDate assignmentDate,
+      List<String> matchedTrainings) {
+    List<String> row =
+        new ArrayList<>(
+            ImmutableList.of(
+                profile.getString("last_name"),
+                profile.getString("first_name"),
+                Integer.toString(profile.getInt("taxid")),
+                profile.getString("shield_no"),
+                profile.getString("rank"),
+                profile.getString("command"),
+                assignmentDate == null
+                    ? ""
+                    : DateTimeFormatter.ISO_LOCAL_DATE.format(assignmentDate)));
+    row.addAll(Arrays.asList(OfficerColumns.get50AColumns(matched50AData)));
+    row.add(OfficerColumns.getProfileLink(profile));
+    row.add(Integer.toString(matchedTrainings.size()));
+    row.add(String.join("\n", matchedTrainings));
+    return row.toArray(new String[0]);
+  }
+
+  /**
+   * A rule officers can match. All conditions that are given must match:
+   *
+   * <ul>
+   *   <li>all_courses: took every one of these courses
+   *   <li>course_regex: took at least one course whose full name matches this regex
+   *   <li>commands: is currently in one of these commands
+   *   <li>after_assignment: only count courses taken on or after the current assignment date
+   * </ul>
+   */
+  private static final class Rule {
+
+    private final String name;
+    private final BitSet allCourses;
+
+    /** Whether a course matches course_regex, or null if the rule doesn't have one. */
+    private final IntPredicate courseRegex;
+    private final ImmutableSet<String> commands;
+    private final boolean afterAssignment;
+
+    private Rule(
+        String name,
+        BitSet allCourses,
+        IntPredicate courseRegex,
+        ImmutableSet<String> commands,
+        boolean afterAssignment) {
+      this.name = name;
+      this.allCourses = allCourses;
+      this.courseRegex = courseRegex;
+      this.commands = commands;
+      this.afterAssignment = afterAssignment;
+    }
+
+    private static Rule create(JSONObject json, Courses courses) {
+      // The name is used as a file name in -output-dir.
+      String name = json.getString("name");
+      checkArgument(RULE_NAME.matcher(name).matches(), "invalid rule name: %s", name);
+
+      BitSet allCourses = new BitSet();
+      JSONArray allCoursesJson = json.optJSONArray("all_courses");
+      if (allCoursesJson != null) {
+        for (int i = 0; i < allCoursesJson.length(); i++) {
+          allCourses.set(courses.intern(allCoursesJson.getString(i)));
+        }
+      }
+
+      ImmutableSet.Builder<String> commands = ImmutableSet.builder();
+      JSONArray commandsJson = json.optJSONArray("commands");
+      if (commandsJson != null) {
+        for (int i = 0; i < commandsJson.length(); i++) {
+          commands.add(commandsJson.getString(i));
+        }
+      }
+
+      return new Rule(
+          name,
+          allCourses,
+          json.has("course_regex")
+              ? courses.matching(Pattern.compile(json.getString("course_regex")))
+              : null,
+          commands.build(),
+          json.optBoolean("after_assignment"));
+    }
+
+    private boolean matches(String command, BitSet taken) {
+      if (!commands.isEmpty() && !commands.contains(command)) {
+        return false;
+      }
+
+      BitSet missing = (BitSet) allCourses.clone();
+      missing.andNot(taken);
+      if (!missing.isEmpty()) {
+        return false;
+      }
+
+      if (courseRegex != null) {
+        for (int id = taken.nextSetBit(0); id >= 0; id = taken.nextSetBit(id + 1)) {
+          if (courseRegex.test(id)) {
+            return true;
+          }
+        }
+        return false;
+      }
+      return true;
+    }
+
+    /** Whether a course is relevant to this rule, for listing an officer's matched trainings. */
+    private boolean selects(int courseId) {
+      if (allCourses.isEmpty() && courseRegex == null) {
+        return true;
+      }
+      return allCourses.get(courseId) || (courseRegex != null && courseRegex.test(courseId));
+    }
+  }
+}
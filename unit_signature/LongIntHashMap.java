@@ -0,0 +1,111 @@
+package emspishak.nypd.unitsignature;
+
+import java.util.Arrays;
+
+/**
+ * Map from non-negative long keys to int counts, with open addressing over primitive arrays. Used
+ * for sparse matrices keyed by (row << 32 | column), where boxed maps would use several times the
+ * memory and spend most of their time allocating.
+ */
+final class LongIntHashMap {
+
+  private static final long EMPTY = -1;
+
+  private long[] keys;
+  private int[] values;
+  private int size = 0;
+
+  LongIntHashMap() {
+    this(1 << 10);
+  }
+
+  private LongIntHashMap(int capacity) {
+    keys = new long[capacity];
+    values = new int[capacity];
+    Arrays.fill(keys, EMPTY);
+  }
+
+  static long key(int row, int column) {
+    return ((long) row << 32) | column;
+  }
+
+  static int row(long key) {
+    return (int) (key >>> 32);
+  }
+
+  static int column(long key) {
+    return (int) key;
+  }
+
+  int size() {
+    return size;
+  }
+
+  int get(long key) {
+    int slot = find(keys, key);
+    return keys[slot] == EMPTY ? 0 : values[slot];
+  }
+
+  void add(long key, int delta) {
+    int slot = find(keys, key);
+    if (keys[slot] == EMPTY) {
+      keys[slot] = key;
+      size++;
+      values[slot] = delta;
+      // Keep the load factor under a half, so probes stay short.
+      if (size * 2 > keys.length) {
+        grow();
+      }
+    } else {
+      values[slot] += delta;
+    }
+  }
+
+  /** Adds all counts from another map to this one. */
+  void addAll(LongIntHashMap other) {
+    for (int i = 0; i < other.keys.length; i++) {
+      if (other.keys[i] != EMPTY) {
+        add(other.keys[i], other.values[i]);
+      }
+    }
+  }
+
+  void forEach(Visitor visitor) {
+    for (int i = 0; i < keys.length; i++) {
+      if (keys[i] != EMPTY) {
+        visitor.visit(keys[i], values[i]);
+      }
+    }
+  }
+
+  private void grow() {
+    long[] oldKeys = keys;
+    int[] oldValues = values;
+    keys = new long[oldKeys.length * 2];
+    values = new int[oldValues.length * 2];
+    Arrays.fill(keys, EMPTY);
+    for (int i = 0; i < oldKeys.length; i++) {
+      if (oldKeys[i] != EMPTY) {
+        int slot = find(keys, oldKeys[i]);
+        keys[slot] = oldKeys[i];
+        values[slot] = oldValues[i];
+      }
+    }
+  }
+
+  /** Slot holding the key, or the empty slot it would go in. Capacity is a power of two. */
+  private static int find(long[] keys, long key) {
+    int mask = keys.length - 1;
+    // Mix the bits, since keys differ mostly in their low bits of each half.
+    long hash = key * 0x9E3779B97F4A7C15L;
+    int slot = (int) (hash ^ (hash >>> 32)) & mask;
+    while (keys[slot] != EMPTY && keys[slot] != key) {
+      slot = (slot + 1) & mask;
+    }
+    return slot;
+  }
+
+  interface Visitor {
+    void visit(long key, int value);
+  }
+}
@@ -0,0 +1,439 @@
+package emspishak.nypd.unitsignature;
+
+import com.google.common.base.Stopwatch;
+import com.google.common.collect.ImmutableList;
+import com.opencsv.CSVWriter;
+import emspishak.nypd.trainingdata.Courses;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+import java.util.regex.Pattern;
+import java.util.stream.DoubleStream;
+import java.util.stream.IntStream;
+import org.json.JSONArray;
+import org.json.JSONObject;
+import org.kohsuke.args4j.CmdLineException;
+import org.kohsuke.args4j.CmdLineParser;
+import org.kohsuke.args4j.Option;
+
+/**
+ * Finds officers whose training looks like a unit's, to spot members of units like SRG who are
+ * listed under other commands. Instead of a fixed rule like "took a course starting with SRG", this
+ * learns each unit's training signature from the officers currently in it.
+ *
+ * <p>Over all officers, this counts how many officers in each command took each course (a command
+ * x course matrix). A unit's signature weights each course by how much more common it is in the
+ * unit than overall (log lift), keeping courses that are more common. Every officer is scored by
+ * the cosine similarity of their courses to each unit's signature, and the top officers outside
+ * every unit are written out as candidates, so e.g. SRG 1's candidates aren't other SRG groups.
+ *
+ * <p>It also counts how many officers took each pair of courses (a course x course co-occurrence
+ * matrix), which is only used for the course pair report, not for scoring.
+ */
+public final class UnitSignature {
+
+  private static final String[] CANDIDATE_HEADERS = {
+    "rank",
+    "score",
+    "last_name",
+    "first_name",
+    "tax_id",
+    "command",
+    "top_signature_courses",
+    "nypd_profile_link",
+  };
+
+  private static final String[] SIGNATURE_HEADERS = {
+    "course", "unit_officers", "all_officers", "weight",
+  };
+
+  private static final String[] PAIR_HEADERS = {
+    "course_a", "course_b", "officers", "pmi",
+  };
+
+  /** Officers per fork/join leaf task. */
+  private static final int OFFICERS_PER_TASK = 512;
+
+  /** Signature courses listed per candidate, to explain their score. */
+  private static final int COURSES_PER_CANDIDATE = 5;
+
+  @Option(name = "-profile-dir", usage = "Directory with NYPD profile JSON.")
+  private File profileDir;
+
+  @Option(name = "-output-dir", usage = "Directory for CSV outputs, one set per unit.")
+  private File outputDir;
+
+  @Option(
+      name = "-unit-regex",
+      usage = "Regex for the commands to find candidates for. Each matching command is a unit.")
+  private String unitRegex = "STRATEGIC RESP.*";
+
+  @Option(name = "-min-unit-size", usage = "Skip units with fewer officers than this.")
+  private int minUnitSize = 20;
+
+  @Option(name = "-candidates", usage = "Number of candidates to write per unit.")
+  private int candidateCount = 200;
+
+  @Option(
+      name = "-min-pair-officers",
+      usage = "Only write course pairs taken together by at least this many officers.")
+  private int minPairOfficers = 20;
+
+  private final Courses courses = new Courses();
+  private final Dictionary commands = new Dictionary();
+  private final List<Officer> officers = new ArrayList<>();
+
+  public static void main(String[] args) throws CmdLineException, IOException {
+    new UnitSignature().doMain(args);
+  }
+
+  private void doMain(String[] args) throws CmdLineException, IOException {
+    CmdLineParser parser = new CmdLineParser(this);
+    parser.parseArgument(args);
+    outputDir.mkdir();
+
+    Stopwatch stopwatch = Stopwatch.createStarted();
+    readProfiles();
+    System.out.printf(
+        "read %s officers, %s courses, %s commands in %s%n",
+        officers.size(), courses.size(), commands.size(), stopwatch);
+
+    stopwatch.reset().start();
+    ForkJoinPool pool = ForkJoinPool.commonPool();
+    LongIntHashMap pairs = pool.invoke(new CountTask(0, officers.size(), true));
+    LongIntHashMap commandCourses = pool.invoke(new CountTask(0, officers.size(), false));
+    System.out.printf(
+        "counted %s course pairs and %s command courses in %s%n",
+        pairs.size(), commandCourses.size(), stopwatch);
+
+    int[] courseOfficers = new int[courses.size()];
+    int[] commandOfficers = new int[commands.size()];
+    for (Officer officer : officers) {
+      commandOfficers[officer.command]++;
+      for (int course : officer.courses) {
+        courseOfficers[course]++;
+      }
+    }
+    writePairs(pairs, courseOfficers);
+
+    Pattern units = Pattern.compile(unitRegex);
+    BitSet unitCommands = new BitSet();
+    for (int command = 0; command < commands.size(); command++) {
+      if (units.matcher(commands.getName(command)).matches()) {
+        unitCommands.set(command);
+      }
+    }
+    for (int unit : unitCommands.stream().toArray()) {
+      String name = commands.getName(unit);
+      if (commandOfficers[unit] < minUnitSize) {
+        System.out.printf("skipping %s, only %s officers%n", name, commandOfficers[unit]);
+        continue;
+      }
+
+      stopwatch.reset().start();
+      double[] weights =
+          getSignature(unit, commandCourses, courseOfficers, commandOfficers[unit]);
+      writeSignature(name, unit, weights, commandCourses, courseOfficers);
+      writeCandidates(name, weights, unitCommands);
+      System.out.printf("scored officers for %s in %s%n", name, stopwatch);
+    }
+  }
+
+  private void readProfiles() throws IOException {
+    for (char c = 'A'; c <= 'Z'; c++) {
+      File jsonFile = new File(profileDir, String.format("nypd-profiles-%s.json", c));
+      JSONArray profiles = new JSONArray(Files.readString(jsonFile.toPath()));
+
+      for (int i = 0; i < profiles.length(); i++) {
+        JSONObject profile = profiles.getJSONObject(i);
+        JSONObject reports = profile.optJSONObject("reports");
+        JSONArray training = reports == null ? null : reports.optJSONArray("training");
+        if (training == null) {
+          continue;
+        }
+
+        BitSet taken = new BitSet();
+        for (int j = 0; j < training.length(); j++) {
+          taken.set(courses.intern(training.getJSONObject(j).getString("name")));
+        }
+        officers.add(
+            new Officer(
+                profile.getString("last_name"),
+                profile.getString("first_name"),
+                profile.getInt("taxid"),
+                commands.intern(profile.getString("command")),
+                taken.stream().toArray()));
+      }
+    }
+  }
+
+  /**
+   * Log lift of each course in the unit, (share of unit officers who took it) / (share of all
+   * officers who took it), smoothed so rare courses don't dominate. Courses that aren't more common
+   * in the unit get no weight.
+   */
+  private double[] getSignature(
+      int unit, LongIntHashMap commandCourses, int[] courseOfficers, int unitOfficers) {
+    double[] weights = new double[courses.size()];
+    int allOfficers = officers.size();
+    for (int course = 0; course < weights.length; course++) {
+      int inUnit = commandCourses.get(LongIntHashMap.key(unit, course));
+      if (inUnit == 0) {
+        continue;
+      }
+      double unitShare = (inUnit + 1.0) / (unitOfficers + 2.0);
+      double allShare = (courseOfficers[course] + 1.0) / (allOfficers + 2.0);
+      weights[course] = Math.max(0, Math.log(unitShare / allShare));
+    }
+    return weights;
+  }
+
+  /** Writes the top scoring officers that aren't in any unit, not just the one being scored. */
+  private void writeCandidates(String name, double[] weights, BitSet unitCommands)
+      throws IOException {
+    double norm = Math.sqrt(DoubleStream.of(weights).map(weight -> weight * weight).sum());
+    double[] scores = new double[officers.size()];
+    if (norm > 0) {
+      // Runs on the common fork/join pool.
+      IntStream.range(0, officers.size())
+          .parallel()
+          .forEach(o -> scores[o] = officers.get(o).getScore(weights, norm));
+    }
+
+    Integer[] ranked =
+        IntStream.range(0, officers.size())
+            .filter(o -> !unitCommands.get(officers.get(o).command) && scores[o] > 0)
+            .boxed()
+            .sorted(Comparator.comparingDouble((Integer o) -> scores[o]).reversed())
+            .limit(candidateCount)
+            .toArray(Integer[]::new);
+
+    CSVWriter writer =
+        new CSVWriter(new FileWriter(new File(outputDir, getFileName(name, "candidates"))));
+    writer.writeNext(CANDIDATE_HEADERS);
+    for (int rank = 0; rank < ranked.length; rank++) {
+      Officer officer = officers.get(ranked[rank]);
+      writer.writeNext(
+          new String[] {
+            Integer.toString(rank + 1),
+            String.format("%.4f", scores[ranked[rank]]),
+            officer.lastName,
+            officer.firstName,
+            Integer.toString(officer.taxId),
+            commands.getName(officer.command),
+            String.join("\n", officer.getTopCourses(weights, courses)),
+            String.format("https://oip.nypdonline.org/view/1/@TAXID=%s", officer.taxId),
+          });
+    }
+    writer.close();
+  }
+
+  private void writeSignature(
+      String name,
+      int unit,
+      double[] weights,
+      LongIntHashMap commandCourses,
+      int[] courseOfficers)
+      throws IOException {
+    Integer[] signature =
+        IntStream.range(0, weights.length)
+            .filter(course -> weights[course] > 0)
+            .boxed()
+            .sorted(Comparator.comparingDouble((Integer course) -> weights[course]).reversed())
+            .toArray(Integer[]::new);
+
+    CSVWriter writer =
+        new CSVWriter(new FileWriter(new File(outputDir, getFileName(name, "signature"))));
+    writer.writeNext(SIGNATURE_HEADERS);
+    for (int course : signature) {
+      writer.writeNext(
+          new String[] {
+            courses.getName(course),
+            Integer.toString(commandCourses.get(LongIntHashMap.key(unit, course))),
+            Integer.toString(courseOfficers[course]),
+            String.format("%.4f", weights[course]),
+          });
+    }
+    writer.close();
+  }
+
+  /**
+   * Writes course pairs taken together by enough officers, by pointwise mutual information, i.e.
+   * how much more often they're taken together than if they were independent.
+   */
+  private void writePairs(LongIntHashMap pairs, int[] courseOfficers) throws IOException {
+    List<long[]> frequent = new ArrayList<>();
+    pairs.forEach(
+        (key, count) -> {
+          if (count >= minPairOfficers) {
+            frequent.add(new long[] {key, count});
+          }
+        });
+    double allOfficers = officers.size();
+    double[] pmi = new double[frequent.size()];
+    for (int i = 0; i < pmi.length; i++) {
+      long key = frequent.get(i)[0];
+      pmi[i] =
+          Math.log(
+              frequent.get(i)[1]
+                  * allOfficers
+                  / ((double) courseOfficers[LongIntHashMap.row(key)]
+                      * courseOfficers[LongIntHashMap.column(key)]));
+    }
+
+    CSVWriter writer = new CSVWriter(new FileWriter(new File(outputDir, "course-pairs.csv")));
+    writer.writeNext(PAIR_HEADERS);
+    int[] order =
+        IntStream.range(0, pmi.length)
+            .boxed()
+            .sorted(Comparator.comparingDouble((Integer i) -> pmi[i]).reversed())
+            .mapToInt(Integer::intValue)
+            .toArray();
+    for (int i : order) {
+      long key = frequent.get(i)[0];
+      writer.writeNext(
+          new String[] {
+            courses.getName(LongIntHashMap.row(key)),
+            courses.getName(LongIntHashMap.column(key)),
+            Long.toString(frequent.get(i)[1]),
+            String.format("%.4f", pmi[i]),
+          });
+    }
+    writer.close();
+  }
+
+  private static String getFileName(String unit, String kind) {
+    return String.format("%s-%s.csv", unit.replaceAll("[^A-Za-z0-9]+", "-").toLowerCase(), kind);
+  }
+
+  /**
+   * Counts either course pairs (row and column are courses, row < column) or command courses (row
+   * is the command, column the course) for a range of officers, splitting the range in half until
+   * it's small enough.
+   */
+  private final class CountTask extends RecursiveTask<LongIntHashMap> {
+
+    private static final long serialVersionUID = 1L;
+
+    private final int start;
+    private final int end;
+    private final boolean pairs;
+
+    private CountTask(int start, int end, boolean pairs) {
+      this.start = start;
+      this.end = end;
+      this.pairs = pairs;
+    }
+
+    @Override
+    protected LongIntHashMap compute() {
+      if (end - start > OFFICERS_PER_TASK) {
+        int middle = (start + end) >>> 1;
+        CountTask left = new CountTask(start, middle, pairs);
+        left.fork();
+        LongIntHashMap right = new CountTask(middle, end, pairs).compute();
+        LongIntHashMap merged = left.join();
+        // Merge the smaller map into the larger one.
+        if (merged.size() < right.size()) {
+          right.addAll(merged);
+          return right;
+        }
+        merged.addAll(right);
+        return merged;
+      }
+
+      LongIntHashMap counts = new LongIntHashMap();
+      for (int o = start; o < end; o++) {
+        Officer officer = officers.get(o);
+        int[] taken = officer.courses;
+        for (int i = 0; i < taken.length; i++) {
+          if (pairs) {
+            // Courses are sorted, so each pair is counted once with the smaller ID first.
+            for (int j = i + 1; j < taken.length; j++) {
+              counts.add(LongIntHashMap.key(taken[i], taken[j]), 1);
+            }
+          } else {
+            counts.add(LongIntHashMap.key(officer.command, taken[i]), 1);
+          }
+        }
+      }
+      return counts;
+    }
+  }
+
+  /** Dictionary of command names, so matrices can be indexed by ID. */
+  private static final class Dictionary {
+
+    private final Map<String, Integer> ids = new HashMap<>();
+    private final List<String> names = new ArrayList<>();
+
+    private int intern(String name) {
+      Integer id = ids.get(name);
+      if (id == null) {
+        id = names.size();
+        ids.put(name, id);
+        names.add(name);
+      }
+      return id;
+    }
+
+    private String getName(int id) {
+      return names.get(id);
+    }
+
+    private int size() {
+      return names.size();
+    }
+  }
+
+  private static final class Officer {
+
+    private final String lastName;
+    private final String firstName;
+    private final int taxId;
+    private final int command;
+
+    /** Distinct IDs of the courses taken, sorted. */
+    private final int[] courses;
+
+    private Officer(String lastName, String firstName, int taxId, int command, int[] courses) {
+      this.lastName = lastName;
+      this.firstName = firstName;
+      this.taxId = taxId;
+      this.command = command;
+      this.courses = courses;
+    }
+
+    /** Cosine similarity between the courses taken and a unit's signature. */
+    private double getScore(double[] weights, double norm) {
+      if (courses.length == 0) {
+        return 0;
+      }
+      double dot = 0;
+      for (int course : courses) {
+        dot += weights[course];
+      }
+      return dot / (Math.sqrt(courses.length) * norm);
+    }
+
+    /** Names of the courses taken with the highest signature weights. */
+    private ImmutableList<String> getTopCourses(double[] weights, Courses names) {
+      return IntStream.of(courses)
+          .filter(course -> weights[course] > 0)
+          .boxed()
+          .sorted(Comparator.comparingDouble((Integer course) -> weights[course]).reversed())
+          .limit(COURSES_PER_CANDIDATE)
+          .map(names::getName)
+          .collect(ImmutableList.toImmutableList());
+    }
+  }
+}